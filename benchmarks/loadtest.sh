@@ -0,0 +1,23 @@
+#!/bin/sh
+
+# Load test: generates a synthetic corpus with SyntheticCorpus on the first run, then merges every document of
+# the corpus at several levels of concurrency with LoadTest, and reports latency percentiles, throughput and peak
+# resident set size per level. The corpus is kept in target/corpus (or $CORPUS), so that later runs, e.g. of the
+# next release, measure the same inputs. Build the benchmarks first: "mvn install" in the parent directory, then
+# "mvn package" here.
+#
+# usage: benchmarks/loadtest.sh [LoadTest options, e.g. --concurrency 1,2,4 --rounds 2 --parser stax]
+
+cd "$(dirname "$0")" || exit 1
+JAR=target/benchmarks.jar
+CORPUS=${CORPUS:-target/corpus}
+
+if [ ! -f "$JAR" ]; then
+    echo "$JAR not found, run mvn package first"
+    exit 1
+fi
+if [ ! -f "$CORPUS/manifest.csv" ]; then
+    java -cp "$JAR" com.itextpdf.research.xfdfmerge.SyntheticCorpus --documents 50 --pages 1-100 \
+        --annotations 100-5000 --richtext 0-1000 "$CORPUS" || exit 1
+fi
+exec java -Xmx2g -cp "$JAR" com.itextpdf.research.xfdfmerge.LoadTest "$@" "$CORPUS/manifest.csv"
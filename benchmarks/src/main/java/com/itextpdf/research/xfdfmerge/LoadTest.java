@@ -0,0 +1,299 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the jobs of a manifest, typically a corpus written by {@link SyntheticCorpus}, through the merge at one or
+ * more levels of concurrency, and reports the latency percentiles, throughput and peak resident set size of each
+ * level. Every job is run end to end, like in batch mode: reading the input files, merging and writing the output.
+ * Each worker thread writes all of its outputs to one file of its own, so the outputs listed in the manifest are
+ * ignored and the disk space used doesn't grow with the number of jobs.
+ * <p>
+ * Before the first level, the whole manifest is run once on a single thread to warm up the JVM. The peak resident
+ * set size is read from {@code /proc/self/status} and reset before each level, so it is only available on Linux.
+ */
+public final class LoadTest {
+
+    private static final Path STATUS = Paths.get("/proc/self/status");
+    private static final Path CLEAR_REFS = Paths.get("/proc/self/clear_refs");
+
+    private final List<String> jobLines;
+    private final MergeOptions options;
+    private final Path outDirectory;
+
+    LoadTest(List<String> jobLines, MergeOptions options, Path outDirectory) {
+        this.jobLines = jobLines;
+        this.options = options;
+        this.outDirectory = outDirectory;
+    }
+
+    /**
+     * Runs every job of the manifest {@code rounds} times on the given number of threads.
+     */
+    Result run(int concurrency, int rounds) throws InterruptedException {
+        int jobCount = jobLines.size() * rounds;
+        long[] latencies = new long[jobCount];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        AtomicLong annotations = new AtomicLong();
+        System.gc();
+        boolean rssReset = resetPeakRss();
+        List<Thread> workers = new ArrayList<>(concurrency);
+        long start = System.nanoTime();
+        for(int w = 0; w < concurrency; w++) {
+            String output = outDirectory.resolve("worker-" + w + ".pdf").toString();
+            Thread worker = new Thread(() -> {
+                for(int i = next.getAndIncrement(); i < jobCount; i = next.getAndIncrement()) {
+                    long jobStart = System.nanoTime();
+                    try {
+                        MergeJob job = createJob(jobLines.get(i % jobLines.size()), output);
+                        job.run(options);
+                        annotations.addAndGet(job.getStats().getMerged().values().stream()
+                                .mapToLong(Integer::longValue).sum());
+                    } catch(Exception e) {
+                        errors.incrementAndGet();
+                        System.err.println("Job " + jobLines.get(i % jobLines.size()) + " failed: " + e);
+                    }
+                    latencies[i] = System.nanoTime() - jobStart;
+                }
+            }, "load-test-" + w);
+            worker.start();
+            workers.add(worker);
+        }
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        return new Result(concurrency, latencies, errors.get(), annotations.get(), elapsed,
+                readPeakRss(), rssReset);
+    }
+
+    /**
+     * Creates the job described by a manifest line, writing to the given output instead of the listed one.
+     */
+    private static MergeJob createJob(String line, String output) {
+        if(line.startsWith("{")) {
+            Map<String, String> obj = BatchMerge.parseFlatJsonObject(line);
+            return MergeJob.create(obj.get("pdf"), obj.get("xfdf"), output, obj.get("transform"));
+        }
+        List<String> fields = BatchMerge.splitCsvLine(line);
+        if(fields.size() != 3 && fields.size() != 4) {
+            throw new IllegalArgumentException("Expected 3 or 4 fields, found " + fields.size());
+        }
+        return MergeJob.create(fields.get(0), fields.get(1), output, fields.size() == 4 ? fields.get(3) : null);
+    }
+
+    /**
+     * Resets the peak resident set size of the process, which Linux supports since 4.0.
+     *
+     * @return whether the peak was reset
+     */
+    private static boolean resetPeakRss() {
+        try {
+            Files.write(CLEAR_REFS, "5".getBytes(StandardCharsets.US_ASCII));
+            return true;
+        } catch(IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the peak resident set size of the process in kB, or -1 if it isn't known
+     */
+    private static long readPeakRss() {
+        try {
+            for(String line : Files.readAllLines(STATUS, StandardCharsets.US_ASCII)) {
+                if(line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        } catch(IOException | NumberFormatException e) {
+            // not on Linux
+        }
+        return -1;
+    }
+
+    /**
+     * The measurements of one level of concurrency.
+     */
+    static final class Result {
+        final int concurrency;
+        final long[] latencies;
+        final int errors;
+        final long annotations;
+        final long elapsedNanos;
+        final long peakRssKb;
+        final boolean rssReset;
+
+        Result(int concurrency, long[] latencies, int errors, long annotations, long elapsedNanos, long peakRssKb,
+                boolean rssReset) {
+            this.concurrency = concurrency;
+            this.latencies = latencies.clone();
+            Arrays.sort(this.latencies);
+            this.errors = errors;
+            this.annotations = annotations;
+            this.elapsedNanos = elapsedNanos;
+            this.peakRssKb = peakRssKb;
+            this.rssReset = rssReset;
+        }
+
+        /**
+         * @return the latency below which the given share of the jobs completed, by the nearest-rank method,
+         *         in milliseconds
+         */
+        double percentile(double p) {
+            int rank = (int) Math.ceil(p / 100 * latencies.length);
+            return latencies[Math.max(0, rank - 1)] / 1e6;
+        }
+
+        String format() {
+            double seconds = elapsedNanos / 1e9;
+            String rss = peakRssKb < 0 ? "n/a" : (peakRssKb / 1024) + (rssReset ? "" : "*");
+            return String.format(Locale.ROOT, "%11d %6d %6d %9.1f %9.1f %9.1f %9.1f %9.2f %10.0f %9s",
+                    concurrency, latencies.length, errors, percentile(50), percentile(95), percentile(99),
+                    latencies[latencies.length - 1] / 1e6, latencies.length / seconds, annotations / seconds, rss);
+        }
+    }
+
+    private static final String USAGE =
+            "Usage: LoadTest [--concurrency N,...] [--rounds N] [--parser dom|stax] [--output append|compact]\n"
+            + "         [--out DIR] manifest";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        MergeOptions options = new MergeOptions();
+        int[] levels = {1, 2, 4};
+        int rounds = 1;
+        Path outDirectory = null;
+        int argIx = 0;
+        try {
+            while(argIx < args.length - 1 && args[argIx].startsWith("--")) {
+                String opt = args[argIx++];
+                String value = args[argIx++];
+                switch(opt) {
+                    case "--concurrency":
+                        levels = Arrays.stream(value.split(",")).mapToInt(s -> Integer.parseInt(s.trim())).toArray();
+                        if(Arrays.stream(levels).anyMatch(level -> level < 1)) {
+                            throw new IllegalArgumentException("Concurrency must be positive");
+                        }
+                        break;
+                    case "--rounds":
+                        rounds = Integer.parseInt(value);
+                        if(rounds < 1) {
+                            throw new IllegalArgumentException("Round count must be positive");
+                        }
+                        break;
+                    case "--parser":
+                        if(!"stax".equals(value) && !"dom".equals(value)) {
+                            throw new IllegalArgumentException("Unknown parser " + value);
+                        }
+                        options.setStreaming("stax".equals(value));
+                        break;
+                    case "--output":
+                        if(!"compact".equals(value) && !"append".equals(value)) {
+                            throw new IllegalArgumentException("Unknown output mode " + value);
+                        }
+                        options.setCompact("compact".equals(value));
+                        break;
+                    case "--out":
+                        outDirectory = Paths.get(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + opt);
+                }
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        if(argIx != args.length - 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        List<String> jobLines = new ArrayList<>();
+        for(String line : Files.readAllLines(Paths.get(args[argIx]), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if(!line.isEmpty() && !line.startsWith("#")) {
+                jobLines.add(line);
+            }
+        }
+        if(jobLines.isEmpty()) {
+            System.err.println("No jobs in " + args[argIx]);
+            System.exit(1);
+            return;
+        }
+        if(outDirectory == null) {
+            outDirectory = Files.createTempDirectory("load-test");
+            outDirectory.toFile().deleteOnExit();
+        } else {
+            Files.createDirectories(outDirectory);
+        }
+
+        LoadTest loadTest = new LoadTest(jobLines, options, outDirectory);
+        loadTest.run(1, 1);
+        System.out.println("# " + System.getProperty("java.runtime.name") + " "
+                + System.getProperty("java.runtime.version") + ", "
+                + Runtime.getRuntime().availableProcessors() + " CPU core(s), max heap "
+                + Runtime.getRuntime().maxMemory() / (1024 * 1024) + " MB");
+        System.out.println("# " + jobLines.size() + " jobs x " + rounds + " round(s) per level, latencies in ms");
+        System.out.printf(Locale.ROOT, "%11s %6s %6s %9s %9s %9s %9s %9s %10s %9s%n",
+                "concurrency", "jobs", "errors", "p50", "p95", "p99", "max", "jobs/s", "annots/s", "rss MB");
+        boolean rssReset = true;
+        for(int level : levels) {
+            Result result = loadTest.run(level, rounds);
+            rssReset &= result.rssReset;
+            System.out.println(result.format());
+        }
+        if(!rssReset) {
+            System.out.println("# * peak resident set size since the start of the JVM, it could not be reset");
+        }
+        int maxLevel = Arrays.stream(levels).max().getAsInt();
+        for(int w = 0; w < maxLevel; w++) {
+            Files.deleteIfExists(outDirectory.resolve("worker-" + w + ".pdf"));
+        }
+    }
+}
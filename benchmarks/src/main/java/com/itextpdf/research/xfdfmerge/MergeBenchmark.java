@@ -0,0 +1,103 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.forms.xfdf.XfdfAnnotFactory;
+import com.itextpdf.forms.xfdf.XfdfObject;
+import com.itextpdf.kernel.geom.AffineTransform;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfReader;
+import com.itextpdf.kernel.pdf.PdfWriter;
+import com.itextpdf.kernel.pdf.StampingProperties;
+import com.itextpdf.kernel.pdf.WriterProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link XfdfMerge#mergeXfdfIntoPdf} end to end: opening a synthetic 100-page PDF, merging a pre-parsed
+ * XFDF file into it and writing the result (to a null stream), either as an incremental update or as a fully
+ * compressed rewrite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class MergeBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int annotations;
+
+    @Param({"append", "compact"})
+    public String output;
+
+    private byte[] pdf;
+    private XfdfObject xfdf;
+
+    @Setup
+    public void setUp() {
+        pdf = SyntheticDocuments.createPdf(100);
+        xfdf = new XfdfAnnotFactory().createXfdfObject(
+                new ByteArrayInputStream(SyntheticDocuments.createXfdf(annotations, 100)));
+    }
+
+    @Benchmark
+    public long merge() throws IOException {
+        StampingProperties sp = new StampingProperties();
+        WriterProperties wp = new WriterProperties();
+        if("compact".equals(output)) {
+            wp.setFullCompressionMode(true);
+        } else {
+            sp.useAppendMode();
+        }
+        try(PdfDocument pdfDoc = new PdfDocument(new PdfReader(new ByteArrayInputStream(pdf)),
+                new PdfWriter(OutputStream.nullOutputStream(), wp), sp)) {
+            new XfdfMerge(pdfDoc, new AffineTransform(), 0).mergeXfdfIntoPdf(xfdf, false);
+            return pdfDoc.getNumberOfPdfObjects();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.forms.xfdf.AnnotObject;
+import com.itextpdf.forms.xfdf.AnnotObjectCodec;
+import com.itextpdf.forms.xfdf.XfdfAnnotFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how fast the annotations of XFDF files of various sizes are read back from a parse cache entry,
+ * held in a direct buffer like a memory-mapped file, to compare with {@link XfdfParseBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseCacheBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int annotations;
+
+    private ByteBuffer entry;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] xfdf = SyntheticDocuments.createXfdf(annotations, 100);
+        XfdfAnnotFactory factory = new XfdfAnnotFactory();
+        List<AnnotObject> annots = factory.createXfdfObject(new ByteArrayInputStream(xfdf)).getAnnots().getAnnotsList();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        AnnotObjectCodec.write(annots, new ArrayList<>(), factory.getSkippedAnnotations(),
+                factory.getUnsupportedAttributes(), baos);
+        entry = ByteBuffer.allocateDirect(baos.size());
+        entry.put(baos.toByteArray()).flip();
+    }
+
+    @Benchmark
+    public List<AnnotObject> read() {
+        return AnnotObjectCodec.read(entry.duplicate(), new ArrayList<>(), new HashMap<>(), new HashMap<>());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.forms.xfdf.XfdfObjectReadingUtils;
+import com.itextpdf.kernel.geom.AffineTransform;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the {@code convert*FromString} helpers in {@link XfdfObjectReadingUtils}, in both their
+ * allocating form and (where available) their buffer-filling form. Every invocation converts
+ * {@value #INPUTS} different attribute values, and the scores are per converted value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadingUtilsBenchmark {
+
+    static final int INPUTS = 64;
+    static final int GESTURE_POINTS = 1000;
+    private static final String[] FLAGS = {"print", "print,nozoom,norotate", "hidden", "Print,NoView", "locked"};
+    private static final String[] COLORS = {"#FFCF00", "#ff0000", "#0000FF", "#00c000", "#8040FF"};
+
+    private final String[] rects = new String[INPUTS];
+    private final String[] coords = new String[INPUTS];
+    private final String[] flags = new String[INPUTS];
+    private final String[] colors = new String[INPUTS];
+    private final String[] gestures = new String[INPUTS];
+    private final AffineTransform transform = new AffineTransform(new double[] {0.5, 0, 0, 0.5, 10, -20});
+    private final float[] rectBuffer = new float[4];
+    private final float[] quadPointsBuffer = new float[64];
+    private final int[] rgbBuffer = new int[3];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for(int i = 0; i < INPUTS; i++) {
+            float x = random.nextFloat() * 500;
+            float y = random.nextFloat() * 800;
+            float w = random.nextFloat() * 200;
+            rects[i] = String.format(Locale.ROOT, "%.4f,%.4f,%.4f,%.4f", x, y, x + w, y + 14);
+            StringBuilder sb = new StringBuilder();
+            int quads = 1 + i % 4;
+            for(int q = 0; q < quads; q++) {
+                float qy = y - q * 16;
+                if(q > 0) {
+                    sb.append(',');
+                }
+                sb.append(String.format(Locale.ROOT, "%.4f,%.4f,%.4f,%.4f,%.4f,%.4f,%.4f,%.4f",
+                        x, qy + 14, x + w, qy + 14, x, qy, x + w, qy));
+            }
+            coords[i] = sb.toString();
+            flags[i] = FLAGS[i % FLAGS.length];
+            colors[i] = COLORS[i % COLORS.length];
+            sb.setLength(0);
+            for(int p = 0; p < GESTURE_POINTS; p++) {
+                if(p > 0) {
+                    sb.append(';');
+                }
+                sb.append(String.format(Locale.ROOT, "%.4f,%.4f",
+                        x + random.nextFloat() * 50, y + random.nextFloat() * 50));
+            }
+            gestures[i] = sb.toString();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public void convertRect(Blackhole bh) {
+        for(String rect : rects) {
+            bh.consume(XfdfObjectReadingUtils.convertRectFromString(rect, transform));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public void convertRectIntoBuffer(Blackhole bh) {
+        for(String rect : rects) {
+            XfdfObjectReadingUtils.convertRectFromString(rect, transform, rectBuffer);
+            bh.consume(rectBuffer[0]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public void convertQuadPoints(Blackhole bh) {
+        for(String coord : coords) {
+            bh.consume(XfdfObjectReadingUtils.convertQuadPointsFromCoordsString(coord, transform));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public void convertQuadPointsIntoBuffer(Blackhole bh) {
+        for(String coord : coords) {
+            bh.consume(XfdfObjectReadingUtils.convertQuadPointsFromCoordsString(coord, transform, quadPointsBuffer));
+        }
+    }
+
+    /**
+     * Converts ink gestures of {@value #GESTURE_POINTS} points each.
+     */
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public void convertPoints(Blackhole bh) {
+        for(String gesture : gestures) {
+            bh.consume(XfdfObjectReadingUtils.convertPointsFromString(gesture, transform));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public void convertFlags(Blackhole bh) {
+        for(String flag : flags) {
+            bh.consume(XfdfObjectReadingUtils.convertFlagsFromString(flag));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public void convertColor(Blackhole bh) {
+        for(String color : colors) {
+            bh.consume(XfdfObjectReadingUtils.convertColorFloatsFromString(color));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INPUTS)
+    public void convertColorIntoBuffer(Blackhole bh) {
+        for(String color : colors) {
+            XfdfObjectReadingUtils.convertColorFloatsFromString(color, rgbBuffer);
+            bh.consume(rgbBuffer[0]);
+        }
+    }
+}
@@ -0,0 +1,572 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.io.font.constants.StandardFonts;
+import com.itextpdf.kernel.font.PdfFont;
+import com.itextpdf.kernel.font.PdfFontFactory;
+import com.itextpdf.kernel.geom.PageSize;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfWriter;
+import com.itextpdf.kernel.pdf.canvas.PdfCanvas;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates a corpus of synthetic PDF documents with matching XFDF files for load tests, and a manifest that
+ * lists them in the CSV form read by {@code --batch} and {@link LoadTest}. The number of pages and annotations
+ * of each document, the mix of annotation types, and how many annotations have a popup, rich text contents or
+ * replies are all configurable. Everything is derived from the seed, so the same options always produce the
+ * same XFDF files and the same pages; only the dates and IDs that iText writes to the PDF documents differ.
+ * <p>
+ * Replies are text annotations that reply to an earlier annotation on the same page, up to a maximum thread
+ * depth. A configurable share of them is written before the annotation they reply to, which the merge has to
+ * resolve once the parent turns up.
+ */
+public final class SyntheticCorpus {
+
+    /** The annotation types that are read from XFDF files and merged. */
+    static final String[] TYPES = {"text", "highlight", "underline", "strikeout", "squiggly", "caret", "line",
+            "square", "circle", "polygon", "polyline", "ink"};
+
+    private static final String[] COLORS = {"#FFCF00", "#FF0000", "#0000FF", "#00C000", "#8040FF", "#000000"};
+    private static final String[] LINE_ENDINGS = {"None", "OpenArrow", "ClosedArrow", "Circle", "Square"};
+    private static final String[] WORDS = {"the", "figure", "table", "should", "be", "moved", "please", "check",
+            "this", "value", "reference", "section", "typo", "rephrase", "missing", "unit", "consistent", "see"};
+    private static final String MANIFEST = "manifest.csv";
+
+    private int documents = 20;
+    private int minPages = 1;
+    private int maxPages = 50;
+    private int minAnnotations = 100;
+    private int maxAnnotations = 2000;
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+    private double popupRatio = 0.3;
+    private int minRichText;
+    private int maxRichText = 400;
+    private double replyRatio = 0.2;
+    private int replyDepth = 3;
+    private double forwardReplyRatio = 0.05;
+    private long seed = 1;
+
+    SyntheticCorpus() {
+        // roughly what review exports look like: mostly text markup and comments
+        setMix("highlight=30,text=20,underline=8,strikeout=8,squiggly=4,caret=6,line=4,square=4,circle=3,"
+                + "polygon=2,polyline=2,ink=3");
+    }
+
+    SyntheticCorpus setDocuments(int documents) {
+        this.documents = documents;
+        return this;
+    }
+
+    SyntheticCorpus setPages(int minPages, int maxPages) {
+        this.minPages = minPages;
+        this.maxPages = maxPages;
+        return this;
+    }
+
+    SyntheticCorpus setAnnotations(int minAnnotations, int maxAnnotations) {
+        this.minAnnotations = minAnnotations;
+        this.maxAnnotations = maxAnnotations;
+        return this;
+    }
+
+    /**
+     * @param mix  comma-separated weights by annotation type, e.g. {@code highlight=3,text=1}; types that are
+     *             left out are not generated, except as replies
+     */
+    SyntheticCorpus setMix(String mix) {
+        this.mix.clear();
+        for(String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if(parts.length != 2 || !isType(parts[0])) {
+                throw new IllegalArgumentException("Invalid annotation type weight " + entry);
+            }
+            int weight = Integer.parseInt(parts[1]);
+            if(weight < 0) {
+                throw new IllegalArgumentException("Annotation type weight must not be negative");
+            }
+            this.mix.put(parts[0], weight);
+        }
+        if(this.mix.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+            throw new IllegalArgumentException("At least one annotation type must have a positive weight");
+        }
+        return this;
+    }
+
+    /**
+     * @param popupRatio  the share of annotations, other than replies, with a popup
+     */
+    SyntheticCorpus setPopupRatio(double popupRatio) {
+        this.popupRatio = popupRatio;
+        return this;
+    }
+
+    /**
+     * @param minRichText  the minimum length of rich text contents, in characters of text
+     * @param maxRichText  the maximum length of rich text contents, or 0 for plain text contents only
+     */
+    SyntheticCorpus setRichText(int minRichText, int maxRichText) {
+        this.minRichText = minRichText;
+        this.maxRichText = maxRichText;
+        return this;
+    }
+
+    /**
+     * @param replyRatio  the share of annotations that reply to another annotation
+     */
+    SyntheticCorpus setReplyRatio(double replyRatio) {
+        this.replyRatio = replyRatio;
+        return this;
+    }
+
+    /**
+     * @param replyDepth  the maximum number of replies in a thread below its first annotation, or 0 for no replies
+     */
+    SyntheticCorpus setReplyDepth(int replyDepth) {
+        this.replyDepth = replyDepth;
+        return this;
+    }
+
+    /**
+     * @param forwardReplyRatio  the share of replies that come before their parent annotation in the XFDF file
+     */
+    SyntheticCorpus setForwardReplyRatio(double forwardReplyRatio) {
+        this.forwardReplyRatio = forwardReplyRatio;
+        return this;
+    }
+
+    SyntheticCorpus setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Writes the documents, the XFDF files and the manifest to a directory. The outputs listed in the manifest
+     * go to the {@code out} subdirectory.
+     *
+     * @return the path of the manifest
+     */
+    Path write(Path directory) throws IOException {
+        Path outDirectory = directory.resolve("out");
+        Files.createDirectories(outDirectory);
+        Path manifest = directory.resolve(MANIFEST);
+        long pageTotal = 0;
+        long annotTotal = 0;
+        try(Writer w = Files.newBufferedWriter(manifest, StandardCharsets.UTF_8)) {
+            w.write("# pdf,xfdf,output; generated by SyntheticCorpus with seed " + seed + "\n");
+            for(int i = 0; i < documents; i++) {
+                Random random = new Random(seed * 1_000_003L + i);
+                int pageCount = between(random, minPages, maxPages);
+                int annotCount = between(random, minAnnotations, maxAnnotations);
+                String name = String.format(Locale.ROOT, "doc-%05d", i);
+                Path pdf = directory.resolve(name + ".pdf").toAbsolutePath();
+                Path xfdf = directory.resolve(name + ".xfdf").toAbsolutePath();
+                writePdf(pdf, pageCount, random);
+                writeXfdf(xfdf, pageCount, annotCount, random);
+                w.write(pdf + "," + xfdf + "," + outDirectory.resolve(name + ".pdf").toAbsolutePath() + "\n");
+                pageTotal += pageCount;
+                annotTotal += annotCount;
+            }
+        }
+        System.out.println("Wrote " + documents + " documents with " + pageTotal + " pages and " + annotTotal
+                + " annotations to " + directory);
+        return manifest;
+    }
+
+    private static void writePdf(Path file, int pageCount, Random random) throws IOException {
+        try(PdfDocument pdfDoc = new PdfDocument(new PdfWriter(file.toString()))) {
+            PdfFont font = PdfFontFactory.createFont(StandardFonts.TIMES_ROMAN);
+            for(int p = 0; p < pageCount; p++) {
+                PdfCanvas canvas = new PdfCanvas(pdfDoc.addNewPage(PageSize.A4));
+                canvas.beginText().setFontAndSize(font, 11).setLeading(14).moveText(72, 770);
+                for(int line = 0; line < 48; line++) {
+                    canvas.newlineShowText(words(random, 12));
+                }
+                canvas.endText();
+            }
+        }
+    }
+
+    private void writeXfdf(Path file, int pageCount, int annotCount, Random random) throws IOException {
+        int weightTotal = mix.values().stream().mapToInt(Integer::intValue).sum();
+        List<Entry> entries = new ArrayList<>(annotCount);
+        // annotations that can still be replied to, i.e. whose thread isn't at the maximum depth yet
+        List<Entry> parents = new ArrayList<>();
+        for(int i = 0; i < annotCount; i++) {
+            Entry entry;
+            if(replyDepth > 0 && !parents.isEmpty() && random.nextDouble() < replyRatio) {
+                // reply to one of the most recent annotations, like a discussion in a viewer
+                Entry parent = parents.get(parents.size() - 1 - random.nextInt(Math.min(parents.size(), 64)));
+                entry = new Entry(i, parent.page, parent.depth + 1);
+                entry.key = random.nextDouble() < forwardReplyRatio ? parent.key - 0.5 : i;
+                entry.xml = reply(entry, parent, random);
+            } else {
+                entry = new Entry(i, random.nextInt(pageCount), 0);
+                entry.key = i;
+                entry.xml = annotation(entry, pickType(random, weightTotal), random);
+            }
+            entries.add(entry);
+            if(entry.depth < replyDepth) {
+                parents.add(entry);
+            }
+        }
+        // forward replies have a key just below their parent's, so they end up in front of it
+        entries.sort(Comparator.comparingDouble(e -> e.key));
+        try(Writer w = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8), 1 << 16)) {
+            w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<xfdf xmlns=\"http://ns.adobe.com/xfdf/\" xml:space=\"preserve\">\n<annots>\n");
+            for(Entry entry : entries) {
+                w.write(entry.xml);
+            }
+            w.write("</annots>\n</xfdf>\n");
+        }
+    }
+
+    private String pickType(Random random, int weightTotal) {
+        int r = random.nextInt(weightTotal);
+        for(Map.Entry<String, Integer> e : mix.entrySet()) {
+            r -= e.getValue();
+            if(r < 0) {
+                return e.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private String annotation(Entry entry, String type, Random random) {
+        float x = 50 + random.nextFloat() * 350;
+        float y = 80 + random.nextFloat() * 600;
+        StringBuilder sb = new StringBuilder(512).append('<').append(type);
+        appendCommon(sb, entry, random);
+        StringBuilder children = new StringBuilder();
+        boolean contents = random.nextBoolean();
+        switch(type) {
+            case "text":
+                entry.rect = appendRect(sb, x, y, 20, 20);
+                sb.append(" icon=\"Comment\"");
+                contents = true;
+                break;
+            case "highlight":
+            case "underline":
+            case "strikeout":
+            case "squiggly": {
+                // one to three lines of text
+                int lines = 1 + random.nextInt(3);
+                float width = 60 + random.nextFloat() * 150;
+                entry.rect = appendRect(sb, x, y - 14 * (lines - 1), width, 14 * lines);
+                sb.append(" coords=\"");
+                for(int l = 0; l < lines; l++) {
+                    float top = y + 14 - 14 * l;
+                    sb.append(l == 0 ? "" : ",").append(format(x)).append(',').append(format(top)).append(',')
+                            .append(format(x + width)).append(',').append(format(top)).append(',')
+                            .append(format(x)).append(',').append(format(top - 14)).append(',')
+                            .append(format(x + width)).append(',').append(format(top - 14));
+                }
+                sb.append('"');
+                if("highlight".equals(type)) {
+                    sb.append(" opacity=\"0.5\"");
+                }
+                break;
+            }
+            case "caret":
+                entry.rect = appendRect(sb, x, y, 10, 12);
+                contents = true;
+                break;
+            case "line": {
+                float x2 = x + 20 + random.nextFloat() * 150;
+                float y2 = y + random.nextFloat() * 100 - 50;
+                entry.rect = appendRect(sb, Math.min(x, x2) - 5, Math.min(y, y2) - 5, Math.abs(x2 - x) + 10,
+                        Math.abs(y2 - y) + 10);
+                sb.append(" start=\"").append(format(x)).append(',').append(format(y)).append("\" end=\"")
+                        .append(format(x2)).append(',').append(format(y2)).append("\" head=\"")
+                        .append(LINE_ENDINGS[random.nextInt(LINE_ENDINGS.length)]).append("\" tail=\"")
+                        .append(LINE_ENDINGS[random.nextInt(LINE_ENDINGS.length)]).append("\" width=\"")
+                        .append(1 + random.nextInt(3)).append('"');
+                break;
+            }
+            case "square":
+            case "circle":
+                entry.rect = appendRect(sb, x, y, 30 + random.nextFloat() * 150, 20 + random.nextFloat() * 100);
+                sb.append(" width=\"").append(1 + random.nextInt(3)).append('"');
+                if(random.nextInt(4) == 0) {
+                    sb.append(" interior-color=\"#FFFFE0\"");
+                }
+                break;
+            case "polygon":
+            case "polyline": {
+                float width = 40 + random.nextFloat() * 150;
+                float height = 40 + random.nextFloat() * 100;
+                entry.rect = appendRect(sb, x, y, width, height);
+                if("polyline".equals(type)) {
+                    sb.append(" head=\"None\" tail=\"OpenArrow\"");
+                }
+                children.append("<vertices>").append(points(random, 3 + random.nextInt(6), x, y, width, height))
+                        .append("</vertices>");
+                break;
+            }
+            case "ink": {
+                float width = 40 + random.nextFloat() * 150;
+                float height = 20 + random.nextFloat() * 80;
+                entry.rect = appendRect(sb, x, y, width, height);
+                sb.append(" width=\"1.5\"");
+                children.append("<inklist>");
+                for(int g = 1 + random.nextInt(3); g > 0; g--) {
+                    children.append("<gesture>").append(points(random, 5 + random.nextInt(16), x, y, width, height))
+                            .append("</gesture>");
+                }
+                children.append("</inklist>");
+                break;
+            }
+            default:
+                throw new IllegalArgumentException(type);
+        }
+        sb.append('>');
+        if(contents) {
+            appendContents(sb, random);
+        }
+        sb.append(children);
+        if(random.nextDouble() < popupRatio) {
+            sb.append("<popup flags=\"print,nozoom,norotate\" open=\"no\" page=\"").append(entry.page).append('"');
+            appendRect(sb, Math.min(x + 30, 380), Math.max(y - 100, 0), 180, 120);
+            sb.append("/>");
+        }
+        return sb.append("</").append(type).append(">\n").toString();
+    }
+
+    private String reply(Entry entry, Entry parent, Random random) {
+        StringBuilder sb = new StringBuilder(512).append("<text");
+        appendCommon(sb, entry, random);
+        entry.rect = parent.rect;
+        sb.append(" rect=\"").append(entry.rect).append("\" icon=\"Comment\" inreplyto=\"a")
+                .append(parent.index).append("\">");
+        appendContents(sb, random);
+        return sb.append("</text>\n").toString();
+    }
+
+    private static void appendCommon(StringBuilder sb, Entry entry, Random random) {
+        int reviewer = random.nextInt(8);
+        sb.append(" name=\"a").append(entry.index).append("\" page=\"").append(entry.page).append("\" color=\"")
+                .append(COLORS[random.nextInt(COLORS.length)]).append("\" flags=\"print\" title=\"Reviewer ")
+                .append(reviewer).append(String.format(Locale.ROOT,
+                        "\" date=\"D:202203%02d%02d%02d00+01'00'\" creationdate=\"D:20220301120000+01'00'\"",
+                        1 + random.nextInt(28), random.nextInt(24), random.nextInt(60)));
+    }
+
+    private void appendContents(StringBuilder sb, Random random) {
+        String text = words(random, 4 + random.nextInt(20));
+        sb.append("<contents>").append(text).append(" &amp; more</contents>");
+        if(maxRichText <= 0) {
+            return;
+        }
+        int length = between(random, minRichText, maxRichText);
+        sb.append("<contents-richtext><body xmlns=\"http://www.w3.org/1999/xhtml\"")
+                .append(" xmlns:xfa=\"http://www.xfa.org/schema/xfa-data/1.0/\" xfa:APIVersion=\"Acrobat:22.1.0\"")
+                .append(" xfa:spec=\"2.0.2\"><p dir=\"ltr\">");
+        int written = 0;
+        while(written < length) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            if(random.nextInt(10) == 0) {
+                sb.append("<span style=\"font-weight:bold\">").append(word).append("</span> ");
+            } else if(random.nextInt(30) == 0) {
+                sb.append("</p><p dir=\"ltr\">").append(word).append(' ');
+            } else {
+                sb.append(word).append(' ');
+            }
+            written += word.length() + 1;
+        }
+        sb.append("</p></body></contents-richtext>");
+    }
+
+    /**
+     * Appends a {@code rect} attribute.
+     *
+     * @return the value of the attribute
+     */
+    private static String appendRect(StringBuilder sb, float x, float y, float width, float height) {
+        String rect = format(x) + ',' + format(y) + ',' + format(x + width) + ',' + format(y + height);
+        sb.append(" rect=\"").append(rect).append('"');
+        return rect;
+    }
+
+    private static String points(Random random, int count, float x, float y, float width, float height) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "" : ";").append(format(x + random.nextFloat() * width)).append(',')
+                    .append(format(y + random.nextFloat() * height));
+        }
+        return sb.toString();
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    private static String format(float f) {
+        return String.format(Locale.ROOT, "%.2f", f);
+    }
+
+    private static int between(Random random, int min, int max) {
+        return min + random.nextInt(max - min + 1);
+    }
+
+    private static boolean isType(String type) {
+        for(String t : TYPES) {
+            if(t.equals(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * An annotation of the XFDF file being generated, with the position it will be written at.
+     */
+    private static final class Entry {
+        final int index;
+        final int page;
+        final int depth;
+        double key;
+        String xml;
+        String rect;
+
+        Entry(int index, int page, int depth) {
+            this.index = index;
+            this.page = page;
+            this.depth = depth;
+        }
+    }
+
+    private static final String USAGE =
+            "Usage: SyntheticCorpus [--documents N] [--pages MIN-MAX] [--annotations MIN-MAX]\n"
+            + "         [--mix TYPE=WEIGHT,...] [--popups RATIO] [--richtext MIN-MAX] [--replies RATIO]\n"
+            + "         [--reply-depth N] [--forward-replies RATIO] [--seed N] directory";
+
+    public static void main(String[] args) throws IOException {
+        SyntheticCorpus corpus = new SyntheticCorpus();
+        int argIx = 0;
+        try {
+            while(argIx < args.length - 1 && args[argIx].startsWith("--")) {
+                String opt = args[argIx++];
+                String value = args[argIx++];
+                int[] range;
+                switch(opt) {
+                    case "--documents":
+                        corpus.setDocuments(Integer.parseInt(value));
+                        break;
+                    case "--pages":
+                        range = parseRange(value, 1);
+                        corpus.setPages(range[0], range[1]);
+                        break;
+                    case "--annotations":
+                        range = parseRange(value, 0);
+                        corpus.setAnnotations(range[0], range[1]);
+                        break;
+                    case "--mix":
+                        corpus.setMix(value);
+                        break;
+                    case "--popups":
+                        corpus.setPopupRatio(parseRatio(value));
+                        break;
+                    case "--richtext":
+                        range = parseRange(value, 0);
+                        corpus.setRichText(range[0], range[1]);
+                        break;
+                    case "--replies":
+                        corpus.setReplyRatio(parseRatio(value));
+                        break;
+                    case "--reply-depth":
+                        corpus.setReplyDepth(parseRange(value, 0)[0]);
+                        break;
+                    case "--forward-replies":
+                        corpus.setForwardReplyRatio(parseRatio(value));
+                        break;
+                    case "--seed":
+                        corpus.setSeed(Long.parseLong(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + opt);
+                }
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        if(argIx != args.length - 1) {
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        corpus.write(Paths.get(args[argIx]));
+    }
+
+    /**
+     * Parses {@code MIN-MAX}, or a single number for both.
+     */
+    private static int[] parseRange(String value, int lowest) {
+        int dash = value.indexOf('-');
+        int min = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+        int max = dash < 0 ? min : Integer.parseInt(value.substring(dash + 1));
+        if(min < lowest || max < min) {
+            throw new IllegalArgumentException("Invalid range " + value);
+        }
+        return new int[] {min, max};
+    }
+
+    private static double parseRatio(String value) {
+        double ratio = Double.parseDouble(value);
+        if(ratio < 0 || ratio > 1) {
+            throw new IllegalArgumentException("Ratio must be between 0 and 1: " + value);
+        }
+        return ratio;
+    }
+}
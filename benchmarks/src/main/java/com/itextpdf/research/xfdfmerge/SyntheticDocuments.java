@@ -0,0 +1,118 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates deterministic synthetic inputs for the benchmarks.
+ */
+final class SyntheticDocuments {
+
+    private static final String[] MARKUP_TYPES = {"highlight", "underline", "strikeout", "squiggly"};
+    private static final String[] COLORS = {"#FFCF00", "#FF0000", "#0000FF", "#00C000", "#8040FF"};
+
+    private SyntheticDocuments() {
+    }
+
+    /**
+     * Creates a PDF document with the given number of empty A4 pages.
+     */
+    static byte[] createPdf(int pageCount) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try(PdfDocument pdfDoc = new PdfDocument(new PdfWriter(baos))) {
+            for(int i = 0; i < pageCount; i++) {
+                pdfDoc.addNewPage();
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Creates an XFDF file with the given number of annotations spread over the given number of pages.
+     * Most annotations are text markup, and every fifth one is a comment, some of which are replies
+     * to the preceding annotation. Every tenth annotation is a caret.
+     */
+    static byte[] createXfdf(int annotCount, int pageCount) {
+        Random random = new Random(annotCount);
+        StringBuilder sb = new StringBuilder(annotCount * 400);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<xfdf xmlns=\"http://ns.adobe.com/xfdf/\" xml:space=\"preserve\">\n<annots>\n");
+        for(int i = 0; i < annotCount; i++) {
+            int page = i % pageCount;
+            float x = 50 + random.nextFloat() * 400;
+            float y = 50 + random.nextFloat() * 700;
+            String color = COLORS[random.nextInt(COLORS.length)];
+            String common = String.format(Locale.ROOT,
+                    " name=\"annot-%d\" page=\"%d\" color=\"%s\" flags=\"print\" date=\"D:20220301120000+01'00'\""
+                            + " creationdate=\"D:20220301120000+01'00'\" title=\"Reviewer %d\" subject=\"Review\"",
+                    i, page, color, i % 7);
+            if(i % 10 == 9) {
+                sb.append("<caret").append(common).append(rect(x, y, 10, 12)).append(">")
+                        .append("<contents>Insert text here</contents></caret>\n");
+            } else if(i % 5 == 4) {
+                sb.append("<text").append(common).append(rect(x, y, 20, 20)).append(" icon=\"Comment\"");
+                if(i % 3 == 0) {
+                    sb.append(" inreplyto=\"annot-").append(i - 1).append('"');
+                }
+                sb.append(">")
+                        .append("<contents>Comment number ").append(i)
+                        .append(" with some text that wraps &amp; needs escaping.</contents>")
+                        .append("<contents-richtext><body xmlns=\"http://www.w3.org/1999/xhtml\"")
+                        .append(" xmlns:xfa=\"http://www.xfa.org/schema/xfa-data/1.0/\"><p dir=\"ltr\">Comment number ")
+                        .append(i).append(" with <span style=\"font-weight:bold\">rich</span> text</p></body>")
+                        .append("</contents-richtext>")
+                        .append("<popup flags=\"print,nozoom,norotate\" open=\"no\" page=\"").append(page).append('"')
+                        .append(rect(x + 30, y - 100, 180, 120)).append("/></text>\n");
+            } else {
+                String type = MARKUP_TYPES[random.nextInt(MARKUP_TYPES.length)];
+                float width = 40 + random.nextFloat() * 200;
+                sb.append('<').append(type).append(common).append(rect(x, y, width, 14))
+                        .append(String.format(Locale.ROOT,
+                                " coords=\"%.4f,%.4f,%.4f,%.4f,%.4f,%.4f,%.4f,%.4f\"/>\n",
+                                x, y + 14, x + width, y + 14, x, y, x + width, y));
+            }
+        }
+        sb.append("</annots>\n</xfdf>\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String rect(float x, float y, float width, float height) {
+        return String.format(Locale.ROOT, " rect=\"%.4f,%.4f,%.4f,%.4f\"", x, y, x + width, y + height);
+    }
+}
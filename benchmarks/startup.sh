@@ -0,0 +1,48 @@
+#!/bin/sh
+
+# Startup benchmark: merges the small training inputs in src/training RUNS times with each build of the
+# command-line tool that is up to date, one JVM or process per run, and reports the wall-clock time per run.
+# Build what should be compared in the parent directory first: "mvn package" for the plain jar, and
+# "mvn package -Pappcds" and/or "mvn package -Pnative" for the fast-start builds.
+#
+# usage: benchmarks/startup.sh [RUNS]
+
+cd "$(dirname "$0")/.." || exit 1
+RUNS=${1:-20}
+JAR=target/xfdf-merge-1.0-SNAPSHOT-jar-with-dependencies.jar
+OUT=$(mktemp)
+trap 'rm -f "$OUT"' EXIT
+
+run() {
+    name=$1
+    shift
+    # the first run only warms up the file system cache
+    if ! "$@" src/training/training.pdf src/training/training.xfdf "$OUT"; then
+        echo "$name failed"
+        return
+    fi
+    i=0
+    while [ $i -lt "$RUNS" ]; do
+        start=$(date +%s%N)
+        "$@" src/training/training.pdf src/training/training.xfdf "$OUT"
+        end=$(date +%s%N)
+        echo $(( (end - start) / 1000000 ))
+        i=$((i + 1))
+    done | sort -n | awk -v name="$name" '{ t[NR] = $1; sum += $1 }
+        END { printf "%-8s %8d %8d %8d %8d\n", name, t[1], t[int((NR + 1) / 2)], sum / NR, t[NR] }'
+}
+
+if [ ! -f "$JAR" ]; then
+    echo "$JAR not found, run mvn package first"
+    exit 1
+fi
+echo "# $(java -version 2>&1 | sed -n 2p), $(nproc) CPU core(s)"
+echo "# $RUNS runs each, wall-clock milliseconds per run"
+printf "%-8s %8s %8s %8s %8s\n" build min median mean max
+run jar java -jar "$JAR"
+if [ target/xfdf-merge.jsa -nt "$JAR" ]; then
+    run appcds java -XX:SharedArchiveFile=target/xfdf-merge.jsa -jar "$JAR"
+fi
+if [ target/xfdf-merge -nt "$JAR" ]; then
+    run native target/xfdf-merge
+fi
@@ -0,0 +1,394 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.forms.xfdf;
+
+import com.itextpdf.kernel.pdf.PdfString;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the annotations read by {@link XfdfAnnotFactory} or {@link XfdfStreamingAnnotFactory} in a compact binary
+ * format, and reads them back, so that an XFDF file doesn't have to be parsed again.
+ * <p>
+ * After a header with the format version, the format consists of the skipped annotation and unsupported attribute
+ * counts, the annotations, as {@link CompactAnnotObject}s, and the names and values of the form fields that have a
+ * value. Numbers are written as variable-length integers, and every distinct string is written only once: later
+ * occurrences refer to the first one by index. Colors, dates, titles and the like repeat
+ * a lot in review XFDF files, so the result is typically about half the size of the XML, and much faster to read.
+ */
+public final class AnnotObjectCodec {
+
+    /**
+     * The version of the format, which is changed whenever the format or the output of the XFDF readers changes.
+     * Data written with a different version is rejected when it is read.
+     */
+    public static final int VERSION = 4;
+
+    private static final int MAGIC = 0x58464443; // "XFDC"
+
+    private static final int INK = 1;
+    private static final int POPUP = 2;
+
+    private AnnotObjectCodec() {
+    }
+
+    /**
+     * Writes annotations, form fields, the number of skipped annotations by element name and the number of
+     * unsupported attributes by attribute name. Of the fields, only the fully qualified name and the value are
+     * kept, and fields without a value are left out.
+     *
+     * @param annots                 the annotations as read from an XFDF file.
+     * @param fields                 the form fields as read from the same file.
+     * @param skippedAnnotations     the skipped annotation counts of the XFDF reader.
+     * @param unsupportedAttributes  the unsupported attribute counts of the XFDF reader.
+     * @param out                    the stream to write to, which is not closed.
+     */
+    public static void write(List<AnnotObject> annots, List<FieldObject> fields,
+            Map<String, Integer> skippedAnnotations, Map<String, Integer> unsupportedAttributes, OutputStream out)
+            throws IOException {
+        Writer writer = new Writer(out);
+        writer.writeFixedInt(MAGIC);
+        writer.writeFixedInt(VERSION);
+        writer.writeCounts(skippedAnnotations);
+        writer.writeCounts(unsupportedAttributes);
+        writer.writeInt(annots.size());
+        for (AnnotObject annot : annots) {
+            writer.writeAnnot(CompactAnnotObject.of(annot));
+        }
+        int valueCount = 0;
+        for (FieldObject field : fields) {
+            if (field.getName() != null && field.getValue() != null) {
+                valueCount++;
+            }
+        }
+        writer.writeInt(valueCount);
+        for (FieldObject field : fields) {
+            if (field.getName() != null && field.getValue() != null) {
+                writer.writeString(field.getName());
+                writer.writeString(field.getValue());
+            }
+        }
+        writer.flush();
+        out.flush();
+    }
+
+    /**
+     * Reads annotations written by {@link #write}, from the current position of the buffer.
+     *
+     * @param in                     the buffer to read from.
+     * @param fields                 the list to which the form fields are added.
+     * @param skippedAnnotations     the map to which the skipped annotation counts are added.
+     * @param unsupportedAttributes  the map to which the unsupported attribute counts are added.
+     * @return the annotations, in the order in which they were written.
+     * @throws IllegalArgumentException if the data was not written by {@link #write}, is truncated, or was written
+     *                                  with a different {@link #VERSION}
+     */
+    public static List<AnnotObject> read(ByteBuffer in, List<FieldObject> fields,
+            Map<String, Integer> skippedAnnotations, Map<String, Integer> unsupportedAttributes) {
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Not an annotation cache entry");
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported annotation cache version " + version);
+            }
+            Reader reader = new Reader(in);
+            reader.readCounts(skippedAnnotations);
+            reader.readCounts(unsupportedAttributes);
+            int count = reader.readCount();
+            List<AnnotObject> annots = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                annots.add(reader.readAnnot());
+            }
+            int fieldCount = reader.readCount();
+            for (int i = 0; i < fieldCount; i++) {
+                FieldObject field = new FieldObject();
+                field.setName(reader.readString());
+                field.setValue(reader.readString());
+                fields.add(field);
+            }
+            return annots;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated annotation cache entry", e);
+        }
+    }
+
+    private static final class Writer {
+        private final OutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final byte[] buffer = new byte[1 << 16];
+        private int count;
+
+        Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        void writeAnnot(CompactAnnotObject annot) throws IOException {
+            int flags = 0;
+            if (annot instanceof InkAnnotObject) {
+                flags |= INK;
+            }
+            if (annot.getPopup() != null) {
+                flags |= POPUP;
+            }
+            writeInt(flags);
+            writeString(annot.getName());
+            // the attributes in the order they were read, each preceded by its key; invalid page and rect values
+            // are among the other attributes
+            List<AttributeObject> others = annot.getOtherAttributes();
+            int otherIndex = 0;
+            writeInt(annot.getAttributeCount());
+            for (int i = 0; i < annot.getAttributeCount(); i++) {
+                int key = annot.getAttributeKey(i);
+                // shifted, so that OTHER_KEY is 0
+                writeInt(key + 1);
+                if (key == CompactAnnotObject.OTHER_KEY) {
+                    AttributeObject attribute = others.get(otherIndex++);
+                    writeString(attribute.getName());
+                    writeString(attribute.getValue());
+                } else if (key == CompactAnnotObject.PAGE_KEY) {
+                    int page = annot.getDecodedPage();
+                    // zigzag, so that small negative page numbers stay short
+                    writeInt((page << 1) ^ (page >> 31));
+                    writeString(annot.getPageValue());
+                } else if (key == CompactAnnotObject.RECT_KEY) {
+                    float[] rect = annot.getDecodedRectValues();
+                    writeInt(rect.length);
+                    for (float value : rect) {
+                        writeFixedInt(Float.floatToRawIntBits(value));
+                    }
+                    writeString(annot.getRectValue());
+                } else {
+                    writeString(annot.getValue(key));
+                }
+            }
+            writeString(annot.getContents() == null ? null : annot.getContents().getValue());
+            writeString(annot.getContentsRichText() == null ? null : annot.getContentsRichText().getValue());
+            writeString(annot.getVertices());
+            if (annot instanceof InkAnnotObject) {
+                List<String> gestures = ((InkAnnotObject) annot).getGestures();
+                writeInt(gestures.size());
+                for (String gesture : gestures) {
+                    writeString(gesture);
+                }
+            }
+            if (annot.getPopup() != null) {
+                writeAnnot(CompactAnnotObject.of(annot.getPopup()));
+            }
+        }
+
+        void writeCounts(Map<String, Integer> counts) throws IOException {
+            writeInt(counts.size());
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                writeString(entry.getKey());
+                writeInt(entry.getValue());
+            }
+        }
+
+        /**
+         * Writes null as 0, a string that was written before as its index + 1, and any other string as the next
+         * index followed by its UTF-8 encoding.
+         */
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                writeInt(0);
+                return;
+            }
+            Integer index = strings.get(s);
+            if (index != null) {
+                writeInt(index + 1);
+                return;
+            }
+            strings.put(s, strings.size());
+            writeInt(strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            if (bytes.length > buffer.length - count) {
+                flush();
+                if (bytes.length > buffer.length) {
+                    out.write(bytes);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+
+        void writeInt(int value) throws IOException {
+            if (buffer.length - count < 5) {
+                flush();
+            }
+            while ((value & ~0x7f) != 0) {
+                buffer[count++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[count++] = (byte) value;
+        }
+
+        /**
+         * Writes an int in 4 bytes, big-endian like {@link ByteBuffer#getInt()}.
+         */
+        void writeFixedInt(int value) throws IOException {
+            if (buffer.length - count < 4) {
+                flush();
+            }
+            buffer[count++] = (byte) (value >>> 24);
+            buffer[count++] = (byte) (value >>> 16);
+            buffer[count++] = (byte) (value >>> 8);
+            buffer[count++] = (byte) value;
+        }
+
+        void flush() throws IOException {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer in;
+        private final List<String> strings = new ArrayList<>();
+        private byte[] bytes = new byte[256];
+
+        Reader(ByteBuffer in) {
+            this.in = in;
+        }
+
+        CompactAnnotObject readAnnot() {
+            int flags = readInt();
+            CompactAnnotObject annot = (flags & INK) != 0 ? new InkAnnotObject() : new CompactAnnotObject();
+            annot.setName(readString());
+            int attributeCount = readInt();
+            for (int i = 0; i < attributeCount; i++) {
+                int key = readInt() - 1;
+                if (key == CompactAnnotObject.OTHER_KEY) {
+                    annot.addOtherAttribute(new AttributeObject(readString(), readString()));
+                } else if (key == CompactAnnotObject.PAGE_KEY) {
+                    int page = readInt();
+                    annot.setPage((page >>> 1) ^ -(page & 1), readString());
+                } else if (key == CompactAnnotObject.RECT_KEY) {
+                    int length = readInt();
+                    if (length != 2 && length != 4) {
+                        throw new IllegalArgumentException("Invalid rect in annotation cache entry");
+                    }
+                    float[] rect = new float[length];
+                    for (int j = 0; j < rect.length; j++) {
+                        rect[j] = in.getFloat();
+                    }
+                    annot.setRectValues(rect, readString());
+                } else if (key >= 0 && key < CompactAnnotObject.SLOT_COUNT) {
+                    annot.setValue(key, readString());
+                } else {
+                    throw new IllegalArgumentException("Invalid attribute key in annotation cache entry");
+                }
+            }
+            String contents = readString();
+            if (contents != null) {
+                annot.setContents(new PdfString(contents));
+            }
+            String richText = readString();
+            if (richText != null) {
+                annot.setContentsRichText(new PdfString(richText));
+            }
+            annot.setVertices(readString());
+            if ((flags & INK) != 0) {
+                int gestureCount = readInt();
+                for (int i = 0; i < gestureCount; i++) {
+                    ((InkAnnotObject) annot).addGesture(readString());
+                }
+            }
+            if ((flags & POPUP) != 0) {
+                annot.setPopup(readAnnot());
+            }
+            return annot;
+        }
+
+        String readString() {
+            int ref = readInt();
+            if (ref == 0) {
+                return null;
+            }
+            if (ref <= strings.size()) {
+                return strings.get(ref - 1);
+            }
+            if (ref != strings.size() + 1) {
+                throw new IllegalArgumentException("Invalid string reference in annotation cache entry");
+            }
+            int length = readCount();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+            }
+            in.get(bytes, 0, length);
+            String s = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+
+        void readCounts(Map<String, Integer> counts) {
+            int size = readCount();
+            for (int i = 0; i < size; i++) {
+                counts.merge(readString(), readInt(), Integer::sum);
+            }
+        }
+
+        /**
+         * Reads the number of items that follow, each of which takes at least one byte.
+         */
+        int readCount() {
+            int count = readInt();
+            if (count < 0 || count > in.remaining()) {
+                throw new IllegalArgumentException("Truncated annotation cache entry");
+            }
+            return count;
+        }
+
+        int readInt() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                byte b = in.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Invalid number in annotation cache entry");
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.forms.xfdf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An {@link AnnotObject} that keeps the attributes known to the merge in fixed slots instead of a list of
+ * {@link AttributeObject}s, so that reading an attribute is an array access rather than a scan with string
+ * comparisons. The {@code page} and {@code rect} attributes are decoded as soon as they are set, and kept as
+ * strings as well. A {@code page} or {@code rect} value that can't be decoded is only rejected when it is used,
+ * so that a single malformed annotation doesn't prevent the others from being read.
+ * <p>
+ * The {@link AnnotObject} accessors still work: {@link #getAttributeValue(String)}, {@link #getAttribute(String)}
+ * and {@link #getAttributes()} look up the slot by name, and return the values as they were set, in the order
+ * they were set. The list returned by {@link #getAttributes()} can't be modified; attributes are added with
+ * {@link #addAttribute(AttributeObject)}. Attributes without a slot are kept in the list of the superclass.
+ */
+public class CompactAnnotObject extends AnnotObject {
+
+    public static final int COLOR = 0;
+    public static final int DATE = 1;
+    public static final int FLAGS = 2;
+    public static final int NAME = 3;
+    public static final int TITLE = 4;
+    public static final int CREATION_DATE = 5;
+    public static final int OPACITY = 6;
+    public static final int SUBJECT = 7;
+    public static final int INTENT = 8;
+    public static final int ICON = 9;
+    public static final int STATE = 10;
+    public static final int STATE_MODEL = 11;
+    public static final int IN_REPLY_TO = 12;
+    public static final int REPLY_TYPE = 13;
+    public static final int OPEN = 14;
+    public static final int COORDS = 15;
+    public static final int FRINGE = 16;
+    public static final int WIDTH = 17;
+    public static final int DASHES = 18;
+    public static final int STYLE = 19;
+    public static final int INTENSITY = 20;
+    public static final int INTERIOR_COLOR = 21;
+    public static final int START = 22;
+    public static final int END = 23;
+    public static final int HEAD = 24;
+    public static final int TAIL = 25;
+    public static final int LEADER_LENGTH = 26;
+    public static final int LEADER_EXTENDED = 27;
+    public static final int LEADER_OFFSET = 28;
+    public static final int CAPTION = 29;
+    public static final int CAPTION_STYLE = 30;
+
+    /**
+     * The attribute names, indexed by slot.
+     */
+    private static final String[] SLOT_NAMES = {
+            XfdfConstants.COLOR,
+            XfdfConstants.DATE,
+            XfdfConstants.FLAGS,
+            XfdfConstants.NAME,
+            XfdfConstants.TITLE,
+            XfdfConstants.CREATION_DATE,
+            XfdfConstants.OPACITY,
+            XfdfConstants.SUBJECT,
+            "IT", // not in XfdfConstants
+            XfdfConstants.ICON,
+            XfdfConstants.STATE,
+            XfdfConstants.STATE_MODEL,
+            XfdfConstants.IN_REPLY_TO,
+            XfdfConstants.REPLY_TYPE,
+            XfdfConstants.OPEN,
+            XfdfConstants.COORDS,
+            XfdfConstants.FRINGE,
+            XfdfConstants.WIDTH,
+            XfdfConstants.DASHES,
+            XfdfConstants.STYLE,
+            "intensity", // not in XfdfConstants
+            XfdfConstants.INTERIOR_COLOR,
+            XfdfConstants.START,
+            XfdfConstants.END,
+            XfdfConstants.HEAD,
+            XfdfConstants.TAIL,
+            XfdfConstants.LEADER_LENGTH,
+            XfdfConstants.LEADER_EXTENDED,
+            XfdfConstants.LEADER_OFFSET,
+            XfdfConstants.CAPTION,
+            XfdfConstants.CAPTION_STYLE
+    };
+
+    static final int SLOT_COUNT = SLOT_NAMES.length;
+
+    /**
+     * The key of the {@code page} attribute in the attribute order; the keys of the other slotted attributes are
+     * their slots.
+     */
+    static final int PAGE_KEY = SLOT_COUNT;
+
+    /**
+     * The key of the {@code rect} attribute in the attribute order.
+     */
+    static final int RECT_KEY = SLOT_COUNT + 1;
+
+    /**
+     * The key of the next attribute without a slot in the attribute order, including a {@code page} or
+     * {@code rect} attribute that can't be decoded.
+     */
+    static final int OTHER_KEY = -1;
+
+    private static final int NO_PAGE = Integer.MIN_VALUE;
+
+    private final String[] values = new String[SLOT_COUNT];
+    private int page = NO_PAGE;
+    private String pageValue;
+    private float[] rect;
+    private String rectValue;
+    private byte[] order = new byte[16];
+    private int orderCount;
+    private List<AttributeObject> attributes;
+
+    /**
+     * Returns a {@link CompactAnnotObject} with the same name, attributes, contents, popup and vertices as the
+     * given annotation, which is returned as is if it already is one.
+     */
+    public static CompactAnnotObject of(AnnotObject annotObject) {
+        if (annotObject instanceof CompactAnnotObject) {
+            return (CompactAnnotObject) annotObject;
+        }
+        CompactAnnotObject compact = new CompactAnnotObject();
+        compact.setName(annotObject.getName());
+        for (AttributeObject attribute : annotObject.getAttributes()) {
+            compact.addAttribute(attribute);
+        }
+        compact.setContents(annotObject.getContents());
+        compact.setContentsRichText(annotObject.getContentsRichText());
+        compact.setPopup(annotObject.getPopup());
+        compact.setVertices(annotObject.getVertices());
+        return compact;
+    }
+
+    /**
+     * Gets the slot of an attribute.
+     *
+     * @param attributeName the name of the attribute.
+     * @return the slot, or -1 if the attribute has no slot; {@code page} and {@code rect} don't have one either.
+     */
+    public static int getSlot(String attributeName) {
+        switch (attributeName) {
+            case XfdfConstants.COLOR: return COLOR;
+            case XfdfConstants.DATE: return DATE;
+            case XfdfConstants.FLAGS: return FLAGS;
+            case XfdfConstants.NAME: return NAME;
+            case XfdfConstants.TITLE: return TITLE;
+            case XfdfConstants.CREATION_DATE: return CREATION_DATE;
+            case XfdfConstants.OPACITY: return OPACITY;
+            case XfdfConstants.SUBJECT: return SUBJECT;
+            case "IT": return INTENT;
+            case XfdfConstants.ICON: return ICON;
+            case XfdfConstants.STATE: return STATE;
+            case XfdfConstants.STATE_MODEL: return STATE_MODEL;
+            case XfdfConstants.IN_REPLY_TO: return IN_REPLY_TO;
+            case XfdfConstants.REPLY_TYPE: return REPLY_TYPE;
+            case XfdfConstants.OPEN: return OPEN;
+            case XfdfConstants.COORDS: return COORDS;
+            case XfdfConstants.FRINGE: return FRINGE;
+            case XfdfConstants.WIDTH: return WIDTH;
+            case XfdfConstants.DASHES: return DASHES;
+            case XfdfConstants.STYLE: return STYLE;
+            case "intensity": return INTENSITY;
+            case XfdfConstants.INTERIOR_COLOR: return INTERIOR_COLOR;
+            case XfdfConstants.START: return START;
+            case XfdfConstants.END: return END;
+            case XfdfConstants.HEAD: return HEAD;
+            case XfdfConstants.TAIL: return TAIL;
+            case XfdfConstants.LEADER_LENGTH: return LEADER_LENGTH;
+            case XfdfConstants.LEADER_EXTENDED: return LEADER_EXTENDED;
+            case XfdfConstants.LEADER_OFFSET: return LEADER_OFFSET;
+            case XfdfConstants.CAPTION: return CAPTION;
+            case XfdfConstants.CAPTION_STYLE: return CAPTION_STYLE;
+            default: return -1;
+        }
+    }
+
+    /**
+     * Sets one of the attributes known to the merge. The {@code page} and {@code rect} attributes are decoded;
+     * an invalid value is kept as is, and rejected by {@link #getPage()} or {@link #getRectValues()}.
+     *
+     * @param attributeName  the name of the attribute.
+     * @param attributeValue the value of the attribute.
+     * @return false if the attribute is not known, in which case it is not set.
+     */
+    public boolean setAttribute(String attributeName, String attributeValue) {
+        if (XfdfConstants.PAGE.equals(attributeName)) {
+            try {
+                setPage(Integer.parseInt(attributeValue), attributeValue);
+            } catch (NumberFormatException e) {
+                addOtherAttribute(new AttributeObject(attributeName, attributeValue));
+            }
+            return true;
+        }
+        if (XfdfConstants.RECT.equals(attributeName)) {
+            try {
+                setRectValues(XfdfObjectReadingUtils.convertRectValuesFromString(attributeValue), attributeValue);
+            } catch (IllegalArgumentException e) {
+                addOtherAttribute(new AttributeObject(attributeName, attributeValue));
+            }
+            return true;
+        }
+        int slot = getSlot(attributeName);
+        if (slot < 0) {
+            return false;
+        }
+        setValue(slot, attributeValue);
+        return true;
+    }
+
+    /**
+     * Gets the value of an attribute by slot.
+     *
+     * @param slot one of the slot constants of this class.
+     * @return the value, or null if the attribute is not present.
+     */
+    public String getValue(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * Returns true if the {@code page} attribute is present.
+     */
+    public boolean hasPage() {
+        return page != NO_PAGE || super.getAttributeValue(XfdfConstants.PAGE) != null;
+    }
+
+    /**
+     * Gets the decoded {@code page} attribute, the 0-based page number.
+     *
+     * @throws IllegalStateException if the attribute is not present
+     * @throws NumberFormatException if the attribute is not an integer
+     */
+    public int getPage() {
+        if (page == NO_PAGE) {
+            String invalid = super.getAttributeValue(XfdfConstants.PAGE);
+            if (invalid == null) {
+                throw new IllegalStateException("Annotation has no page attribute");
+            }
+            return Integer.parseInt(invalid);
+        }
+        return page;
+    }
+
+    /**
+     * Gets the decoded {@code rect} attribute: either the x and y coordinates of two opposite corners, or only
+     * a width and height, as read and not yet transformed. See
+     * {@link XfdfObjectReadingUtils#convertRectFromValues(float[], com.itextpdf.kernel.geom.AffineTransform)}.
+     *
+     * @return the 4 or 2 values of the attribute, or null if it is not present.
+     * @throws NumberFormatException    if the attribute contains an invalid number
+     * @throws IllegalArgumentException if the attribute doesn't contain 2 or 4 numbers
+     */
+    public float[] getRectValues() {
+        if (rect == null) {
+            String invalid = super.getAttributeValue(XfdfConstants.RECT);
+            if (invalid != null) {
+                return XfdfObjectReadingUtils.convertRectValuesFromString(invalid);
+            }
+        }
+        return rect;
+    }
+
+    /**
+     * @return the decoded {@code page} attribute, or {@link Integer#MIN_VALUE} if it is absent or invalid
+     */
+    int getDecodedPage() {
+        return page;
+    }
+
+    /**
+     * @return the decoded {@code rect} attribute, or null if it is absent or invalid
+     */
+    float[] getDecodedRectValues() {
+        return rect;
+    }
+
+    /**
+     * @return the {@code page} attribute as it was set, or null if it is absent or invalid
+     */
+    String getPageValue() {
+        return pageValue;
+    }
+
+    /**
+     * @return the {@code rect} attribute as it was set, or null if it is absent or invalid
+     */
+    String getRectValue() {
+        return rectValue;
+    }
+
+    void setValue(int slot, String value) {
+        if (values[slot] == null) {
+            addKey(slot);
+        }
+        values[slot] = value;
+        attributes = null;
+    }
+
+    void setPage(int page, String value) {
+        if (pageValue == null) {
+            addKey(PAGE_KEY);
+        }
+        this.page = page;
+        this.pageValue = value;
+        attributes = null;
+    }
+
+    void setRectValues(float[] rect, String value) {
+        if (rectValue == null) {
+            addKey(RECT_KEY);
+        }
+        this.rect = rect;
+        this.rectValue = value;
+        attributes = null;
+    }
+
+    void addOtherAttribute(AttributeObject attr) {
+        addKey(OTHER_KEY);
+        super.addAttribute(attr);
+        attributes = null;
+    }
+
+    /**
+     * @return the number of attributes, slotted or not
+     */
+    int getAttributeCount() {
+        return orderCount;
+    }
+
+    /**
+     * Gets the key of an attribute in the order the attributes were set: a slot, {@link #PAGE_KEY},
+     * {@link #RECT_KEY}, or {@link #OTHER_KEY} for the next of {@link #getOtherAttributes()}.
+     */
+    int getAttributeKey(int index) {
+        return order[index];
+    }
+
+    /**
+     * Gets the attributes that don't have a slot.
+     */
+    List<AttributeObject> getOtherAttributes() {
+        return super.getAttributes();
+    }
+
+    private void addKey(int key) {
+        if (orderCount == order.length) {
+            order = Arrays.copyOf(order, order.length * 2);
+        }
+        order[orderCount++] = (byte) key;
+    }
+
+    @Override
+    public void addAttribute(AttributeObject attr) {
+        if (!setAttribute(attr.getName(), attr.getValue())) {
+            addOtherAttribute(attr);
+        }
+    }
+
+    @Override
+    public AttributeObject getAttribute(String name) {
+        String value = getAttributeValue(name);
+        if (value == null) {
+            return super.getAttribute(name);
+        }
+        return new AttributeObject(name, value);
+    }
+
+    @Override
+    public String getAttributeValue(String name) {
+        if (XfdfConstants.PAGE.equals(name)) {
+            return pageValue != null ? pageValue : super.getAttributeValue(name);
+        }
+        if (XfdfConstants.RECT.equals(name)) {
+            return rectValue != null ? rectValue : super.getAttributeValue(name);
+        }
+        int slot = getSlot(name);
+        return slot < 0 ? super.getAttributeValue(name) : values[slot];
+    }
+
+    @Override
+    public List<AttributeObject> getAttributes() {
+        if (attributes == null) {
+            List<AttributeObject> list = new ArrayList<>(orderCount);
+            List<AttributeObject> others = super.getAttributes();
+            int otherIndex = 0;
+            for (int i = 0; i < orderCount; i++) {
+                int key = order[i];
+                if (key == OTHER_KEY) {
+                    list.add(others.get(otherIndex++));
+                } else if (key == PAGE_KEY) {
+                    list.add(new AttributeObject(XfdfConstants.PAGE, pageValue));
+                } else if (key == RECT_KEY) {
+                    list.add(new AttributeObject(XfdfConstants.RECT, rectValue));
+                } else {
+                    list.add(new AttributeObject(SLOT_NAMES[key], values[key]));
+                }
+            }
+            attributes = Collections.unmodifiableList(list);
+        }
+        return attributes;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.forms.xfdf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An {@code ink} annotation, which in addition to the attributes of a {@link CompactAnnotObject} has an
+ * {@code inklist} of gestures. Each gesture is kept as read, a list of points in the same format as {@code vertices},
+ * and is only converted to coordinates when the annotation is merged.
+ */
+public class InkAnnotObject extends CompactAnnotObject {
+
+    private final List<String> gestures = new ArrayList<>();
+
+    /**
+     * Gets the gestures of the {@code inklist} element, in document order.
+     *
+     * @return an unmodifiable view of the gestures.
+     */
+    public List<String> getGestures() {
+        return Collections.unmodifiableList(gestures);
+    }
+
+    /**
+     * Adds a gesture to the ink list.
+     *
+     * @param gesture the text content of a {@code gesture} element.
+     * @return this {@link InkAnnotObject} instance.
+     */
+    public InkAnnotObject addGesture(String gesture) {
+        gestures.add(gesture);
+        return this;
+    }
+}
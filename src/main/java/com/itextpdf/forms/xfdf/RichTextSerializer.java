@@ -0,0 +1,297 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.forms.xfdf;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Serializes the children of a {@code contents-richtext} element and collects their text content in one walk.
+ * <p>
+ * The markup is the same as what a default {@link org.w3c.dom.ls.LSSerializer} without XML declaration writes for
+ * the namespace-unaware nodes produced by the XFDF readers, and the text is the same as
+ * {@link Node#getTextContent()} of the parent. Instances are reused per thread, see {@link #getInstance()}.
+ */
+final class RichTextSerializer {
+
+    /**
+     * Builders that grew past this many characters are dropped after use instead of being kept for the thread.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private static final ThreadLocal<RichTextSerializer> INSTANCE = ThreadLocal.withInitial(RichTextSerializer::new);
+
+    private StringBuilder markup = new StringBuilder();
+    private StringBuilder text = new StringBuilder();
+    /**
+     * Prefix declarations and undeclarations of the enclosing elements, as name and value pairs.
+     */
+    private final List<String> namespaceScope = new ArrayList<>();
+    private int depth;
+    private boolean startTagOpen;
+    private String markupString;
+    private String textString;
+
+    private RichTextSerializer() {
+    }
+
+    static RichTextSerializer getInstance() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * Serializes all children of the given node. The results are available from {@link #getMarkup()} and
+     * {@link #getText()} until the next call.
+     */
+    void serializeChildren(Node parentNode) {
+        for (Node child = parentNode.getFirstChild(); child != null; child = child.getNextSibling()) {
+            writeNode(child);
+        }
+        markupString = markup.toString();
+        textString = text.toString();
+        markup = reset(markup);
+        text = reset(text);
+    }
+
+    String getMarkup() {
+        return markupString;
+    }
+
+    String getText() {
+        return textString;
+    }
+
+    private void writeNode(Node node) {
+        short nodeType = node.getNodeType();
+        if ((nodeType == Node.TEXT_NODE || nodeType == Node.CDATA_SECTION_NODE) && node.getNodeValue().isEmpty()) {
+            // empty character data writes nothing, not even the end of a pending start tag
+            return;
+        }
+        closeStartTag();
+        switch (nodeType) {
+            case Node.ELEMENT_NODE:
+                writeElement(node);
+                break;
+            case Node.TEXT_NODE:
+                text.append(node.getNodeValue());
+                appendEscapedText(node.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                text.append(node.getNodeValue());
+                writeCData(node.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                markup.append("<!--").append(node.getNodeValue()).append("-->");
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                markup.append("<?").append(node.getNodeName());
+                String data = node.getNodeValue();
+                if (data != null && !data.isEmpty()) {
+                    markup.append(' ').append(data);
+                }
+                markup.append("?>");
+                break;
+            default:
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    writeNode(child);
+                }
+                break;
+        }
+    }
+
+    private void writeElement(Node element) {
+        markup.append('<').append(element.getNodeName());
+        int scopeStart = namespaceScope.size();
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (isWrittenAttribute(attribute, scopeStart)) {
+                markup.append(' ').append(attribute.getName()).append("=\"");
+                appendEscapedAttributeValue(attribute.getValue());
+                markup.append('"');
+            }
+        }
+        // the start tag is closed by the first child that writes something, otherwise the element is written empty
+        startTagOpen = true;
+        depth++;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            writeNode(child);
+        }
+        depth--;
+        namespaceScope.subList(scopeStart, namespaceScope.size()).clear();
+        if (startTagOpen) {
+            markup.append("/>");
+            startTagOpen = false;
+        } else {
+            markup.append("</").append(element.getNodeName()).append('>');
+        }
+    }
+
+    private void closeStartTag() {
+        if (startTagOpen) {
+            markup.append('>');
+            startTagOpen = false;
+        }
+    }
+
+    /**
+     * Default namespace declarations and prefix undeclarations are not written for namespace-unaware nodes, and
+     * neither are prefix declarations that repeat the binding already in scope within the serialized subtree.
+     */
+    private boolean isWrittenAttribute(Attr attribute, int scopeStart) {
+        String name = attribute.getName();
+        if ("xmlns".equals(name)) {
+            return false;
+        }
+        if (!name.startsWith("xmlns:")) {
+            return true;
+        }
+        String value = attribute.getValue();
+        for (int i = scopeStart - 2; i >= 0; i -= 2) {
+            if (namespaceScope.get(i).equals(name)) {
+                if (namespaceScope.get(i + 1).equals(value)) {
+                    return false;
+                }
+                break;
+            }
+        }
+        namespaceScope.add(name);
+        namespaceScope.add(value);
+        return !value.isEmpty();
+    }
+
+    private void writeCData(String data) {
+        markup.append("<![CDATA[");
+        int start = 0;
+        int end;
+        // a section can't contain its own terminator, so split it the way the LS serializer does
+        while ((end = data.indexOf("]]>", start)) >= 0) {
+            appendLines(data, start, end + 2);
+            markup.append("]]><![CDATA[");
+            start = end + 2;
+        }
+        appendLines(data, start, data.length());
+        markup.append("]]>");
+    }
+
+    private void appendLines(String data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = data.charAt(i);
+            if (c == '\n') {
+                markup.append(LINE_SEPARATOR);
+            } else {
+                markup.append(c);
+            }
+        }
+    }
+
+    private void appendEscapedText(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    markup.append("&amp;");
+                    break;
+                case '<':
+                    markup.append("&lt;");
+                    break;
+                case '>':
+                    markup.append("&gt;");
+                    break;
+                case '\n':
+                    markup.append(LINE_SEPARATOR);
+                    break;
+                case '\r':
+                    // only escaped inside an element, a top-level text node keeps it as is
+                    if (depth > 0) {
+                        appendCharReference(c);
+                    } else {
+                        markup.append(c);
+                    }
+                    break;
+                default:
+                    // DEL and the C1 controls are written as character references in text, but not in attributes
+                    if (c >= 0x7F && c <= 0x9F) {
+                        appendCharReference(c);
+                    } else {
+                        markup.append(c);
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void appendEscapedAttributeValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    markup.append("&amp;");
+                    break;
+                case '<':
+                    markup.append("&lt;");
+                    break;
+                case '>':
+                    markup.append("&gt;");
+                    break;
+                case '"':
+                    markup.append("&quot;");
+                    break;
+                case '\t':
+                case '\n':
+                case '\r':
+                    appendCharReference(c);
+                    break;
+                default:
+                    markup.append(c);
+                    break;
+            }
+        }
+    }
+
+    private void appendCharReference(char c) {
+        markup.append("&#").append((int) c).append(';');
+    }
+
+    private static StringBuilder reset(StringBuilder builder) {
+        if (builder.capacity() > MAX_RETAINED_CAPACITY) {
+            return new StringBuilder();
+        }
+        builder.setLength(0);
+        return builder;
+    }
+}
@@ -37,23 +37,31 @@ import com.itextpdf.kernel.pdf.PdfString;
 
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.DOMConfiguration;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSSerializer;
 
 public class XfdfAnnotFactory {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(XfdfAnnotFactory.class);
     public static final String UNSUPPORTED_ANNOT_ATTR = IoLogMessageConstant.XFDF_UNSUPPORTED_ANNOTATION_ATTRIBUTE + " \"{0}\"";
 
+    // not in XfdfConstants
+    static final String INKLIST = "inklist";
+    static final String GESTURE = "gesture";
+
+    private final Map<String, Integer> skippedAnnotations = new TreeMap<>();
+    private final Map<String, Integer> unsupportedAttributes = new TreeMap<>();
+    private boolean logUnsupportedAttributes = true;
+
     /**
      * Extracts data from input stream into XfdfObject. Typically input stream is based on .xfdf file
      *
@@ -76,6 +84,38 @@ public class XfdfAnnotFactory {
         return xfdfObject;
     }
 
+    /**
+     * Returns the number of annotation elements that were not read because their type isn't supported,
+     * by element name, accumulated over all XFDF files read by this factory.
+     *
+     * @return an unmodifiable view of the skipped annotation counts.
+     */
+    public Map<String, Integer> getSkippedAnnotations() {
+        return Collections.unmodifiableMap(skippedAnnotations);
+    }
+
+    /**
+     * Returns the number of annotation attributes that were ignored because they aren't supported, by attribute
+     * name, accumulated over all XFDF files read by this factory. Since a single XFDF file may contain them on
+     * every annotation, each name is only logged the first time it is ignored; see
+     * {@link #setLogUnsupportedAttributes(boolean)}.
+     *
+     * @return an unmodifiable view of the unsupported attribute counts.
+     */
+    public Map<String, Integer> getUnsupportedAttributes() {
+        return Collections.unmodifiableMap(unsupportedAttributes);
+    }
+
+    /**
+     * Sets whether an unsupported attribute is logged the first time this factory ignores it, which it is by
+     * default. Callers that report {@link #getUnsupportedAttributes()} themselves can turn this off.
+     *
+     * @param logUnsupportedAttributes whether to log unsupported attributes.
+     */
+    public void setLogUnsupportedAttributes(boolean logUnsupportedAttributes) {
+        this.logUnsupportedAttributes = logUnsupportedAttributes;
+    }
+
     private void visitFNode(Node node, XfdfObject xfdfObject) {
         Node href = node.getAttributes().getNamedItem(XfdfConstants.HREF);
         if (href != null) {
@@ -126,14 +166,30 @@ public class XfdfAnnotFactory {
         }
     }
 
-    private static boolean isAnnotSupported(String nodeName) {
+    static boolean isAnnotSupported(String nodeName) {
         return XfdfConstants.TEXT.equalsIgnoreCase(nodeName) ||
                 XfdfConstants.HIGHLIGHT.equalsIgnoreCase(nodeName) ||
                 XfdfConstants.UNDERLINE.equalsIgnoreCase(nodeName) ||
                 XfdfConstants.STRIKEOUT.equalsIgnoreCase(nodeName) ||
                 XfdfConstants.SQUIGGLY.equalsIgnoreCase(nodeName) ||
                 XfdfConstants.CARET.equalsIgnoreCase(nodeName) ||
-                XfdfConstants.LINE.equalsIgnoreCase(nodeName);
+                XfdfConstants.LINE.equalsIgnoreCase(nodeName) ||
+                XfdfConstants.CIRCLE.equalsIgnoreCase(nodeName) ||
+                XfdfConstants.SQUARE.equalsIgnoreCase(nodeName) ||
+                XfdfConstants.POLYGON.equalsIgnoreCase(nodeName) ||
+                XfdfConstants.POLYLINE.equalsIgnoreCase(nodeName) ||
+                XfdfConstants.INK.equalsIgnoreCase(nodeName);
+    }
+
+    /**
+     * Creates the object for an annotation element, which for {@code ink} annotations also holds the ink list.
+     */
+    static CompactAnnotObject createAnnotObject(String nodeName) {
+        CompactAnnotObject annotObject = XfdfConstants.INK.equalsIgnoreCase(nodeName)
+                ? new InkAnnotObject()
+                : new CompactAnnotObject();
+        annotObject.setName(nodeName);
+        return annotObject;
     }
 
     private void readAnnotsList(Node node, AnnotsObject annotsObject) {
@@ -142,16 +198,18 @@ public class XfdfAnnotFactory {
         for (int temp = 0; temp < annotsNodeList.getLength(); temp++) {
             Node currentNode = annotsNodeList.item(temp);
             if (currentNode.getNodeType() == Node.ELEMENT_NODE &&
-                    isAnnotationSubtype(currentNode.getNodeName()) &&
-                    isAnnotSupported(currentNode.getNodeName())) {
-                visitAnnotationNode(currentNode, annotsObject);
+                    isAnnotationSubtype(currentNode.getNodeName())) {
+                if (isAnnotSupported(currentNode.getNodeName())) {
+                    visitAnnotationNode(currentNode, annotsObject);
+                } else {
+                    skippedAnnotations.merge(currentNode.getNodeName(), 1, Integer::sum);
+                }
             }
         }
     }
 
     private void visitAnnotationNode(Node currentNode, AnnotsObject annotsObject) {
-        AnnotObject annotObject = new AnnotObject();
-        annotObject.setName(currentNode.getNodeName());
+        CompactAnnotObject annotObject = createAnnotObject(currentNode.getNodeName());
         NamedNodeMap attributes = currentNode.getAttributes();
         for (int i = 0; i < attributes.getLength(); i++) {
             addAnnotObjectAttribute(annotObject, attributes.item(i));
@@ -178,6 +236,9 @@ public class XfdfAnnotFactory {
                 if (XfdfConstants.VERTICES.equalsIgnoreCase(node.getNodeName())) {
                     visitVerticesSubelement(node, annotObject);
                 }
+                if (INKLIST.equalsIgnoreCase(node.getNodeName()) && annotObject instanceof InkAnnotObject) {
+                    visitInkListSubelement(node, (InkAnnotObject) annotObject);
+                }
             }
         }
     }
@@ -185,7 +246,7 @@ public class XfdfAnnotFactory {
     private void visitPopupSubelement(Node popupNode, AnnotObject annotObject) {
         //nothing inside
         //attr list : color, date, flags, name, rect (required), title. open
-        AnnotObject popupAnnotObject = new AnnotObject();
+        CompactAnnotObject popupAnnotObject = new CompactAnnotObject();
         NamedNodeMap attributes = popupNode.getAttributes();
         for (int i = 0; i < attributes.getLength(); i++) {
             addAnnotObjectAttribute(popupAnnotObject, attributes.item(i));
@@ -204,26 +265,28 @@ public class XfdfAnnotFactory {
         }
     }
 
-    private void visitContentsRichTextSubelement(Node parentNode, AnnotObject annotObject) {
-        NodeList children = parentNode.getChildNodes();
+    static void visitContentsRichTextSubelement(Node parentNode, AnnotObject annotObject) {
+        // the markup and the text content are collected in a single walk over the children
+        RichTextSerializer serializer = RichTextSerializer.getInstance();
+        serializer.serializeChildren(parentNode);
         // set contents based on the node text if it isn't set yet, as a fallback
         PdfString contents = annotObject.getContents();
         if(contents == null || contents.toString().isBlank()) {
-            annotObject.setContents(new PdfString(parentNode.getTextContent()));
+            annotObject.setContents(new PdfString(serializer.getText()));
         }
         // For the RC field, we want the actual XML content
-        LSSerializer ser = ((DOMImplementationLS) parentNode.getOwnerDocument()
-                        .getImplementation()
-                        .getFeature("LS", "3.0")).createLSSerializer();
-        DOMConfiguration domConfig = ser.getDomConfig();
-        // disable XML declaration in the header (not necessary for RC in annotations)
-        domConfig.setParameter("xml-declaration", false);
-        // Serialise all the children
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < children.getLength(); i++) {
-            sb.append(ser.writeToString(children.item(i)));
+        annotObject.setContentsRichText(new PdfString(serializer.getMarkup()));
+    }
+
+    private void visitInkListSubelement(Node parentNode, InkAnnotObject annotObject) {
+        //no attributes, one gesture element per stroke
+        NodeList children = parentNode.getChildNodes();
+        for (int temp = 0; temp < children.getLength(); temp++) {
+            Node node = children.item(temp);
+            if (node.getNodeType() == Node.ELEMENT_NODE && GESTURE.equalsIgnoreCase(node.getNodeName())) {
+                annotObject.addGesture(node.getTextContent());
+            }
         }
-        annotObject.setContentsRichText(new PdfString(sb.toString()));
     }
 
     private void visitVerticesSubelement(Node parentNode, AnnotObject annotObject) {
@@ -237,42 +300,23 @@ public class XfdfAnnotFactory {
         }
     }
 
-    private void addAnnotObjectAttribute(AnnotObject annotObject, Node attributeNode) {
+    private void addAnnotObjectAttribute(CompactAnnotObject annotObject, Node attributeNode) {
         if (attributeNode != null) {
-            String attributeName = attributeNode.getNodeName();
-            switch (attributeName) {
-                case XfdfConstants.PAGE:
-                    //required
-                    annotObject.addFdfAttributes(Integer.parseInt(attributeNode.getNodeValue()));
-                    break;
-                case XfdfConstants.COLOR:
-                case XfdfConstants.DATE:
-                case XfdfConstants.FLAGS:
-                case XfdfConstants.NAME:
-                case XfdfConstants.RECT://required
-                case XfdfConstants.TITLE:
-
-                case XfdfConstants.CREATION_DATE:
-                case XfdfConstants.OPACITY:
-                case XfdfConstants.SUBJECT:
-                case "IT": // not in XfdfConstants
-                case XfdfConstants.ICON:
-                case XfdfConstants.STATE:
-                case XfdfConstants.STATE_MODEL:
-                case XfdfConstants.IN_REPLY_TO:
-                case XfdfConstants.REPLY_TYPE:
-                case XfdfConstants.OPEN:
-                case XfdfConstants.COORDS:
-                case XfdfConstants.FRINGE:
-                    annotObject.addAttribute(new AttributeObject(attributeName, attributeNode.getNodeValue()));
-                    break;
-                default: LOGGER.warn(MessageFormatUtil.format(UNSUPPORTED_ANNOT_ATTR, attributeName));
-                    break;
-            }
+            addAnnotObjectAttribute(annotObject, attributeNode.getNodeName(), attributeNode.getNodeValue(),
+                    unsupportedAttributes, logUnsupportedAttributes);
+        }
+    }
+
+    static void addAnnotObjectAttribute(CompactAnnotObject annotObject, String attributeName, String attributeValue,
+            Map<String, Integer> unsupportedAttributes, boolean log) {
+        // page (required), rect (required) and the attributes listed in CompactAnnotObject
+        if (!annotObject.setAttribute(attributeName, attributeValue)
+                && unsupportedAttributes.merge(attributeName, 1, Integer::sum) == 1 && log) {
+            LOGGER.warn(MessageFormatUtil.format(UNSUPPORTED_ANNOT_ATTR, attributeName));
         }
     }
 
-    private boolean isAnnotationSubtype(String tag) {
+    static boolean isAnnotationSubtype(String tag) {
         return XfdfConstants.TEXT.equalsIgnoreCase(tag) ||
                 XfdfConstants.HIGHLIGHT.equalsIgnoreCase(tag) ||
                 XfdfConstants.UNDERLINE.equalsIgnoreCase(tag) ||
@@ -35,17 +35,61 @@ import com.itextpdf.kernel.geom.AffineTransform;
 import com.itextpdf.kernel.geom.Rectangle;
 import com.itextpdf.kernel.pdf.annot.PdfAnnotation;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.StringTokenizer;
+import java.util.Arrays;
 
 /**
  * Ripped out of XfdfObjectUtils.
+ * <p>
+ * The parsers in this class make a single pass over their input and don't allocate on the common path.
+ * Inputs that are not plain decimal numbers are handed to {@link Float#parseFloat(String)} and
+ * {@link Integer#parseInt(String, int)}, so results and exceptions are the same as with the JDK parsers.
  */
 public final class XfdfObjectReadingUtils {
 
+    private static final String[] FLAG_NAMES = {
+            XfdfConstants.INVISIBLE,
+            XfdfConstants.HIDDEN,
+            XfdfConstants.PRINT,
+            XfdfConstants.NO_ZOOM,
+            XfdfConstants.NO_ROTATE,
+            XfdfConstants.NO_VIEW,
+            XfdfConstants.READ_ONLY,
+            XfdfConstants.LOCKED,
+            XfdfConstants.TOGGLE_NO_VIEW
+    };
+
+    private static final int[] FLAG_VALUES = {
+            PdfAnnotation.INVISIBLE,
+            PdfAnnotation.HIDDEN,
+            PdfAnnotation.PRINT,
+            PdfAnnotation.NO_ZOOM,
+            PdfAnnotation.NO_ROTATE,
+            PdfAnnotation.NO_VIEW,
+            PdfAnnotation.READ_ONLY,
+            PdfAnnotation.LOCKED,
+            PdfAnnotation.TOGGLE_NO_VIEW
+    };
+
+    /**
+     * Powers of ten that are exactly representable as a float.
+     */
+    private static final float[] FLOAT_POWERS_OF_TEN = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+    };
+
+    /**
+     * Largest integer such that it and all smaller non-negative integers are exactly representable as a float.
+     */
+    private static final long MAX_EXACT_FLOAT_MANTISSA = 1L << 24;
+
+    private static final ThreadLocal<float[]> QUAD_POINTS_BUFFER = ThreadLocal.withInitial(() -> new float[64]);
+
+    /**
+     * Grows to the largest point list parsed on the thread, so that long ink gestures are parsed without
+     * reallocating once the thread has seen one of similar size.
+     */
+    private static final ThreadLocal<float[]> POINTS_BUFFER = ThreadLocal.withInitial(() -> new float[256]);
+
     private XfdfObjectReadingUtils() {
     }
 
@@ -54,29 +98,82 @@ public final class XfdfObjectReadingUtils {
      * If only two coordinates are present, they should represent {@link Rectangle} width and height.
      */
     public static Rectangle convertRectFromString(String rectString, AffineTransform transf) {
-        String delims = ",";
-        StringTokenizer st = new StringTokenizer(rectString, delims);
-        List<String> coordsList = new ArrayList<>();
+        float[] rect = new float[4];
+        convertRectFromString(rectString, transf, rect);
+        return new Rectangle(rect[0], rect[1], rect[2], rect[3]);
+    }
 
-        while (st.hasMoreTokens()) {
-            coordsList.add(st.nextToken());
-        }
+    /**
+     * Converts a string containing 2 or 4 float values into the x, y, width and height of a rectangle,
+     * which are written to the first four elements of {@code rect}.
+     * If only two coordinates are present, they should represent the width and height, and the rectangle is
+     * positioned at the origin without applying the transformation.
+     *
+     * @throws IllegalArgumentException if the string doesn't contain 2 or 4 values
+     * @throws NumberFormatException    if one of the values is not a valid float
+     */
+    public static void convertRectFromString(String rectString, AffineTransform transf, float[] rect) {
+        int count = parseRectValues(rectString, rect);
+        convertRectValues(rect, count, transf);
+    }
 
-        if (coordsList.size() == 2) {
-            return new Rectangle(Float.parseFloat(coordsList.get(0)), Float.parseFloat(coordsList.get(1)));
-        } else if (coordsList.size() == 4) {
-            float[] rawCoords = new float[] {
-                    Float.parseFloat(coordsList.get(0)),
-                    Float.parseFloat(coordsList.get(1)),
-                    Float.parseFloat(coordsList.get(2)),
-                    Float.parseFloat(coordsList.get(3))
-            };
-            float[] coords = new float[4];
-            transf.transform(rawCoords, 0, coords, 0, 2);
-            return new Rectangle(coords[0], coords[1], Math.abs(coords[0] - coords[2]), Math.abs(coords[1] - coords[3]));
+    /**
+     * Converts a string containing 2 or 4 float values into an array of those values, without transforming them.
+     * The result can be converted into a rectangle later with {@link #convertRectFromValues}.
+     *
+     * @throws IllegalArgumentException if the string doesn't contain 2 or 4 values
+     * @throws NumberFormatException    if one of the values is not a valid float
+     */
+    public static float[] convertRectValuesFromString(String rectString) {
+        float[] rect = new float[4];
+        int count = parseRectValues(rectString, rect);
+        return count == 4 ? rect : Arrays.copyOf(rect, count);
+    }
+
+    /**
+     * Converts the 2 or 4 values returned by {@link #convertRectValuesFromString(String)} into a {@link Rectangle},
+     * in the same way as {@link #convertRectFromString(String, AffineTransform)}.
+     */
+    public static Rectangle convertRectFromValues(float[] rectValues, AffineTransform transf) {
+        float[] rect = Arrays.copyOf(rectValues, 4);
+        convertRectValues(rect, rectValues.length, transf);
+        return new Rectangle(rect[0], rect[1], rect[2], rect[3]);
+    }
+
+    /**
+     * Parses the values of a rectangle into the start of {@code rect} and returns their number, which is 2 or 4.
+     */
+    private static int parseRectValues(String rectString, float[] rect) {
+        int count = parseFloatList(rectString, rect, 0, 4);
+        if (count < 0) {
+            count = ~count;
+            if (count == 2 || count == 4) {
+                throwFirstInvalidFloat(rectString);
+            }
         }
+        if (count != 2 && count != 4) {
+            throw new IllegalArgumentException("Rectangle must have 2 or 4 values: " + rectString);
+        }
+        return count;
+    }
 
-        throw new IllegalArgumentException();
+    /**
+     * Turns the first {@code count} values of {@code rect}, as parsed by {@link #parseRectValues}, into the x, y,
+     * width and height of the rectangle, in place.
+     */
+    private static void convertRectValues(float[] rect, int count, AffineTransform transf) {
+        if (count == 2) {
+            rect[2] = rect[0];
+            rect[3] = rect[1];
+            rect[0] = 0;
+            rect[1] = 0;
+        } else {
+            transf.transform(rect, 0, rect, 0, 2);
+            float width = Math.abs(rect[0] - rect[2]);
+            float height = Math.abs(rect[1] - rect[3]);
+            rect[2] = width;
+            rect[3] = height;
+        }
     }
 
     /**
@@ -84,25 +181,95 @@ public final class XfdfObjectReadingUtils {
      * If the number of floats in the string is not equal to 8, returns an empty float array.
      */
     public static float [] convertQuadPointsFromCoordsString(String coordsString, AffineTransform transf) {
-        String delims = ",";
-        StringTokenizer st = new StringTokenizer(coordsString, delims);
-        List<String> quadPointsList = new ArrayList<>();
-
-        while (st.hasMoreTokens()) {
-            quadPointsList.add(st.nextToken());
+        float[] buffer = QUAD_POINTS_BUFFER.get();
+        int sz = convertQuadPointsFromCoordsString(coordsString, transf, buffer);
+        if (sz > buffer.length) {
+            buffer = new float[sz];
+            QUAD_POINTS_BUFFER.set(buffer);
+            convertQuadPointsFromCoordsString(coordsString, transf, buffer);
         }
+        return Arrays.copyOf(buffer, sz);
+    }
 
-        int sz = quadPointsList.size();
+    /**
+     * Converts a string containing a multiple of 8 float values into transformed quadPoints, which are written
+     * to the start of {@code quadPoints}.
+     * <p>
+     * Returns the number of values in the string, or 0 if that number is not a multiple of 8. If the return value
+     * exceeds the length of {@code quadPoints}, the contents of the buffer are undefined and the call should be
+     * repeated with a buffer of at least that size.
+     *
+     * @throws NumberFormatException if the number of values is a multiple of 8 and one of them is not a valid float
+     */
+    public static int convertQuadPointsFromCoordsString(String coordsString, AffineTransform transf,
+            float[] quadPoints) {
+        int sz = parseFloatList(coordsString, quadPoints, 0, quadPoints.length);
+        boolean valid = sz >= 0;
+        if (!valid) {
+            sz = ~sz;
+        }
         if (sz % 8 != 0) {
-            return new float[0];
+            return 0;
+        }
+        if (!valid) {
+            throwFirstInvalidFloat(coordsString);
+        }
+        if (sz <= quadPoints.length) {
+            transf.transform(quadPoints, 0, quadPoints, 0, sz / 2);
+        }
+        return sz;
+    }
+
+    /**
+     * Converts a comma separated list of floats, such as {@code dashes} or {@code fringe}, into a float array.
+     *
+     * @throws NumberFormatException if one of the values is not a valid float
+     */
+    public static float[] convertFloatsFromString(String floatsString) {
+        int count = parseFloatList(floatsString, new float[0], 0, 0);
+        float[] values = new float[count];
+        if (parseFloatList(floatsString, values, 0, count) < 0) {
+            throwFirstInvalidFloat(floatsString);
+        }
+        return values;
+    }
+
+    /**
+     * Converts a list of points, as found in {@code vertices}, {@code gesture}, {@code start} and {@code end},
+     * into an array of transformed x and y coordinates. Coordinates are separated by commas, and points by
+     * semicolons or commas; blank entries are skipped.
+     * <p>
+     * The string is parsed in a single pass, straight into the coordinate array, and all points are transformed
+     * with a single call.
+     *
+     * @throws IllegalArgumentException if the number of values is odd
+     * @throws NumberFormatException    if one of the values is not a valid float
+     */
+    public static float[] convertPointsFromString(String pointsString, AffineTransform transf) {
+        float[] buffer = POINTS_BUFFER.get();
+        int count = 0;
+        int length = pointsString.length();
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? pointsString.charAt(i) : ',';
+            if (c != ',' && c != ';') {
+                continue;
+            }
+            if (!isBlank(pointsString, start, i)) {
+                if (count == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+                    POINTS_BUFFER.set(buffer);
+                }
+                buffer[count++] = parseFloat(pointsString, start, i);
+            }
+            start = i + 1;
         }
-        float [] quadPoints = new float [sz];
-        for (int i = 0; i < sz; i++) {
-            quadPoints[i] = Float.parseFloat(quadPointsList.get(i));
+        if (count % 2 != 0) {
+            throw new IllegalArgumentException("Odd number of coordinates in point list");
         }
-        float[] transfQuadPoints = new float[sz];
-        transf.transform(quadPoints, 0, transfQuadPoints, 0, sz / 2);
-        return transfQuadPoints;
+        float[] points = Arrays.copyOf(buffer, count);
+        transf.transform(points, 0, points, 0, count / 2);
+        return points;
     }
 
     /**
@@ -111,29 +278,17 @@ public final class XfdfObjectReadingUtils {
      */
     public static int convertFlagsFromString(String flagsString) {
         int result = 0;
-
-        String delims = ",";
-        StringTokenizer st = new StringTokenizer(flagsString, delims);
-        List<String> flagsList = new ArrayList<>();
-        while (st.hasMoreTokens()) {
-            flagsList.add(st.nextToken().toLowerCase());
-        }
-
-        Map<String, Integer> flagMap = new HashMap<>();
-        flagMap.put(XfdfConstants.INVISIBLE, PdfAnnotation.INVISIBLE);
-        flagMap.put(XfdfConstants.HIDDEN, PdfAnnotation.HIDDEN);
-        flagMap.put(XfdfConstants.PRINT, PdfAnnotation.PRINT);
-        flagMap.put(XfdfConstants.NO_ZOOM, PdfAnnotation.NO_ZOOM);
-        flagMap.put(XfdfConstants.NO_ROTATE, PdfAnnotation.NO_ROTATE);
-        flagMap.put(XfdfConstants.NO_VIEW, PdfAnnotation.NO_VIEW);
-        flagMap.put(XfdfConstants.READ_ONLY, PdfAnnotation.READ_ONLY);
-        flagMap.put(XfdfConstants.LOCKED, PdfAnnotation.LOCKED);
-        flagMap.put(XfdfConstants.TOGGLE_NO_VIEW, PdfAnnotation.TOGGLE_NO_VIEW);
-
-        for(String flag : flagsList) {
-            if (flagMap.containsKey(flag)) {
-                result += flagMap.get(flag);
+        int length = flagsString.length();
+        int start = 0;
+        while (start < length) {
+            int end = flagsString.indexOf(',', start);
+            if (end < 0) {
+                end = length;
             }
+            if (end > start) {
+                result += lookupFlag(flagsString, start, end);
+            }
+            start = end + 1;
         }
         return result;
     }
@@ -143,13 +298,182 @@ public final class XfdfObjectReadingUtils {
      */
     public static int[] convertColorFloatsFromString(String colorHexString) {
         int[] result = new int[3];
-        String colorString = colorHexString.substring(colorHexString.indexOf('#') + 1);
-        if (colorString.length() == 6) {
-            for (int i = 0; i < 3; i++) {
-                result[i] = Integer.parseInt(colorString.substring(i * 2, 2 + i * 2), 16);
+        convertColorFloatsFromString(colorHexString, result);
+        return result;
+    }
+
+    /**
+     * Converts string containing hex color code into 3 integer values representing rgb color, which are written
+     * to the first three elements of {@code rgb}. If the string is not a 6-digit color code, all three are 0.
+     *
+     * @throws NumberFormatException if one of the components is not a valid hexadecimal number
+     */
+    public static void convertColorFloatsFromString(String colorHexString, int[] rgb) {
+        int start = colorHexString.indexOf('#') + 1;
+        if (colorHexString.length() - start != 6) {
+            rgb[0] = 0;
+            rgb[1] = 0;
+            rgb[2] = 0;
+            return;
+        }
+        for (int i = 0; i < 3; i++) {
+            int pos = start + 2 * i;
+            char first = colorHexString.charAt(pos);
+            int low = Character.digit(colorHexString.charAt(pos + 1), 16);
+            int value;
+            boolean valid;
+            if (first == '-' || first == '+') {
+                // Integer.parseInt accepts a sign
+                valid = low >= 0;
+                value = first == '-' ? -low : low;
+            } else {
+                int high = Character.digit(first, 16);
+                valid = high >= 0 && low >= 0;
+                value = high * 16 + low;
+            }
+            if (!valid) {
+                // let the JDK produce the error
+                value = Integer.parseInt(colorHexString.substring(pos, pos + 2), 16);
             }
+            rgb[i] = value;
         }
-        return result;
+    }
+
+    /**
+     * Parses a comma separated list of floats, skipping empty entries, and stores up to {@code max} of them
+     * in {@code dest}, starting at {@code offset}.
+     *
+     * @return the number of values in the list, or its bitwise complement if any of the stored values is invalid
+     */
+    private static int parseFloatList(String s, float[] dest, int offset, int max) {
+        int count = 0;
+        boolean valid = true;
+        int length = s.length();
+        int start = 0;
+        while (start < length) {
+            int end = s.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                if (count < max) {
+                    try {
+                        dest[offset + count] = parseFloat(s, start, end);
+                    } catch (NumberFormatException e) {
+                        valid = false;
+                    }
+                }
+                count++;
+            }
+            start = end + 1;
+        }
+        return valid ? count : ~count;
+    }
+
+    private static boolean isBlank(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void throwFirstInvalidFloat(String s) {
+        for (String token : s.split(",")) {
+            if (!token.isEmpty()) {
+                Float.parseFloat(token);
+            }
+        }
+    }
+
+    /**
+     * Parses the characters between {@code start} and {@code end} like {@link Float#parseFloat(String)}.
+     * Plain decimal numbers whose digits fit into a float mantissa are converted directly, which is exact since
+     * both the mantissa and the power of ten are representable and IEEE division rounds correctly.
+     */
+    private static float parseFloat(String s, int start, int end) {
+        // Float.parseFloat ignores leading and trailing whitespace
+        int from = start;
+        int to = end;
+        while (from < to && s.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && s.charAt(to - 1) <= ' ') {
+            to--;
+        }
+
+        int i = from;
+        boolean negative = false;
+        if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenDot = false;
+        for (; i < to; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (seenDot) {
+                    fractionDigits++;
+                }
+                if (mantissa > MAX_EXACT_FLOAT_MANTISSA) {
+                    break;
+                }
+            } else if (c == '.' && !seenDot) {
+                seenDot = true;
+            } else {
+                break;
+            }
+        }
+        if (i < to || digits == 0 || fractionDigits >= FLOAT_POWERS_OF_TEN.length) {
+            return Float.parseFloat(s.substring(start, end));
+        }
+        float value = (float) mantissa / FLOAT_POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    private static int lookupFlag(String s, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < FLAG_NAMES.length; i++) {
+            String name = FLAG_NAMES[i];
+            if (name.length() == length && equalsIgnoreAsciiCase(name, s, start, length)) {
+                return FLAG_VALUES[i];
+            }
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) > 0x7f) {
+                // non-ASCII case mappings can change the length of the string, leave this to the JDK
+                String flag = s.substring(start, end).toLowerCase();
+                for (int j = 0; j < FLAG_NAMES.length; j++) {
+                    if (FLAG_NAMES[j].equals(flag)) {
+                        return FLAG_VALUES[j];
+                    }
+                }
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Compares a lower case ASCII name with a region of a string, ignoring the case of ASCII letters.
+     */
+    private static boolean equalsIgnoreAsciiCase(String lowerCaseName, String s, int start, int length) {
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(start + i);
+            if (c >= 'A' && c <= 'Z') {
+                c = (char) (c + ('a' - 'A'));
+            }
+            if (c != lowerCaseName.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
 }
@@ -0,0 +1,586 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.forms.xfdf;
+
+import com.itextpdf.kernel.exceptions.PdfException;
+import com.itextpdf.kernel.pdf.PdfString;
+import com.itextpdf.kernel.utils.XmlProcessorCreator;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+
+/**
+ * StAX-based counterpart of {@link XfdfAnnotFactory}.
+ * <p>
+ * The XFDF input is read in a single forward pass, so no DOM tree of the whole document is ever built.
+ * The resulting {@link XfdfObject} is the same as the one produced by {@link XfdfAnnotFactory}: attributes are
+ * reported in the same order, and {@code contents-richtext} subtrees are materialised as small standalone DOM
+ * fragments so that their serialisation matches the DOM reader exactly.
+ */
+public class XfdfStreamingAnnotFactory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(XfdfStreamingAnnotFactory.class);
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+    private static final String DOCTYPE_NOT_ALLOWED = "DOCTYPE declarations are not allowed in XFDF input.";
+
+    private final XMLInputFactory inputFactory = createInputFactory();
+    private Document fragmentOwner = null;
+    private final Map<String, Integer> skippedAnnotations = new TreeMap<>();
+    private final Map<String, Integer> unsupportedAttributes = new TreeMap<>();
+    private boolean logUnsupportedAttributes = true;
+
+    /**
+     * Extracts data from input stream into XfdfObject. Typically input stream is based on .xfdf file
+     *
+     * @param xfdfInputStream The input stream containing xml-styled xfdf data.
+     * @return XfdfObject containing original xfdf data.
+     */
+    public XfdfObject createXfdfObject(InputStream xfdfInputStream) {
+        XfdfObject xfdfObject = new XfdfObject();
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(xfdfInputStream);
+            moveToRootElement(reader);
+            xfdfObject.setAttributes(readXfdfRootAttributes(reader));
+            while (nextChildElement(reader)) {
+                visitElement(reader, xfdfObject);
+            }
+        } catch (XMLStreamException e) {
+            throw new PdfException(e.getMessage(), e);
+        } finally {
+            closeQuietly(reader);
+        }
+        return xfdfObject;
+    }
+
+    /**
+     * Reads the annotations from an XFDF input stream and passes them to a consumer one at a time, in document
+     * order, as soon as each one has been parsed. Nothing is retained after an annotation has been handed off.
+     * <p>
+     * Unlike {@link #createXfdfObject(InputStream)}, which keeps only the last {@code annots} element,
+     * annotations from all {@code annots} elements are reported. Everything else in the document is skipped.
+     *
+     * @param xfdfInputStream The input stream containing xml-styled xfdf data.
+     * @param annotConsumer   The consumer receiving the annotations.
+     */
+    public void readAnnotations(InputStream xfdfInputStream, Consumer<AnnotObject> annotConsumer) {
+        readAnnotations(xfdfInputStream, annotConsumer, null);
+    }
+
+    /**
+     * Reads the annotations from an XFDF input stream like {@link #readAnnotations(InputStream, Consumer)}, and
+     * also collects the form fields. Fields from all {@code fields} elements are added, in the same way as
+     * {@link #createXfdfObject(InputStream)} adds those of the last one.
+     *
+     * @param xfdfInputStream The input stream containing xml-styled xfdf data.
+     * @param annotConsumer   The consumer receiving the annotations.
+     * @param fieldsObject    The object to which the fields are added, or null to skip them.
+     */
+    public void readAnnotations(InputStream xfdfInputStream, Consumer<AnnotObject> annotConsumer,
+            FieldsObject fieldsObject) {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(xfdfInputStream);
+            moveToRootElement(reader);
+            while (nextChildElement(reader)) {
+                String nodeName = getQualifiedName(reader);
+                if (XfdfConstants.ANNOTS.equalsIgnoreCase(nodeName)) {
+                    readAnnotsList(reader, annotConsumer);
+                } else if (fieldsObject != null && XfdfConstants.FIELDS.equalsIgnoreCase(nodeName)) {
+                    readFieldList(reader, fieldsObject);
+                } else {
+                    skipElement(reader);
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new PdfException(e.getMessage(), e);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Returns the number of annotation elements that were not read because their type isn't supported,
+     * by element name, accumulated over all XFDF files read by this factory.
+     *
+     * @return an unmodifiable view of the skipped annotation counts.
+     */
+    public Map<String, Integer> getSkippedAnnotations() {
+        return Collections.unmodifiableMap(skippedAnnotations);
+    }
+
+    /**
+     * Returns the number of annotation attributes that were ignored because they aren't supported, by attribute
+     * name, like {@link XfdfAnnotFactory#getUnsupportedAttributes()}.
+     *
+     * @return an unmodifiable view of the unsupported attribute counts.
+     */
+    public Map<String, Integer> getUnsupportedAttributes() {
+        return Collections.unmodifiableMap(unsupportedAttributes);
+    }
+
+    /**
+     * Sets whether an unsupported attribute is logged the first time this factory ignores it, like
+     * {@link XfdfAnnotFactory#setLogUnsupportedAttributes(boolean)}.
+     *
+     * @param logUnsupportedAttributes whether to log unsupported attributes.
+     */
+    public void setLogUnsupportedAttributes(boolean logUnsupportedAttributes) {
+        this.logUnsupportedAttributes = logUnsupportedAttributes;
+    }
+
+    private void visitElement(XMLStreamReader reader, XfdfObject xfdfObject) throws XMLStreamException {
+        String nodeName = getQualifiedName(reader);
+        if (XfdfConstants.FIELDS.equalsIgnoreCase(nodeName)) {
+            FieldsObject fieldsObject = new FieldsObject();
+            readFieldList(reader, fieldsObject);
+            xfdfObject.setFields(fieldsObject);
+        } else if (XfdfConstants.F.equalsIgnoreCase(nodeName)) {
+            String href = getAttributeValue(reader, XfdfConstants.HREF);
+            if (href != null) {
+                xfdfObject.setF(new FObject(href));
+            } else {
+                LOGGER.info(XfdfConstants.EMPTY_F_LEMENT);
+            }
+            skipElement(reader);
+        } else if (XfdfConstants.IDS.equalsIgnoreCase(nodeName)) {
+            IdsObject idsObject = new IdsObject();
+            String original = getAttributeValue(reader, XfdfConstants.ORIGINAL);
+            if (original != null) {
+                idsObject.setOriginal(original);
+            }
+            String modified = getAttributeValue(reader, XfdfConstants.MODIFIED);
+            if (modified != null) {
+                idsObject.setModified(modified);
+            }
+            xfdfObject.setIds(idsObject);
+            skipElement(reader);
+        } else if (XfdfConstants.ANNOTS.equalsIgnoreCase(nodeName)) {
+            AnnotsObject annotsObject = new AnnotsObject();
+            readAnnotsList(reader, annotsObject::addAnnot);
+            xfdfObject.setAnnots(annotsObject);
+        } else {
+            skipElement(reader);
+        }
+    }
+
+    private void readAnnotsList(XMLStreamReader reader, Consumer<AnnotObject> annotConsumer)
+            throws XMLStreamException {
+        while (nextChildElement(reader)) {
+            String nodeName = getQualifiedName(reader);
+            if (XfdfAnnotFactory.isAnnotationSubtype(nodeName) && XfdfAnnotFactory.isAnnotSupported(nodeName)) {
+                annotConsumer.accept(readAnnotation(reader));
+            } else {
+                if (XfdfAnnotFactory.isAnnotationSubtype(nodeName)) {
+                    skippedAnnotations.merge(nodeName, 1, Integer::sum);
+                }
+                skipElement(reader);
+            }
+        }
+    }
+
+    private AnnotObject readAnnotation(XMLStreamReader reader) throws XMLStreamException {
+        CompactAnnotObject annotObject = XfdfAnnotFactory.createAnnotObject(getQualifiedName(reader));
+        addAnnotObjectAttributes(reader, annotObject);
+        while (nextChildElement(reader)) {
+            String nodeName = getQualifiedName(reader);
+            if (XfdfConstants.CONTENTS.equalsIgnoreCase(nodeName)) {
+                String contents = readLastTextNode(reader);
+                if (contents != null) {
+                    annotObject.setContents(new PdfString(contents));
+                }
+            } else if (XfdfConstants.CONTENTS_RICHTEXT.equalsIgnoreCase(nodeName)) {
+                XfdfAnnotFactory.visitContentsRichTextSubelement(readDomFragment(reader), annotObject);
+            } else if (XfdfConstants.POPUP.equalsIgnoreCase(nodeName)) {
+                //nothing inside
+                CompactAnnotObject popupAnnotObject = new CompactAnnotObject();
+                addAnnotObjectAttributes(reader, popupAnnotObject);
+                annotObject.setPopup(popupAnnotObject);
+                skipElement(reader);
+            } else if (XfdfConstants.VERTICES.equalsIgnoreCase(nodeName)) {
+                String vertices = readLastTextNode(reader);
+                if (vertices != null) {
+                    annotObject.setVertices(vertices);
+                }
+            } else if (XfdfAnnotFactory.INKLIST.equalsIgnoreCase(nodeName) && annotObject instanceof InkAnnotObject) {
+                readInkList(reader, (InkAnnotObject) annotObject);
+            } else {
+                skipElement(reader);
+            }
+        }
+        return annotObject;
+    }
+
+    private static void readInkList(XMLStreamReader reader, InkAnnotObject annotObject) throws XMLStreamException {
+        while (nextChildElement(reader)) {
+            if (XfdfAnnotFactory.GESTURE.equalsIgnoreCase(getQualifiedName(reader))) {
+                annotObject.addGesture(readTextContent(reader));
+            } else {
+                skipElement(reader);
+            }
+        }
+    }
+
+    private void addAnnotObjectAttributes(XMLStreamReader reader, CompactAnnotObject annotObject) {
+        for (int i : sortedAttributeIndices(reader)) {
+            XfdfAnnotFactory.addAnnotObjectAttribute(annotObject,
+                    getAttributeQualifiedName(reader, i), reader.getAttributeValue(i), unsupportedAttributes,
+                    logUnsupportedAttributes);
+        }
+    }
+
+    private void readFieldList(XMLStreamReader reader, FieldsObject fieldsObject) throws XMLStreamException {
+        while (nextChildElement(reader)) {
+            if (XfdfConstants.FIELD.equalsIgnoreCase(getQualifiedName(reader))) {
+                visitInnerFields(reader, new FieldObject(), fieldsObject);
+            } else {
+                skipElement(reader);
+            }
+        }
+    }
+
+    private void visitInnerFields(XMLStreamReader reader, FieldObject parentField, FieldsObject fieldsObject)
+            throws XMLStreamException {
+        if (reader.getAttributeCount() != 0) {
+            if (parentField.getName() == null) {
+                parentField.setName(reader.getAttributeValue(sortedAttributeIndices(reader)[0]));
+            }
+        } else {
+            LOGGER.info(XfdfConstants.EMPTY_FIELD_NAME_ELEMENT);
+        }
+
+        while (nextChildElement(reader)) {
+            String nodeName = getQualifiedName(reader);
+            if (XfdfConstants.VALUE.equalsIgnoreCase(nodeName)) {
+                String value = readFirstChildText(reader);
+                if (value != null) {
+                    parentField.setValue(value);
+                } else {
+                    LOGGER.info(XfdfConstants.EMPTY_FIELD_VALUE_ELEMENT);
+                }
+            } else if (XfdfConstants.FIELD.equalsIgnoreCase(nodeName)) {
+                FieldObject childField = new FieldObject();
+                childField.setParent(parentField);
+                childField.setName(parentField.getName() + "."
+                        + reader.getAttributeValue(sortedAttributeIndices(reader)[0]));
+                visitInnerFields(reader, childField, fieldsObject);
+                fieldsObject.addField(childField);
+            } else {
+                skipElement(reader);
+            }
+        }
+        fieldsObject.addField(parentField);
+    }
+
+    /**
+     * Mirrors {@code node.getFirstChild().getTextContent()} for a {@code value} element: returns the text content
+     * of the first child node, or {@code null} if the element is empty.
+     */
+    private static String readFirstChildText(XMLStreamReader reader) throws XMLStreamException {
+        int event = nextEvent(reader);
+        String text;
+        switch (event) {
+            case XMLStreamConstants.END_ELEMENT:
+                return null;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                StringBuilder sb = new StringBuilder();
+                while (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+                    sb.append(reader.getText());
+                    event = nextEvent(reader);
+                }
+                text = sb.toString();
+                break;
+            case XMLStreamConstants.START_ELEMENT:
+                text = readTextContent(reader);
+                event = nextEvent(reader);
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                text = reader.getPIData() == null ? "" : reader.getPIData();
+                event = nextEvent(reader);
+                break;
+            default:
+                text = reader.getText();
+                event = nextEvent(reader);
+                break;
+        }
+        // the remaining siblings are ignored
+        while (event != XMLStreamConstants.END_ELEMENT) {
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                skipElement(reader);
+            }
+            event = nextEvent(reader);
+        }
+        return text;
+    }
+
+    /**
+     * Equivalent of {@link Node#getTextContent()} for the current element. Consumes the element.
+     */
+    private static String readTextContent(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder sb = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            int event = nextEvent(reader);
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                    sb.append(reader.getText());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Mirrors the DOM reader's handling of {@code contents} and {@code vertices}: of all the text nodes directly
+     * inside the current element, the last one wins. CDATA sections, comments and child elements end a text node.
+     */
+    private static String readLastTextNode(XMLStreamReader reader) throws XMLStreamException {
+        String last = null;
+        StringBuilder current = null;
+        while (true) {
+            int event = nextEvent(reader);
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE) {
+                if (current == null) {
+                    current = new StringBuilder();
+                }
+                current.append(reader.getText());
+                continue;
+            }
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return current != null ? current.toString() : last;
+            }
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                skipElement(reader);
+            }
+            // a child element, comment or the like ends the current text node
+            if (current != null) {
+                last = current.toString();
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Copies the current element and its subtree into a standalone (DOM Level 1) element, so that it can be
+     * processed by the same code as the DOM reader.
+     */
+    private Element readDomFragment(XMLStreamReader reader) throws XMLStreamException {
+        if (fragmentOwner == null) {
+            fragmentOwner = XmlProcessorCreator.createSafeDocumentBuilder(false, false).newDocument();
+        }
+        Element root = createElement(reader);
+        Node current = root;
+        while (current != null) {
+            int event = nextEvent(reader);
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    current = current.appendChild(createElement(reader));
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    current = current == root ? null : current.getParentNode();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    Node lastChild = current.getLastChild();
+                    if (lastChild != null && lastChild.getNodeType() == Node.TEXT_NODE) {
+                        ((org.w3c.dom.Text) lastChild).appendData(reader.getText());
+                    } else {
+                        current.appendChild(fragmentOwner.createTextNode(reader.getText()));
+                    }
+                    break;
+                case XMLStreamConstants.CDATA:
+                    current.appendChild(fragmentOwner.createCDATASection(reader.getText()));
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    current.appendChild(fragmentOwner.createComment(reader.getText()));
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    current.appendChild(
+                            fragmentOwner.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return root;
+    }
+
+    private Element createElement(XMLStreamReader reader) {
+        Element element = fragmentOwner.createElement(getQualifiedName(reader));
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            element.setAttribute(getAttributeQualifiedName(reader, i), reader.getAttributeValue(i));
+        }
+        return element;
+    }
+
+    private static List<AttributeObject> readXfdfRootAttributes(XMLStreamReader reader) {
+        List<AttributeObject> attributeObjects = new ArrayList<>();
+        for (int i : sortedAttributeIndices(reader)) {
+            attributeObjects.add(new AttributeObject(getAttributeQualifiedName(reader, i),
+                    reader.getAttributeValue(i)));
+        }
+        return attributeObjects;
+    }
+
+    /**
+     * The DOM keeps attributes sorted by name, so we report them in that order as well.
+     */
+    private static int[] sortedAttributeIndices(XMLStreamReader reader) {
+        int count = reader.getAttributeCount();
+        int[] indices = new int[count];
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            String name = getAttributeQualifiedName(reader, i);
+            int j = i;
+            while (j > 0 && names[j - 1].compareTo(name) > 0) {
+                names[j] = names[j - 1];
+                indices[j] = indices[j - 1];
+                j--;
+            }
+            names[j] = name;
+            indices[j] = i;
+        }
+        return indices;
+    }
+
+    private static String getAttributeValue(XMLStreamReader reader, String qualifiedName) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (qualifiedName.equals(getAttributeQualifiedName(reader, i))) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    private static String getQualifiedName(XMLStreamReader reader) {
+        String prefix = reader.getPrefix();
+        String localName = reader.getLocalName();
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private static String getAttributeQualifiedName(XMLStreamReader reader, int index) {
+        String prefix = reader.getAttributePrefix(index);
+        String localName = reader.getAttributeLocalName(index);
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    private static void moveToRootElement(XMLStreamReader reader) throws XMLStreamException {
+        while (nextEvent(reader) != XMLStreamConstants.START_ELEMENT) {
+            // skip the prolog
+        }
+    }
+
+    /**
+     * Advances to the next child element of the current element.
+     *
+     * @return true if positioned on a child element, false if the end of the current element was reached
+     */
+    private static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException {
+        while (true) {
+            int event = nextEvent(reader);
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = nextEvent(reader);
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static int nextEvent(XMLStreamReader reader) throws XMLStreamException {
+        int event = reader.next();
+        if (event == XMLStreamConstants.DTD) {
+            // consistent with the DOM reader, which refuses DOCTYPE declarations
+            throw new PdfException(DOCTYPE_NOT_ALLOWED);
+        }
+        return event;
+    }
+
+    private static void closeQuietly(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // nothing we can do about it at this point
+            }
+        }
+    }
+
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        if (factory.isPropertySupported(REPORT_CDATA)) {
+            factory.setProperty(REPORT_CDATA, true);
+        }
+        return factory;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.kernel.colors.Color;
+import com.itextpdf.kernel.colors.DeviceRgb;
+import com.itextpdf.kernel.geom.Rectangle;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfResources;
+import com.itextpdf.kernel.pdf.PdfStream;
+import com.itextpdf.kernel.pdf.canvas.PdfCanvas;
+import com.itextpdf.kernel.pdf.xobject.PdfFormXObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Per-document cache of icon appearance streams, keyed by icon and colour.
+ * <p>
+ * The drawing instructions of every icon are rendered once per JVM into a document-independent byte sequence,
+ * so creating the appearance for a new document only takes prefixing a colour operator and wrapping the result
+ * in a form XObject.
+ */
+final class AppearanceCache {
+
+    enum Icon {
+        // a caret on a 30x30 canvas
+        CARET(canvas -> canvas
+                .moveTo(15, 30)
+                .curveTo(15, 30, 15, 0, 0, 0)
+                .lineTo(30, 0)
+                .curveTo(15, 0, 15,30, 15, 30)
+                .closePath()
+                .fill()),
+        // a speech bubble on a 30x30 canvas
+        COMMENT(canvas -> canvas
+                .setLineWidth(0.85f)
+                .moveTo(6, 27.5)
+                .curveTo(4.3, 27.5, 3, 26.5, 3, 25)
+                .lineTo(3, 12)
+                .curveTo(3, 10.25, 4.3, 10.25, 6, 10.25)
+                .lineTo(7.6, 10.25)
+                .lineTo(11.25, 3)
+                .lineTo(13, 10.25)
+                .lineTo(25.5, 10.25)
+                .curveTo(25.1, 10.25, 26.25, 10.25, 26.25, 12)
+                .lineTo(26.25, 25)
+                .curveTo(26.25, 26.5, 25, 27.5, 23.5, 27.5)
+                .closePath().fill());
+
+        private final Consumer<PdfCanvas> drawing;
+        private final byte[] content;
+
+        Icon(Consumer<PdfCanvas> drawing) {
+            this.drawing = drawing;
+            // path construction doesn't touch the document, so we can render it once for all documents
+            PdfStream stream = new PdfStream();
+            drawing.accept(new PdfCanvas(stream, new PdfResources(), null));
+            this.content = stream.getBytes();
+        }
+    }
+
+    private static final byte[] FILL_RGB = " rg\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final PdfDocument pdfDocument;
+    private final Map<Key, PdfFormXObject> xObjects = new HashMap<>();
+    private int hits = 0;
+    private int misses = 0;
+
+    AppearanceCache(PdfDocument pdfDocument) {
+        this.pdfDocument = pdfDocument;
+    }
+
+    /**
+     * Returns the appearance of an icon in the given colour, creating it on first use.
+     */
+    PdfFormXObject get(Icon icon, Color color) {
+        Key key = new Key(icon, color);
+        PdfFormXObject xObject = xObjects.get(key);
+        if(xObject != null) {
+            hits++;
+            return xObject;
+        }
+        misses++;
+        xObject = new PdfFormXObject(new Rectangle(30, 30));
+        if(color instanceof DeviceRgb) {
+            // like PdfCanvas, make sure the XObject has a (possibly empty) resource dictionary
+            xObject.getResources();
+            xObject.getPdfObject().getOutputStream()
+                    .writeFloats(color.getColorValue())
+                    .writeBytes(FILL_RGB)
+                    .writeBytes(icon.content);
+        } else {
+            // colour spaces other than RGB may need resources, leave those to PdfCanvas
+            PdfCanvas canvas = new PdfCanvas(xObject, pdfDocument);
+            canvas.setFillColor(color);
+            icon.drawing.accept(canvas);
+        }
+        xObjects.put(key, xObject);
+        return xObject;
+    }
+
+    int getHits() {
+        return hits;
+    }
+
+    int getMisses() {
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        return "appearance cache: " + hits + " hits, " + misses + " misses";
+    }
+
+    private static final class Key {
+        private final Icon icon;
+        private final Class<?> colorClass;
+        private final float[] colorValue;
+
+        Key(Icon icon, Color color) {
+            this.icon = icon;
+            this.colorClass = color.getClass();
+            this.colorValue = color.getColorValue();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            if(!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return icon == other.icon && colorClass == other.colorClass
+                    && Arrays.equals(colorValue, other.colorValue);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * icon.hashCode() + colorClass.hashCode()) + Arrays.hashCode(colorValue);
+        }
+    }
+}
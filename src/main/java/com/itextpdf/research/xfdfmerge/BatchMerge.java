@@ -0,0 +1,344 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the merge jobs listed in a manifest file on a fixed-size pool of worker threads.
+ * <p>
+ * Every non-empty line of the manifest that does not start with {@code #} describes one job, either as
+ * comma-separated values
+ * <pre>
+ * input.pdf,input.xfdf,output.pdf[,PGNUMSHIFT/XSHIFT/YSHIFT/SCALE]
+ * </pre>
+ * or as a JSON object
+ * <pre>
+ * {"pdf": "input.pdf", "xfdf": "input.xfdf", "output": "output.pdf", "transform": "0/0/0/1"}
+ * </pre>
+ * where {@code transform} is optional. Both forms may be mixed in the same file.
+ */
+final class BatchMerge {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchMerge.class);
+
+    private final int threads;
+    private final MergeOptions options;
+    private final MergeStatistics statistics = new MergeStatistics();
+
+    BatchMerge(int threads, MergeOptions options) {
+        this.threads = threads;
+        this.options = options;
+        statistics.register();
+    }
+
+    /**
+     * Runs all jobs in the manifest, printing one status line per job and a summary at the end.
+     *
+     * @return the number of failed jobs
+     */
+    int run(String manifest) throws IOException, InterruptedException {
+        List<String> lines;
+        try(BufferedReader br = Files.newBufferedReader(Paths.get(manifest), StandardCharsets.UTF_8)) {
+            lines = new ArrayList<>();
+            String line;
+            while((line = br.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<JobResult> completion = new ExecutorCompletionService<>(executor);
+        int submitted = 0;
+        int failed = 0;
+        try {
+            for(int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i).trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int lineNo = i + 1;
+                completion.submit(() -> runJob(lineNo, line));
+                submitted++;
+            }
+            for(int i = 0; i < submitted; i++) {
+                JobResult result = completion.take().get();
+                if(result.error != null || !result.issues.isEmpty()) {
+                    failed++;
+                }
+                System.out.println(result);
+            }
+        } catch(ExecutionException e) {
+            // runJob catches everything, so this would be a bug
+            throw new IllegalStateException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Processed %d jobs (%d succeeded, %d failed) in %.2f s with %d threads; %.1f jobs/s%n",
+                submitted, submitted - failed, failed, seconds, threads, submitted / seconds);
+        return failed;
+    }
+
+    private JobResult runJob(int lineNo, String line) {
+        long start = System.nanoTime();
+        String output = null;
+        MergeJob job = null;
+        Throwable error = null;
+        List<ValidationIssue> issues = Collections.emptyList();
+        try {
+            job = parseManifestLine(line);
+            output = job.getDescription();
+            if(options.isValidateOnly()) {
+                issues = job.validate(options);
+            } else {
+                job.run(options);
+            }
+        } catch(Throwable e) {
+            // errors too, since running out of memory or stack on one huge input shouldn't abort the batch
+            LOGGER.debug("Job on manifest line " + lineNo + " failed", e);
+            error = e;
+        }
+        JobStats stats = job != null ? job.getStats() : new JobStats();
+        statistics.add(stats, error == null && issues.isEmpty());
+        if(options.isJsonStats()) {
+            System.err.println(stats.toJson(output, error));
+        }
+        return new JobResult(lineNo, output, System.nanoTime() - start, error, issues);
+    }
+
+    static MergeJob parseManifestLine(String line) {
+        if(line.startsWith("{")) {
+            Map<String, String> obj = parseFlatJsonObject(line);
+            return MergeJob.create(
+                    requireField(obj, "pdf"), requireField(obj, "xfdf"), requireField(obj, "output"),
+                    obj.get("transform"));
+        }
+        List<String> fields = splitCsvLine(line);
+        if(fields.size() != 3 && fields.size() != 4) {
+            throw new IllegalArgumentException("Expected 3 or 4 fields, found " + fields.size());
+        }
+        return MergeJob.create(fields.get(0), fields.get(1), fields.get(2), fields.size() == 4 ? fields.get(3) : null);
+    }
+
+    private static String requireField(Map<String, String> obj, String key) {
+        String value = obj.get(key);
+        if(value == null) {
+            throw new IllegalArgumentException("Missing field \"" + key + "\"");
+        }
+        return value;
+    }
+
+    /**
+     * Splits a CSV line. Fields may be enclosed in double quotes, in which case two consecutive
+     * double quotes stand for a literal one.
+     */
+    static List<String> splitCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for(int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if(quoted) {
+                if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if(c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if(c == '"') {
+                quoted = true;
+            } else if(c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if(quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+
+    /**
+     * Parses a JSON object whose values are all strings, numbers, booleans or null. Nested values are rejected.
+     */
+    static Map<String, String> parseFlatJsonObject(String json) {
+        Map<String, String> result = new HashMap<>();
+        int[] pos = {skipWhitespace(json, 0)};
+        expect(json, pos, '{');
+        if(peek(json, pos) == '}') {
+            pos[0] = skipWhitespace(json, pos[0] + 1);
+        } else {
+            while(true) {
+                String key = readJsonString(json, pos);
+                expect(json, pos, ':');
+                String value = peek(json, pos) == '"' ? readJsonString(json, pos) : readJsonLiteral(json, pos);
+                result.put(key, value);
+                char c = peek(json, pos);
+                if(c != ',' && c != '}') {
+                    throw new IllegalArgumentException("Malformed JSON at offset " + pos[0]);
+                }
+                pos[0] = skipWhitespace(json, pos[0] + 1);
+                if(c == '}') {
+                    break;
+                }
+            }
+        }
+        if(pos[0] != json.length()) {
+            throw new IllegalArgumentException("Trailing characters after JSON object");
+        }
+        return result;
+    }
+
+    private static String readJsonString(String json, int[] pos) {
+        expect(json, pos, '"');
+        StringBuilder sb = new StringBuilder();
+        int i = pos[0];
+        while(i < json.length()) {
+            char c = json.charAt(i++);
+            if(c == '"') {
+                pos[0] = skipWhitespace(json, i);
+                return sb.toString();
+            } else if(c == '\\' && i < json.length()) {
+                char esc = json.charAt(i++);
+                switch(esc) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if(i + 4 > json.length()) {
+                            throw new IllegalArgumentException("Malformed unicode escape in JSON");
+                        }
+                        sb.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default: sb.append(esc); break;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated JSON string");
+    }
+
+    private static String readJsonLiteral(String json, int[] pos) {
+        int start = pos[0];
+        int i = start;
+        while(i < json.length() && ",}".indexOf(json.charAt(i)) < 0 && !Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        String literal = json.substring(start, i);
+        if(literal.isEmpty() || literal.startsWith("{") || literal.startsWith("[")) {
+            throw new IllegalArgumentException("Unsupported JSON value at offset " + start);
+        }
+        pos[0] = skipWhitespace(json, i);
+        return "null".equals(literal) ? null : literal;
+    }
+
+    private static char peek(String json, int[] pos) {
+        if(pos[0] >= json.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        return json.charAt(pos[0]);
+    }
+
+    private static void expect(String json, int[] pos, char c) {
+        if(peek(json, pos) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at offset " + pos[0]);
+        }
+        pos[0] = skipWhitespace(json, pos[0] + 1);
+    }
+
+    private static int skipWhitespace(String json, int pos) {
+        while(pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static final class JobResult {
+        final int lineNo;
+        final String output;
+        final long nanos;
+        final Throwable error;
+        final List<ValidationIssue> issues;
+
+        JobResult(int lineNo, String output, long nanos, Throwable error, List<ValidationIssue> issues) {
+            this.lineNo = lineNo;
+            this.output = output;
+            this.nanos = nanos;
+            this.error = error;
+            this.issues = issues;
+        }
+
+        @Override
+        public String toString() {
+            String status = error != null ? "FAILED" : issues.isEmpty() ? "OK" : "INVALID";
+            StringBuilder line = new StringBuilder(status)
+                    .append("\tline ").append(lineNo).append('\t').append(output).append('\t')
+                    .append(nanos / 1000000).append(" ms");
+            if(error != null) {
+                line.append('\t').append(error);
+            } else if(!issues.isEmpty()) {
+                line.append('\t').append(issues.size()).append(" issue(s)");
+            }
+            for(ValidationIssue issue : issues) {
+                line.append(System.lineSeparator()).append('\t').append(issue);
+            }
+            return line.toString();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.commons.utils.MessageFormatUtil;
+import com.itextpdf.forms.xfdf.XfdfAnnotFactory;
+import com.itextpdf.io.logs.IoLogMessageConstant;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the problems of a single {@link MergeJob} that may recur on every annotation, such as unsupported
+ * attributes, and logs them without flooding the log. Each distinct problem is logged when it first occurs, and
+ * then again every {@link #setLogInterval interval} occurrences, if any. Messages are only formatted when they are
+ * logged. Once the job is done, {@link #logSummary} logs the total number of occurrences of each problem.
+ */
+final class Diagnostics {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Diagnostics.class);
+
+    /**
+     * The kinds of problems, each with the message logged for it.
+     */
+    enum Kind {
+        /** An annotation attribute that is ignored, by attribute name. */
+        UNSUPPORTED_ATTRIBUTE(XfdfAnnotFactory.UNSUPPORTED_ANNOT_ATTR),
+        /** An annotation that is dropped, by XFDF element name. */
+        UNSUPPORTED_ANNOTATION(IoLogMessageConstant.XFDF_ANNOTATION_IS_NOT_SUPPORTED);
+
+        private final String message;
+
+        Kind(String message) {
+            this.message = message;
+        }
+    }
+
+    private final Map<Kind, Map<String, Integer>> counts = new EnumMap<>(Kind.class);
+    private int logInterval;
+    private boolean repeated;
+
+    /**
+     * @param logInterval  the number of occurrences after which a problem is logged again, or 0 to log every
+     *                     problem only once
+     */
+    void setLogInterval(int logInterval) {
+        this.logInterval = logInterval;
+    }
+
+    /**
+     * Records occurrences of a problem, logging it if it occurs for the first time, or if the count passes
+     * a multiple of the log interval.
+     *
+     * @param kind   the kind of problem
+     * @param key    what the problem is about, e.g. the attribute name
+     * @param count  the number of occurrences
+     */
+    void report(Kind kind, String key, int count) {
+        if(count <= 0) {
+            return;
+        }
+        int before = counts.computeIfAbsent(kind, k -> new TreeMap<>()).getOrDefault(key, 0);
+        int after = before + count;
+        counts.get(kind).put(key, after);
+        boolean log = before == 0 || logInterval > 0 && before / logInterval != after / logInterval;
+        if(log && LOGGER.isWarnEnabled()) {
+            String message = MessageFormatUtil.format(kind.message, key);
+            LOGGER.warn(after == 1 ? message : message + " (" + after + " times so far)");
+        }
+        repeated |= after > 1;
+    }
+
+    /**
+     * Returns metrics that report unsupported annotations and attributes to these diagnostics, and ignore
+     * everything else.
+     */
+    MergeMetrics asMetrics() {
+        return new MergeMetrics() {
+            @Override
+            public void annotationSkipped(String type) {
+                report(Kind.UNSUPPORTED_ANNOTATION, type, 1);
+            }
+
+            @Override
+            public void attributesUnsupported(String name, int count) {
+                report(Kind.UNSUPPORTED_ATTRIBUTE, name, count);
+            }
+
+            @Override
+            public void annotationUnsupported(String type) {
+                report(Kind.UNSUPPORTED_ANNOTATION, type, 1);
+            }
+        };
+    }
+
+    /**
+     * @return the number of occurrences of each problem of the given kind, by key
+     */
+    Map<String, Integer> getCounts(Kind kind) {
+        return counts.getOrDefault(kind, new TreeMap<>());
+    }
+
+    /**
+     * Logs the total number of occurrences of every problem, unless no problem occurred more than once, in which
+     * case each of them has been logged already.
+     *
+     * @param job  the description of the job
+     */
+    void logSummary(String job) {
+        if(!repeated || !LOGGER.isWarnEnabled()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(job).append(": ");
+        boolean first = true;
+        for(Map.Entry<Kind, Map<String, Integer>> kindCounts : counts.entrySet()) {
+            for(Map.Entry<String, Integer> entry : kindCounts.getValue().entrySet()) {
+                if(!first) {
+                    sb.append("; ");
+                }
+                first = false;
+                sb.append(MessageFormatUtil.format(kindCounts.getKey().message, entry.getKey()))
+                        .append(" (").append(entry.getValue()).append(" times)");
+            }
+        }
+        LOGGER.warn(sb.toString());
+    }
+}
@@ -0,0 +1,114 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.forms.PdfAcroForm;
+import com.itextpdf.forms.fields.PdfFormField;
+import com.itextpdf.forms.xfdf.FieldObject;
+import com.itextpdf.kernel.pdf.PdfDocument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sets the values of the form fields of a PDF document from the fields of an XFDF file.
+ * <p>
+ * The fields of the document are indexed by their fully qualified name once, in a single pass over the field
+ * tree, so every value costs a hash lookup. Values are set without generating appearances, and the appearance of
+ * every changed field is regenerated only once all values have been set. A field that occurs more than once in
+ * the XFDF file (the readers report the fields of nested {@code field} elements twice) is only regenerated once,
+ * with its last value.
+ */
+final class FieldFiller {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FieldFiller.class);
+
+    private final PdfDocument pdfDocument;
+    private MergeMetrics metrics = MergeMetrics.NONE;
+
+    FieldFiller(PdfDocument pdfDocument) {
+        this.pdfDocument = pdfDocument;
+    }
+
+    void setMetrics(MergeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the values of the given fields. Fields without a value are ignored, and values of fields that aren't
+     * in the document are counted, but otherwise ignored.
+     *
+     * @param fields  the fields, with their fully qualified names
+     * @return the number of fields whose value was set
+     */
+    int fill(List<FieldObject> fields) {
+        Map<String, String> values = new LinkedHashMap<>();
+        for(FieldObject field : fields) {
+            if(field.getName() != null && field.getValue() != null) {
+                values.put(field.getName(), field.getValue());
+            }
+        }
+        if(values.isEmpty()) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        PdfAcroForm form = PdfAcroForm.getAcroForm(pdfDocument, false);
+        Map<String, PdfFormField> index = form == null
+                ? Collections.emptyMap()
+                : form.getFormFields();
+        List<PdfFormField> changed = new ArrayList<>(values.size());
+        int unmatched = 0;
+        for(Map.Entry<String, String> entry : values.entrySet()) {
+            PdfFormField field = index.get(entry.getKey());
+            if(field == null) {
+                unmatched++;
+                continue;
+            }
+            field.setValue(entry.getValue(), false);
+            changed.add(field);
+        }
+        for(PdfFormField field : changed) {
+            field.regenerateField();
+        }
+        metrics.recordTime(MergeMetrics.Phase.FILL, System.nanoTime() - start);
+        metrics.fieldsFilled(changed.size(), unmatched);
+        if(unmatched > 0) {
+            LOGGER.warn("{} field value(s) were not set, because the document has no field with that name", unmatched);
+        }
+        return changed.size();
+    }
+}
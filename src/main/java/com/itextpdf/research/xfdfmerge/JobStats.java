@@ -0,0 +1,271 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the measurements of a single {@link MergeJob}, and renders them as a JSON report. Unsupported annotations
+ * and attributes are passed on to the {@link Diagnostics} of the job as well.
+ */
+final class JobStats implements MergeMetrics {
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private final Map<String, Integer> merged = new TreeMap<>();
+    private final Map<String, Integer> skipped = new TreeMap<>();
+    private final Map<String, Integer> unsupported = new TreeMap<>();
+    private final Diagnostics diagnostics = new Diagnostics();
+    private int pendingReplies;
+    private int fieldsFilled;
+    private int fieldsUnmatched;
+    private long bytesRead;
+    private long bytesWritten;
+    private String outputMode;
+    private String cacheResult;
+    private boolean overlapped;
+    private long overlapSavedNanos;
+
+    @Override
+    public void recordTime(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    @Override
+    public void annotationMerged(String type) {
+        merged.merge(type, 1, Integer::sum);
+    }
+
+    @Override
+    public void annotationSkipped(String type) {
+        skipped.merge(type, 1, Integer::sum);
+        diagnostics.report(Diagnostics.Kind.UNSUPPORTED_ANNOTATION, type, 1);
+    }
+
+    @Override
+    public void attributesUnsupported(String name, int count) {
+        diagnostics.report(Diagnostics.Kind.UNSUPPORTED_ATTRIBUTE, name, count);
+    }
+
+    @Override
+    public void annotationUnsupported(String type) {
+        unsupported.merge(type, 1, Integer::sum);
+        diagnostics.report(Diagnostics.Kind.UNSUPPORTED_ANNOTATION, type, 1);
+    }
+
+    @Override
+    public void fieldsFilled(int filled, int unmatched) {
+        fieldsFilled += filled;
+        fieldsUnmatched += unmatched;
+    }
+
+    @Override
+    public void pendingReplies(int count) {
+        pendingReplies += count;
+    }
+
+    @Override
+    public void bytesRead(long count) {
+        bytesRead += count;
+    }
+
+    @Override
+    public void bytesWritten(long count) {
+        bytesWritten += count;
+    }
+
+    /**
+     * @param outputMode  how the output document is written, {@code append} or {@code compact}
+     */
+    void setOutputMode(String outputMode) {
+        this.outputMode = outputMode;
+    }
+
+    /**
+     * @param cacheResult  whether the XFDF file was found in the parse cache, {@code hit} or {@code miss}
+     */
+    void setCacheResult(String cacheResult) {
+        this.cacheResult = cacheResult;
+    }
+
+    /**
+     * @param nanos  how much sooner the merge could start because the XFDF file was read while the PDF document
+     *               was opened, which is negative if it started later
+     */
+    void setOverlapSaved(long nanos) {
+        this.overlapped = true;
+        this.overlapSavedNanos = nanos;
+    }
+
+    boolean isOverlapped() {
+        return overlapped;
+    }
+
+    long getOverlapSavedNanos() {
+        return overlapSavedNanos;
+    }
+
+    long getNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    Map<String, Integer> getMerged() {
+        return merged;
+    }
+
+    Map<String, Integer> getSkipped() {
+        return skipped;
+    }
+
+    Map<String, Integer> getUnsupported() {
+        return unsupported;
+    }
+
+    Diagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
+    int getPendingReplies() {
+        return pendingReplies;
+    }
+
+    int getFieldsFilled() {
+        return fieldsFilled;
+    }
+
+    int getFieldsUnmatched() {
+        return fieldsUnmatched;
+    }
+
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Renders the report as a single-line JSON object.
+     *
+     * @param job    the description of the job
+     * @param error  the error that made the job fail, or null if it succeeded
+     */
+    String toJson(String job, Throwable error) {
+        StringBuilder sb = new StringBuilder("{\"job\":");
+        appendString(sb, job);
+        sb.append(",\"status\":\"").append(error == null ? "OK" : "FAILED").append('"');
+        if(error != null) {
+            sb.append(",\"error\":");
+            appendString(sb, error.toString());
+        }
+        sb.append(",\"timesMs\":{");
+        for(Phase phase : Phase.values()) {
+            if(phase.ordinal() > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(phase.name().toLowerCase(Locale.ROOT)).append("\":")
+                    .append(String.format(Locale.ROOT, "%.3f", phaseNanos[phase.ordinal()] / 1e6));
+        }
+        sb.append("},\"annotations\":{\"merged\":");
+        appendCounts(sb, merged);
+        sb.append(",\"skipped\":");
+        appendCounts(sb, skipped);
+        sb.append(",\"unsupported\":");
+        appendCounts(sb, unsupported);
+        sb.append(",\"unsupportedAttributes\":");
+        appendCounts(sb, diagnostics.getCounts(Diagnostics.Kind.UNSUPPORTED_ATTRIBUTE));
+        sb.append(",\"pendingReplies\":").append(pendingReplies)
+                .append("},\"fields\":{\"filled\":").append(fieldsFilled)
+                .append(",\"unmatched\":").append(fieldsUnmatched)
+                .append("},\"bytesRead\":").append(bytesRead)
+                .append(",\"bytesWritten\":").append(bytesWritten);
+        if(outputMode != null) {
+            sb.append(",\"output\":\"").append(outputMode).append('"');
+        }
+        if(cacheResult != null) {
+            sb.append(",\"cache\":\"").append(cacheResult).append('"');
+        }
+        if(overlapped) {
+            sb.append(",\"overlapSavedMs\":")
+                    .append(String.format(Locale.ROOT, "%.3f", overlapSavedNanos / 1e6));
+        }
+        sb.append('}');
+        return sb.toString();
+    }
+
+    private static void appendCounts(StringBuilder sb, Map<String, Integer> counts) {
+        sb.append('{');
+        boolean first = true;
+        for(Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if(!first) {
+                sb.append(',');
+            }
+            first = false;
+            appendString(sb, entry.getKey());
+            sb.append(':').append(entry.getValue());
+        }
+        sb.append('}');
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if(c < 0x20) {
+                        sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
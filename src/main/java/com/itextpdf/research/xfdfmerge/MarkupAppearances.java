@@ -0,0 +1,257 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.kernel.colors.Color;
+import com.itextpdf.kernel.pdf.CompressionConstants;
+import com.itextpdf.kernel.pdf.PdfDictionary;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfName;
+import com.itextpdf.kernel.pdf.PdfOutputStream;
+import com.itextpdf.kernel.pdf.extgstate.PdfExtGState;
+import com.itextpdf.kernel.pdf.xobject.PdfFormXObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-document generator of appearance streams for highlight, underline, strikeout and squiggly annotations.
+ * <p>
+ * The appearance is drawn in page coordinates straight from the transformed quad points, so its bounding box is
+ * the annotation rectangle and no matrix is needed. The opacity and blend mode are set by a graphics state. All
+ * appearances with the same opacity and blend mode share a single resource dictionary, which is an indirect
+ * object, so every appearance only adds its content stream to the document.
+ */
+final class MarkupAppearances {
+
+    private static final PdfName GS_NAME = new PdfName("GS0");
+    private static final byte[] FILL_RGB = " rg\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] STROKE_RGB = " RG\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SET_GS = "/GS0 gs\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LINE_WIDTH = " w\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] MOVE_TO = " m\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LINE_TO = " l\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CLOSE_PATH = "h\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] FILL = "f\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] STROKE = "S\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    // the upper bound on the number of segments of a squiggly line, however thin the quadrilateral
+    private static final int MAX_SQUIGGLES = 1000;
+    // the length of content below which compressing the stream makes the file larger
+    private static final int MIN_COMPRESSED_LENGTH = 128;
+
+    private final PdfDocument pdfDocument;
+    private final Map<ResourceKey, PdfDictionary> resources = new HashMap<>();
+    private int appearances = 0;
+
+    /**
+     * @param pdfDocument  the document to make the shared resource dictionaries indirect in, or null to leave
+     *                     them direct until {@link #makeIndirect(PdfDocument)} is called
+     */
+    MarkupAppearances(PdfDocument pdfDocument) {
+        this.pdfDocument = pdfDocument;
+    }
+
+    /**
+     * Creates the appearance of a text markup annotation.
+     *
+     * @param subtype   {@link PdfName#Highlight}, {@link PdfName#Underline}, {@link PdfName#StrikeOut} or
+     *                  {@link PdfName#Squiggly}
+     * @param prepared  the annotation, with its rectangle, quad points, colour and opacity
+     */
+    PdfFormXObject create(PdfName subtype, PreparedAnnotation prepared) {
+        appearances++;
+        // highlights are painted like a marker, which darkens the text instead of covering it
+        PdfName blendMode = PdfName.Highlight.equals(subtype) ? PdfName.Multiply : null;
+        PdfFormXObject xObject = new PdfFormXObject(prepared.rect);
+        xObject.getPdfObject().put(PdfName.Resources, getResources(prepared.opacity, blendMode));
+
+        PdfOutputStream out = xObject.getPdfObject().getOutputStream();
+        Color color = prepared.color;
+        out.writeFloats(color.getColorValue());
+        out.writeBytes(PdfName.Highlight.equals(subtype) ? FILL_RGB : STROKE_RGB);
+        if(prepared.opacity < 1 || blendMode != null) {
+            out.writeBytes(SET_GS);
+        }
+        float[] quads = prepared.quadPoints;
+        for(int i = 0; i + 8 <= quads.length; i += 8) {
+            // the corners are the upper left, upper right, lower left and lower right of the text, in that order
+            if(PdfName.Highlight.equals(subtype)) {
+                writePoint(out, quads[i], quads[i + 1], MOVE_TO);
+                writePoint(out, quads[i + 2], quads[i + 3], LINE_TO);
+                writePoint(out, quads[i + 6], quads[i + 7], LINE_TO);
+                writePoint(out, quads[i + 4], quads[i + 5], LINE_TO);
+                out.writeBytes(CLOSE_PATH);
+                continue;
+            }
+            Quad quad = new Quad(quads, i);
+            if(quad.height > 0 && quad.length > 0) {
+                float lineWidth = quad.height / 14;
+                out.writeFloat(lineWidth).writeBytes(LINE_WIDTH);
+                if(PdfName.Squiggly.equals(subtype)) {
+                    writeSquiggle(out, quad, lineWidth);
+                } else {
+                    float offset = PdfName.StrikeOut.equals(subtype) ? quad.height / 2 : lineWidth / 2;
+                    quad.writePoint(out, 0, offset, MOVE_TO);
+                    quad.writePoint(out, quad.length, offset, LINE_TO);
+                    out.writeBytes(STROKE);
+                }
+            }
+        }
+        if(PdfName.Highlight.equals(subtype) && quads.length >= 8) {
+            out.writeBytes(FILL);
+        }
+        if(out.getCurrentPos() < MIN_COMPRESSED_LENGTH) {
+            // a few path operators hardly compress, and leaving out the filter saves more than compression would
+            xObject.getPdfObject().setCompressionLevel(CompressionConstants.NO_COMPRESSION);
+        }
+        return xObject;
+    }
+
+    /**
+     * Makes the shared resource dictionaries indirect objects of the given document. This is needed if the
+     * appearances were created with no document, once they have been added to the document they end up in.
+     */
+    void makeIndirect(PdfDocument document) {
+        for(PdfDictionary dictionary : resources.values()) {
+            dictionary.makeIndirect(document);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "markup appearances: " + appearances + " streams, " + resources.size() + " shared resources";
+    }
+
+    private PdfDictionary getResources(float opacity, PdfName blendMode) {
+        ResourceKey key = new ResourceKey(opacity, blendMode);
+        PdfDictionary dictionary = resources.get(key);
+        if(dictionary == null) {
+            dictionary = new PdfDictionary();
+            if(opacity < 1 || blendMode != null) {
+                PdfExtGState extGState = new PdfExtGState();
+                if(opacity < 1) {
+                    extGState.setFillOpacity(opacity).setStrokeOpacity(opacity);
+                }
+                if(blendMode != null) {
+                    extGState.setBlendMode(blendMode);
+                }
+                PdfDictionary extGStates = new PdfDictionary();
+                extGStates.put(GS_NAME, extGState.getPdfObject());
+                dictionary.put(PdfName.ExtGState, extGStates);
+            }
+            if(pdfDocument != null) {
+                dictionary.makeIndirect(pdfDocument);
+            }
+            resources.put(key, dictionary);
+        }
+        return dictionary;
+    }
+
+    private static void writeSquiggle(PdfOutputStream out, Quad quad, float lineWidth) {
+        float step = Math.max(quad.height / 6, quad.length / MAX_SQUIGGLES);
+        float amplitude = quad.height / 8;
+        quad.writePoint(out, 0, lineWidth / 2, MOVE_TO);
+        int i = 1;
+        for(float along = step; along < quad.length + step; along += step, i++) {
+            quad.writePoint(out, Math.min(along, quad.length), lineWidth / 2 + (i % 2) * amplitude, LINE_TO);
+        }
+        out.writeBytes(STROKE);
+    }
+
+    private static void writePoint(PdfOutputStream out, float x, float y, byte[] operator) {
+        out.writeFloat(x).writeSpace().writeFloat(y).writeBytes(operator);
+    }
+
+    /**
+     * The lower edge of a quadrilateral of quad points, as the origin of a coordinate system whose x axis runs
+     * along that edge and whose y axis runs up to the upper edge, so that rotated text is marked up correctly.
+     */
+    private static final class Quad {
+        private final float x;
+        private final float y;
+        private final float length;
+        private final float height;
+        private final float ux;
+        private final float uy;
+        private final float nx;
+        private final float ny;
+
+        Quad(float[] quads, int offset) {
+            x = quads[offset + 4];
+            y = quads[offset + 5];
+            float dx = quads[offset + 6] - x;
+            float dy = quads[offset + 7] - y;
+            length = (float) Math.hypot(dx, dy);
+            ux = length > 0 ? dx / length : 1;
+            uy = length > 0 ? dy / length : 0;
+            float hx = quads[offset] - x;
+            float hy = quads[offset + 1] - y;
+            height = (float) Math.hypot(hx, hy);
+            nx = height > 0 ? hx / height : 0;
+            ny = height > 0 ? hy / height : 1;
+        }
+
+        void writePoint(PdfOutputStream out, float along, float up, byte[] operator) {
+            MarkupAppearances.writePoint(out, x + along * ux + up * nx, y + along * uy + up * ny, operator);
+        }
+    }
+
+    private static final class ResourceKey {
+        private final float opacity;
+        private final PdfName blendMode;
+
+        ResourceKey(float opacity, PdfName blendMode) {
+            this.opacity = opacity;
+            this.blendMode = blendMode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            if(!(o instanceof ResourceKey)) {
+                return false;
+            }
+            ResourceKey other = (ResourceKey) o;
+            return Float.compare(opacity, other.opacity) == 0 && (blendMode == null
+                    ? other.blendMode == null : blendMode.equals(other.blendMode));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Float.hashCode(opacity) + (blendMode == null ? 0 : blendMode.hashCode());
+        }
+    }
+}
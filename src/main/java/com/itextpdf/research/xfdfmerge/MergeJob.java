@@ -0,0 +1,772 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.forms.xfdf.AnnotObject;
+import com.itextpdf.forms.xfdf.AnnotsObject;
+import com.itextpdf.forms.xfdf.FieldObject;
+import com.itextpdf.forms.xfdf.FieldsObject;
+import com.itextpdf.forms.xfdf.XfdfAnnotFactory;
+import com.itextpdf.forms.xfdf.XfdfObject;
+import com.itextpdf.forms.xfdf.XfdfStreamingAnnotFactory;
+import com.itextpdf.io.source.IRandomAccessSource;
+import com.itextpdf.io.source.RandomAccessSourceFactory;
+import com.itextpdf.kernel.geom.AffineTransform;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfReader;
+import com.itextpdf.kernel.pdf.PdfWriter;
+import com.itextpdf.kernel.pdf.ReaderProperties;
+import com.itextpdf.kernel.pdf.StampingProperties;
+import com.itextpdf.kernel.pdf.WriterProperties;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single merge of an XFDF file into a PDF document, as described on the command line,
+ * by one line of a batch manifest, or by a request to the merge server.
+ */
+final class MergeJob {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MergeJob.class);
+
+    /**
+     * Number of annotations the streaming reader collects before preparing them in parallel.
+     */
+    private static final int STREAMING_BATCH_SIZE = 4096;
+
+    /**
+     * The file name that stands for standard input or output on the command line.
+     */
+    static final String STANDARD_STREAM = "-";
+
+    private static final String MEMORY = "<memory>";
+
+    private static final RandomAccessSourceFactory SOURCE_FACTORY = new RandomAccessSourceFactory();
+
+    private static final AtomicLong TEMPORARY_FILE_COUNTER = new AtomicLong();
+
+    /**
+     * Opens one of the inputs or outputs of a job. Sources are opened lazily, when the job runs.
+     */
+    interface Source<T> {
+        T open() throws IOException;
+    }
+
+    private final String description;
+    private final Source<PdfReader> pdfIn;
+    private final Source<InputStream> xfdfIn;
+    private final Source<OutputStream> pdfOut;
+    private final AffineTransform transform;
+    private final int pageShift;
+    private final JobStats stats = new JobStats();
+
+    /**
+     * @param transformString  the transformation string ({@code PGNUMSHIFT/XSHIFT/YSHIFT/SCALE}),
+     *                         or null for the identity transformation
+     * @throws IllegalArgumentException if the transformation string is malformed
+     */
+    private MergeJob(String description, Source<PdfReader> pdfIn, Source<InputStream> xfdfIn,
+            Source<OutputStream> pdfOut, String transformString) {
+        this.description = description;
+        this.pdfIn = pdfIn;
+        this.xfdfIn = xfdfIn;
+        this.pdfOut = pdfOut;
+        if(transformString == null) {
+            this.transform = new AffineTransform();
+            this.pageShift = 0;
+            return;
+        }
+        String[] split = transformString.split("/");
+        if(split.length != 4) {
+            throw new IllegalArgumentException("Malformed transformation string: " + transformString);
+        }
+        try {
+            this.pageShift = Integer.parseInt(split[0]);
+            double xShift = Double.parseDouble(split[1]);
+            double yShift = Double.parseDouble(split[2]);
+            double scale = Double.parseDouble(split[3]);
+            this.transform = new AffineTransform(new double[] {scale, 0, 0, scale, xShift, yShift});
+        } catch(NumberFormatException nfe) {
+            throw new IllegalArgumentException("Malformed transformation string: " + transformString, nfe);
+        }
+    }
+
+    private MergeJob(String description, Source<PdfReader> pdfIn, Source<InputStream> xfdfIn,
+            Source<OutputStream> pdfOut, AffineTransform transform, int pageShift) {
+        this.description = description;
+        this.pdfIn = pdfIn;
+        this.xfdfIn = xfdfIn;
+        this.pdfOut = pdfOut;
+        this.transform = new AffineTransform(transform);
+        this.pageShift = pageShift;
+    }
+
+    /**
+     * Creates a job that reads and writes files.
+     *
+     * @throws IllegalArgumentException if the transformation string is malformed
+     */
+    static MergeJob create(String pdfIn, String xfdfIn, String pdfOut, String transformString) {
+        return new MergeJob(pdfOut, () -> new PdfReader(pdfIn), () -> new FileInputStream(xfdfIn),
+                new FileOutput(pdfOut), transformString);
+    }
+
+    /**
+     * Creates a job for the command line, where {@value #STANDARD_STREAM} stands for standard input or output.
+     * At most one of the inputs can be read from standard input. A PDF document read from standard input is
+     * kept in memory. A job without an output, for which {@code pdfOut} is null, can only be validated.
+     *
+     * @throws IllegalArgumentException if both inputs are standard input, or if the transformation string
+     *                                  is malformed
+     */
+    static MergeJob createWithStandardStreams(String pdfIn, String xfdfIn, String pdfOut, String transformString) {
+        if(STANDARD_STREAM.equals(pdfIn) && STANDARD_STREAM.equals(xfdfIn)) {
+            throw new IllegalArgumentException("Only one input can be read from standard input");
+        }
+        Source<PdfReader> pdfSource = STANDARD_STREAM.equals(pdfIn)
+                ? () -> new PdfReader(SOURCE_FACTORY.createSource(new FileInputStream(FileDescriptor.in)),
+                        new ReaderProperties())
+                : () -> new PdfReader(pdfIn);
+        Source<InputStream> xfdfSource = STANDARD_STREAM.equals(xfdfIn)
+                ? () -> new FileInputStream(FileDescriptor.in)
+                : () -> new FileInputStream(xfdfIn);
+        if(pdfOut == null) {
+            return new MergeJob(STANDARD_STREAM.equals(pdfIn) ? "<stdin>" : pdfIn, pdfSource, xfdfSource, null,
+                    transformString);
+        }
+        // not System.out, which would swallow write errors
+        Source<OutputStream> pdfTarget = STANDARD_STREAM.equals(pdfOut)
+                ? () -> new FileOutputStream(FileDescriptor.out)
+                : new FileOutput(pdfOut);
+        return new MergeJob(STANDARD_STREAM.equals(pdfOut) ? "<stdout>" : pdfOut, pdfSource, xfdfSource, pdfTarget,
+                transformString);
+    }
+
+    /**
+     * Creates a job that reads its inputs from memory and writes the result to a stream.
+     * The PDF document is read in place, without copying it.
+     *
+     * @throws IllegalArgumentException if the transformation string is malformed
+     */
+    static MergeJob create(byte[] pdfIn, byte[] xfdfIn, OutputStream pdfOut, String transformString) {
+        return new MergeJob(MEMORY, () -> new PdfReader(SOURCE_FACTORY.createSource(pdfIn), new ReaderProperties()),
+                () -> new ByteArrayInputStream(xfdfIn), () -> pdfOut, transformString);
+    }
+
+    /**
+     * Creates a job that reads its inputs from memory and writes the result to a stream.
+     * The PDF document is read in place, without copying it.
+     */
+    static MergeJob create(byte[] pdfIn, byte[] xfdfIn, OutputStream pdfOut, AffineTransform transform,
+            int pageShift) {
+        return new MergeJob(MEMORY, () -> new PdfReader(SOURCE_FACTORY.createSource(pdfIn), new ReaderProperties()),
+                () -> new ByteArrayInputStream(xfdfIn), () -> pdfOut, transform, pageShift);
+    }
+
+    /**
+     * Creates a job that reads the remaining bytes of two buffers and writes the result to a stream.
+     * The PDF document is read in place, without copying it. The positions of the buffers are not changed.
+     */
+    static MergeJob create(ByteBuffer pdfIn, ByteBuffer xfdfIn, OutputStream pdfOut, AffineTransform transform,
+            int pageShift) {
+        ByteBuffer pdf = pdfIn.slice();
+        ByteBuffer xfdf = xfdfIn.slice();
+        return new MergeJob(MEMORY, () -> new PdfReader(new ByteBufferSource(pdf), new ReaderProperties()),
+                () -> new ByteBufferInputStream(xfdf.duplicate()), () -> pdfOut, transform,
+                pageShift);
+    }
+
+    /**
+     * Creates a job that reads its inputs from streams and writes the result to a stream. The PDF document is
+     * read into memory when the job runs, since it needs random access; the XFDF file is read as it is parsed.
+     */
+    static MergeJob create(InputStream pdfIn, InputStream xfdfIn, OutputStream pdfOut, AffineTransform transform,
+            int pageShift) {
+        return new MergeJob(MEMORY, () -> {
+            try(InputStream is = pdfIn) {
+                return new PdfReader(SOURCE_FACTORY.createSource(is), new ReaderProperties());
+            }
+        }, () -> xfdfIn, () -> pdfOut, transform, pageShift);
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    AffineTransform getTransform() {
+        return transform;
+    }
+
+    int getPageShift() {
+        return pageShift;
+    }
+
+    /**
+     * @return the measurements of this job, which are complete once {@link #run} has returned or failed
+     */
+    JobStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Runs the merge, using a fresh {@link PdfDocument} and {@link XfdfMerge}. An output file is only replaced
+     * once the merge has succeeded.
+     *
+     * @throws IllegalStateException if the job has no output
+     */
+    void run(MergeOptions options) throws IOException {
+        if(pdfOut == null) {
+            throw new IllegalStateException("A job without an output can only be validated");
+        }
+        stats.getDiagnostics().setLogInterval(options.getWarningInterval());
+        boolean streaming = options.isStreaming();
+        boolean parallel = options.isParallel();
+        FileOutput outputFile = pdfOut instanceof FileOutput ? (FileOutput) pdfOut : null;
+        // unless the streaming reader merges annotations as they're parsed, they're all read before merging
+        boolean readFirst = options.getParseCache() != null || !streaming;
+        FutureTask<XfdfContents> reading = null;
+        XfdfContents contents = null;
+        long readStart = System.nanoTime();
+        // opening the PDF document starts writing the output, so the XFDF file can only be read meanwhile
+        // if a failure to read it doesn't leave a damaged output behind
+        if(readFirst && options.isOverlapOpen() && outputFile != null && outputFile.isReplaced()) {
+            reading = new FutureTask<>(() -> readXfdf(options));
+            Thread reader = new Thread(reading, "xfdf-reader");
+            reader.setDaemon(true);
+            reader.start();
+        } else if(readFirst) {
+            contents = readXfdf(options);
+            contents.report();
+        }
+        StampingProperties sp = new StampingProperties();
+        WriterProperties wp = new WriterProperties().setCompressionLevel(options.getCompressionLevel());
+        if(options.isCompact()) {
+            // rewrite everything, so that unchanged objects end up in object streams as well
+            wp.setFullCompressionMode(true);
+        } else {
+            sp.useAppendMode();
+        }
+        stats.setOutputMode(options.isCompact() ? "compact" : "append");
+        long openStart = System.nanoTime();
+        // the document isn't a resource of its own: closing it writes it, which is only done once the merge has
+        // succeeded, and otherwise the reader and writer are closed without writing anything more
+        try(PdfReader r = pdfIn.open();
+            PdfWriter w = new PdfWriter(pdfOut.open(), wp)) {
+            PdfDocument pdfDoc = new PdfDocument(r, w, sp);
+            long openNanos = System.nanoTime() - openStart;
+            stats.recordTime(MergeMetrics.Phase.OPEN, openNanos);
+            stats.bytesRead(r.getFileLength());
+            XfdfMerge mrg = new XfdfMerge(pdfDoc, transform, pageShift);
+            mrg.setMetrics(stats);
+            mrg.setMarkupAppearances(options.isMarkupAppearances());
+            // indexing existing annotations only needs the PDF document, so it overlaps with reading as well
+            mrg.setExistingAnnotationPolicy(options.getExistingAnnotationPolicy());
+            if(reading != null) {
+                contents = awaitXfdf(reading);
+                contents.report();
+                // reading and opening took this long one after the other, but only the elapsed time in parallel
+                long sequentialNanos = contents.nanos + openNanos + stats.getNanos(MergeMetrics.Phase.INDEX);
+                stats.setOverlapSaved(sequentialNanos - (System.nanoTime() - readStart));
+            }
+            List<AnnotObject> annots = contents == null ? null : contents.annots;
+            List<FieldObject> fields = contents == null ? null : contents.fields;
+            if(annots == null && (options.getShards() > 1 || options.isGroupByPage())) {
+                annots = new ArrayList<>();
+                fields = readStreaming(annots::add, options);
+            }
+            if(annots != null) {
+                // fill in the fields first, since merging page by page flushes pages along with their widgets
+                fillFields(mrg, fields, options);
+                if(options.getShards() > 1) {
+                    ShardedMerge sharded = new ShardedMerge(pdfDoc, transform, pageShift, options.getShards());
+                    sharded.setMetrics(stats);
+                    sharded.setMarkupAppearances(options.isMarkupAppearances());
+                    sharded.merge(annots, parallel);
+                    stats.pendingReplies(sharded.getPendingReplyCount());
+                } else if(options.isGroupByPage()) {
+                    mrg.mergeAnnotationsByPage(annots, parallel);
+                } else {
+                    mrg.mergeAnnotations(annots, parallel);
+                }
+            } else if(parallel) {
+                // parse in a single pass, preparing and merging one batch at a time
+                List<AnnotObject> batch = new ArrayList<>(STREAMING_BATCH_SIZE);
+                fields = readStreaming(annot -> {
+                    batch.add(annot);
+                    if(batch.size() == STREAMING_BATCH_SIZE) {
+                        mrg.mergeAnnotations(batch, true);
+                        batch.clear();
+                    }
+                }, options);
+                mrg.mergeAnnotations(batch, true);
+                fillFields(mrg, fields, options);
+            } else {
+                // parse and merge in a single pass
+                fields = readStreaming(mrg::mergeAnnotation, options);
+                fillFields(mrg, fields, options);
+            }
+            stats.pendingReplies(mrg.getPendingReplyCount());
+            LOGGER.debug("{}: {}", description, mrg.getAppearanceCache());
+            if(mrg.getMarkupAppearances() != null) {
+                LOGGER.debug("{}: {}", description, mrg.getMarkupAppearances());
+            }
+
+            long writeStart = System.nanoTime();
+            pdfDoc.close();
+            stats.recordTime(MergeMetrics.Phase.WRITE, System.nanoTime() - writeStart);
+            stats.bytesWritten(w.getCurrentPos());
+        } catch(Throwable t) {
+            if(outputFile != null) {
+                outputFile.discard();
+            }
+            throw t;
+        } finally {
+            if(reading != null) {
+                // if opening the PDF document failed, there's no use in reading on
+                reading.cancel(true);
+            }
+            stats.getDiagnostics().logSummary(description);
+        }
+        if(outputFile != null) {
+            outputFile.commit();
+        }
+    }
+
+    /**
+     * Checks whether the merge would succeed, without writing anything. The PDF document is opened for reading
+     * only, and the output is never opened.
+     *
+     * @return the issues found, or an empty list if there are none
+     */
+    List<ValidationIssue> validate(MergeOptions options) throws IOException {
+        stats.getDiagnostics().setLogInterval(options.getWarningInterval());
+        XfdfContents contents = readXfdf(options);
+        contents.report();
+        long openStart = System.nanoTime();
+        try(PdfReader r = pdfIn.open();
+            PdfDocument pdfDoc = new PdfDocument(r)) {
+            stats.recordTime(MergeMetrics.Phase.OPEN, System.nanoTime() - openStart);
+            stats.bytesRead(r.getFileLength());
+            return new MergeValidator(transform, pageShift, options.getExistingAnnotationPolicy())
+                    .validate(pdfDoc, contents.annots, contents.skipped);
+        } finally {
+            stats.getDiagnostics().logSummary(description);
+        }
+    }
+
+    /**
+     * Reads all annotations of the XFDF file, from the parse cache if there is one. This doesn't touch
+     * the measurements of the job, so it can run on any thread; see {@link XfdfContents#report}.
+     */
+    private XfdfContents readXfdf(MergeOptions options) throws IOException {
+        long start = System.nanoTime();
+        XfdfContents contents = new XfdfContents();
+        if(options.getParseCache() != null) {
+            readCached(options.getParseCache(), options.isStreaming(), contents);
+        } else if(options.isStreaming()) {
+            try(CountingInputStream is = new CountingInputStream(xfdfIn.open())) {
+                XfdfStreamingAnnotFactory factory = new XfdfStreamingAnnotFactory();
+                factory.setLogUnsupportedAttributes(false);
+                FieldsObject fieldsObject = new FieldsObject();
+                contents.annots = new ArrayList<>();
+                factory.readAnnotations(is, contents.annots::add, fieldsObject);
+                contents.fields = fieldsObject.getFieldList();
+                contents.skipped = factory.getSkippedAnnotations();
+                contents.unsupportedAttributes = factory.getUnsupportedAttributes();
+                contents.bytesRead = is.getCount();
+            }
+        } else {
+            try(CountingInputStream is = new CountingInputStream(xfdfIn.open())) {
+                XfdfAnnotFactory factory = new XfdfAnnotFactory();
+                factory.setLogUnsupportedAttributes(false);
+                XfdfObject xfdfObject = factory.createXfdfObject(is);
+                contents.annots = getAnnots(xfdfObject);
+                contents.fields = getFields(xfdfObject);
+                contents.skipped = factory.getSkippedAnnotations();
+                contents.unsupportedAttributes = factory.getUnsupportedAttributes();
+                contents.bytesRead = is.getCount();
+            }
+        }
+        contents.nanos = System.nanoTime() - start;
+        return contents;
+    }
+
+    private static XfdfContents awaitXfdf(FutureTask<XfdfContents> reading) throws IOException {
+        try {
+            return reading.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the XFDF file");
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Reads the annotations from the parse cache, or parses the XFDF file and stores the result in the cache.
+     * Either way, the XFDF file is read into memory first, to compute its key.
+     */
+    private void readCached(ParseCache cache, boolean streaming, XfdfContents contents) throws IOException {
+        byte[] xfdf;
+        try(InputStream is = xfdfIn.open()) {
+            xfdf = is.readAllBytes();
+        }
+        contents.bytesRead = xfdf.length;
+        String key = ParseCache.getKey(xfdf);
+        Map<String, Integer> skipped = new TreeMap<>();
+        Map<String, Integer> unsupportedAttributes = new TreeMap<>();
+        List<FieldObject> fields = new ArrayList<>();
+        List<AnnotObject> annots = cache.get(key, fields, skipped, unsupportedAttributes);
+        contents.cacheResult = annots == null ? "miss" : "hit";
+        if(annots == null) {
+            if(streaming) {
+                XfdfStreamingAnnotFactory factory = new XfdfStreamingAnnotFactory();
+                factory.setLogUnsupportedAttributes(false);
+                FieldsObject fieldsObject = new FieldsObject();
+                annots = new ArrayList<>();
+                factory.readAnnotations(new ByteArrayInputStream(xfdf), annots::add, fieldsObject);
+                fields = fieldsObject.getFieldList();
+                skipped = factory.getSkippedAnnotations();
+                unsupportedAttributes = factory.getUnsupportedAttributes();
+            } else {
+                XfdfAnnotFactory factory = new XfdfAnnotFactory();
+                factory.setLogUnsupportedAttributes(false);
+                XfdfObject xfdfObject = factory.createXfdfObject(new ByteArrayInputStream(xfdf));
+                annots = getAnnots(xfdfObject);
+                fields = getFields(xfdfObject);
+                skipped = factory.getSkippedAnnotations();
+                unsupportedAttributes = factory.getUnsupportedAttributes();
+            }
+            cache.put(key, annots, fields, skipped, unsupportedAttributes);
+        }
+        contents.annots = annots;
+        contents.fields = fields;
+        contents.skipped = skipped;
+        contents.unsupportedAttributes = unsupportedAttributes;
+    }
+
+    private static List<AnnotObject> getAnnots(XfdfObject xfdfObject) {
+        AnnotsObject annotsObject = xfdfObject.getAnnots();
+        return annotsObject == null || annotsObject.getAnnotsList() == null
+                ? new ArrayList<>()
+                : annotsObject.getAnnotsList();
+    }
+
+    private static List<FieldObject> getFields(XfdfObject xfdfObject) {
+        FieldsObject fieldsObject = xfdfObject.getFields();
+        return fieldsObject == null || fieldsObject.getFieldList() == null
+                ? new ArrayList<>()
+                : fieldsObject.getFieldList();
+    }
+
+    /**
+     * Reads the annotations with the streaming reader. Since the consumer may merge annotations as they are
+     * read, the time spent in the merge phases is subtracted from the parse time.
+     *
+     * @return the fields of the XFDF file, or an empty list if fields aren't merged
+     */
+    private List<FieldObject> readStreaming(Consumer<AnnotObject> annotConsumer, MergeOptions options)
+            throws IOException {
+        long start = System.nanoTime();
+        long mergeStart = getMergeNanos();
+        FieldsObject fieldsObject = options.isMergeFields() ? new FieldsObject() : null;
+        try(CountingInputStream is = new CountingInputStream(xfdfIn.open())) {
+            XfdfStreamingAnnotFactory factory = new XfdfStreamingAnnotFactory();
+            factory.setLogUnsupportedAttributes(false);
+            factory.readAnnotations(is, annotConsumer, fieldsObject);
+            reportReaderCounts(factory.getSkippedAnnotations(), factory.getUnsupportedAttributes());
+            stats.bytesRead(is.getCount());
+        }
+        long merging = getMergeNanos() - mergeStart;
+        stats.recordTime(MergeMetrics.Phase.PARSE, System.nanoTime() - start - merging);
+        return fieldsObject == null ? new ArrayList<>() : fieldsObject.getFieldList();
+    }
+
+    private static void fillFields(XfdfMerge mrg, List<FieldObject> fields, MergeOptions options) {
+        if(options.isMergeFields() && !fields.isEmpty()) {
+            mrg.mergeFields(fields);
+        }
+    }
+
+    private long getMergeNanos() {
+        return stats.getNanos(MergeMetrics.Phase.PREPARE) + stats.getNanos(MergeMetrics.Phase.PAGE_LOOKUP)
+                + stats.getNanos(MergeMetrics.Phase.ANNOTATE);
+    }
+
+    /**
+     * Reports what the XFDF reader skipped or ignored to the job's {@link Diagnostics}, which is why the readers
+     * of a job don't log unsupported attributes themselves.
+     */
+    private void reportReaderCounts(Map<String, Integer> skipped, Map<String, Integer> unsupportedAttributes) {
+        for(Map.Entry<String, Integer> entry : skipped.entrySet()) {
+            for(int i = 0; i < entry.getValue(); i++) {
+                stats.annotationSkipped(entry.getKey());
+            }
+        }
+        for(Map.Entry<String, Integer> entry : unsupportedAttributes.entrySet()) {
+            stats.attributesUnsupported(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * The annotations and fields read from an XFDF file before merging, along with the measurements of reading them.
+     */
+    private final class XfdfContents {
+        List<AnnotObject> annots;
+        List<FieldObject> fields;
+        Map<String, Integer> skipped;
+        Map<String, Integer> unsupportedAttributes;
+        long bytesRead;
+        long nanos;
+        String cacheResult;
+
+        /**
+         * Adds the measurements to those of the job. Must be called on the thread running the job.
+         */
+        void report() {
+            stats.bytesRead(bytesRead);
+            if(cacheResult != null) {
+                stats.setCacheResult(cacheResult);
+            }
+            reportReaderCounts(skipped, unsupportedAttributes);
+            stats.recordTime(MergeMetrics.Phase.PARSE, nanos);
+        }
+    }
+
+    /**
+     * An output file that is written as a temporary file in the same directory, which replaces it once the job
+     * has succeeded, so that a failed job leaves an existing file as it was. Files that aren't regular files,
+     * such as devices and symbolic links, are written in place.
+     */
+    private static final class FileOutput implements Source<OutputStream> {
+        private final Path path;
+        private Path temporary;
+
+        FileOutput(String path) {
+            this.path = Paths.get(path);
+        }
+
+        boolean isReplaced() {
+            return !Files.exists(path, LinkOption.NOFOLLOW_LINKS)
+                    || Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS);
+        }
+
+        @Override
+        public OutputStream open() throws IOException {
+            if(!isReplaced()) {
+                temporary = null;
+                return new FileOutputStream(path.toFile());
+            }
+            temporary = path.resolveSibling("." + path.getFileName() + "." + ProcessHandle.current().pid()
+                    + "-" + TEMPORARY_FILE_COUNTER.incrementAndGet() + ".tmp");
+            return new FileOutputStream(temporary.toFile());
+        }
+
+        void commit() throws IOException {
+            if(temporary == null) {
+                return;
+            }
+            try {
+                try {
+                    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch(AtomicMoveNotSupportedException e) {
+                    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch(IOException e) {
+                discard();
+                throw e;
+            }
+            temporary = null;
+        }
+
+        void discard() {
+            if(temporary == null) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(temporary);
+            } catch(IOException e) {
+                LOGGER.warn("Could not delete {}", temporary, e);
+            }
+            temporary = null;
+        }
+    }
+
+    /**
+     * Random access to the bytes of a buffer, which unlike iText's own buffer source is never unmapped on close.
+     * PDF readers are confined to one thread, so a single view of the buffer is enough.
+     */
+    private static final class ByteBufferSource implements IRandomAccessSource {
+        private final ByteBuffer buffer;
+
+        ByteBufferSource(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        @Override
+        public int get(long position) {
+            if(position >= buffer.limit()) {
+                return -1;
+            }
+            return buffer.get((int) position) & 0xff;
+        }
+
+        @Override
+        public int get(long position, byte[] bytes, int off, int len) {
+            if(position >= buffer.limit()) {
+                return -1;
+            }
+            int n = (int) Math.min(len, buffer.limit() - position);
+            buffer.position((int) position);
+            buffer.get(bytes, off, n);
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return buffer.limit();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(len == 0) {
+                return 0;
+            }
+            if(!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+/**
+ * Receives measurements taken while merging an XFDF file into a PDF document.
+ * All methods have empty default implementations, so implementations only need to override
+ * what they are interested in. Measurements are reported from the thread running the merge.
+ */
+public interface MergeMetrics {
+
+    /**
+     * No-op metrics, used when nobody is interested in measurements.
+     */
+    MergeMetrics NONE = new MergeMetrics() {
+    };
+
+    /**
+     * The phases a merge is made up of.
+     */
+    enum Phase {
+        /** Opening the PDF document. */
+        OPEN,
+        /** Indexing the annotations that are already in the PDF document. */
+        INDEX,
+        /** Reading the XFDF file, excluding any merging done while streaming. */
+        PARSE,
+        /** Parsing and transforming the annotation attributes (wall-clock time when done in parallel). */
+        PREPARE,
+        /** Looking up pages in the PDF document. */
+        PAGE_LOOKUP,
+        /** Creating PDF annotations and adding them to their pages, excluding page lookups. */
+        ANNOTATE,
+        /** Setting the values of form fields and regenerating their appearances. */
+        FILL,
+        /** Writing the PDF document, including pages flushed early. */
+        WRITE
+    }
+
+    default void recordTime(Phase phase, long nanos) {
+    }
+
+    /**
+     * Called for every annotation added to the PDF document.
+     *
+     * @param type  the XFDF element name of the annotation
+     */
+    default void annotationMerged(String type) {
+    }
+
+    /**
+     * Called for every annotation element that the XFDF reader didn't read, because it doesn't support its type.
+     *
+     * @param type  the XFDF element name of the annotation
+     */
+    default void annotationSkipped(String type) {
+    }
+
+    /**
+     * Called with the number of annotation attributes of one name that the XFDF reader ignored, because it doesn't
+     * support them. May be called more than once for the same name.
+     *
+     * @param name   the attribute name
+     * @param count  the number of ignored attributes
+     */
+    default void attributesUnsupported(String name, int count) {
+    }
+
+    /**
+     * Called for every annotation that was read, but has no PDF counterpart in {@link XfdfMerge}.
+     *
+     * @param type  the XFDF element name of the annotation
+     */
+    default void annotationUnsupported(String type) {
+    }
+
+    /**
+     * Called when form field values have been set.
+     *
+     * @param filled     the number of fields whose value was set
+     * @param unmatched  the number of field values for which the document has no field
+     */
+    default void fieldsFilled(int filled, int unmatched) {
+    }
+
+    /**
+     * Called when a merge is done, with the number of replies whose parent annotation never turned up.
+     */
+    default void pendingReplies(int count) {
+    }
+
+    default void bytesRead(long count) {
+    }
+
+    default void bytesWritten(long count) {
+    }
+}
@@ -0,0 +1,233 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.kernel.pdf.CompressionConstants;
+
+/**
+ * Settings that apply to every merge job run by a single invocation of the tool,
+ * regardless of whether it processes one file, a batch manifest or server requests.
+ */
+final class MergeOptions {
+
+    private boolean streaming;
+    private boolean groupByPage;
+    private boolean parallel;
+    private boolean jsonStats;
+    private XfdfMerge.ExistingAnnotationPolicy existingAnnotationPolicy = XfdfMerge.ExistingAnnotationPolicy.APPEND;
+    private boolean compact;
+    private int compressionLevel = CompressionConstants.DEFAULT_COMPRESSION;
+    private ParseCache parseCache;
+    private int shards = 1;
+    private boolean overlapOpen;
+    private boolean validateOnly;
+    private boolean markupAppearances;
+    private boolean mergeFields = true;
+    private int warningInterval;
+
+    /**
+     * @return whether the streaming single-pass reader is used instead of the DOM reader
+     */
+    boolean isStreaming() {
+        return streaming;
+    }
+
+    MergeOptions setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    /**
+     * @return whether annotations are merged page by page, flushing each page as soon as possible,
+     *         instead of in document order
+     */
+    boolean isGroupByPage() {
+        return groupByPage;
+    }
+
+    MergeOptions setGroupByPage(boolean groupByPage) {
+        this.groupByPage = groupByPage;
+        return this;
+    }
+
+    /**
+     * @return whether annotations are parsed and transformed on all available cores before being added
+     *         to the document on the job's own thread
+     */
+    boolean isParallel() {
+        return parallel;
+    }
+
+    MergeOptions setParallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * @return whether a JSON report with the measurements of each job is written to standard error
+     */
+    boolean isJsonStats() {
+        return jsonStats;
+    }
+
+    MergeOptions setJsonStats(boolean jsonStats) {
+        this.jsonStats = jsonStats;
+        return this;
+    }
+
+    /**
+     * @return what to do with annotations that have the same name as an annotation already in the document
+     */
+    XfdfMerge.ExistingAnnotationPolicy getExistingAnnotationPolicy() {
+        return existingAnnotationPolicy;
+    }
+
+    MergeOptions setExistingAnnotationPolicy(XfdfMerge.ExistingAnnotationPolicy existingAnnotationPolicy) {
+        this.existingAnnotationPolicy = existingAnnotationPolicy;
+        return this;
+    }
+
+    /**
+     * @return whether the whole document is rewritten with object streams and compressed cross-reference
+     *         streams, instead of appending the changes as an incremental update
+     */
+    boolean isCompact() {
+        return compact;
+    }
+
+    MergeOptions setCompact(boolean compact) {
+        this.compact = compact;
+        return this;
+    }
+
+    /**
+     * @return the zlib compression level of the streams that are written, from 0 (none) to 9 (best),
+     *         or {@link CompressionConstants#DEFAULT_COMPRESSION}
+     */
+    int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    MergeOptions setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * @return the cache of parsed XFDF files, or null if XFDF files are always parsed
+     */
+    ParseCache getParseCache() {
+        return parseCache;
+    }
+
+    MergeOptions setParseCache(ParseCache parseCache) {
+        this.parseCache = parseCache;
+        return this;
+    }
+
+    /**
+     * @return the number of page ranges whose annotations are built concurrently, or 1 to build all annotations
+     *         on the job's own thread
+     */
+    int getShards() {
+        return shards;
+    }
+
+    MergeOptions setShards(int shards) {
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * @return whether the XFDF file is read on a thread of its own while the PDF document is opened, when
+     *         all of its annotations are read before merging
+     */
+    boolean isOverlapOpen() {
+        return overlapOpen;
+    }
+
+    MergeOptions setOverlapOpen(boolean overlapOpen) {
+        this.overlapOpen = overlapOpen;
+        return this;
+    }
+
+    /**
+     * @return whether jobs are only validated, without writing any output
+     */
+    boolean isValidateOnly() {
+        return validateOnly;
+    }
+
+    MergeOptions setValidateOnly(boolean validateOnly) {
+        this.validateOnly = validateOnly;
+        return this;
+    }
+
+    /**
+     * @return whether appearance streams are generated for highlight, underline, strikeout and squiggly
+     *         annotations
+     */
+    boolean isMarkupAppearances() {
+        return markupAppearances;
+    }
+
+    MergeOptions setMarkupAppearances(boolean markupAppearances) {
+        this.markupAppearances = markupAppearances;
+        return this;
+    }
+
+    /**
+     * @return whether the values of the form fields in the XFDF file are filled in, in addition to merging
+     *         its annotations
+     */
+    boolean isMergeFields() {
+        return mergeFields;
+    }
+
+    MergeOptions setMergeFields(boolean mergeFields) {
+        this.mergeFields = mergeFields;
+        return this;
+    }
+
+    /**
+     * @return the number of occurrences after which a warning that recurs within a job, such as an unsupported
+     *         attribute, is logged again, or 0 to log it only once; see {@link Diagnostics}
+     */
+    int getWarningInterval() {
+        return warningInterval;
+    }
+
+    MergeOptions setWarningInterval(int warningInterval) {
+        this.warningInterval = warningInterval;
+        return this;
+    }
+}
@@ -0,0 +1,379 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A long-running HTTP front end for {@link XfdfMerge}, built on the JDK's own HTTP server.
+ * <p>
+ * Endpoints:
+ * <ul>
+ *     <li>{@code POST /merge}: merges an XFDF file into a PDF document and responds with the merged PDF.
+ *     The inputs are passed either as {@code multipart/form-data} with parts named {@code pdf}, {@code xfdf}
+ *     and (optionally) {@code transform}, or as a raw body consisting of the PDF immediately followed by the
+ *     XFDF, in which case the {@code pdfLength} query parameter gives the length of the PDF in bytes.
+ *     The transformation string can also be passed in the {@code transform} query parameter. The merged PDF
+ *     is sent once the merge is complete. Invalid input is answered with {@code 400 Bad Request}, and any other
+ *     failure with {@code 500 Internal Server Error}.</li>
+ *     <li>{@code GET /health}: reports the state of the server as a JSON object.</li>
+ * </ul>
+ * At most {@code threads} merges run at the same time, and at most {@code queueSize} further requests wait
+ * for a free worker. Requests beyond that are turned away with {@code 503 Service Unavailable}.
+ */
+final class MergeServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MergeServer.class);
+    private static final String MULTIPART = "multipart/form-data";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MergeOptions options;
+    private final long maxRequestBytes;
+    private final Semaphore admitted;
+    private final Semaphore workers;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final MergeStatistics statistics = new MergeStatistics();
+
+    MergeServer(InetSocketAddress address, int threads, int queueSize, long maxRequestBytes, MergeOptions options)
+            throws IOException {
+        this.options = options;
+        this.statistics.register();
+        this.maxRequestBytes = maxRequestBytes;
+        this.admitted = new Semaphore(threads + queueSize);
+        this.workers = new Semaphore(threads);
+        // a few spare threads keep the health endpoint and rejections responsive when all workers are busy
+        this.executor = Executors.newFixedThreadPool(threads + queueSize + 2);
+        this.server = HttpServer.create(address, 0);
+        this.server.setExecutor(executor);
+        this.server.createContext("/merge", this::handleMerge);
+        this.server.createContext("/health", this::handleHealth);
+    }
+
+    void start() {
+        server.start();
+        LOGGER.info("Merge server listening on {}", server.getAddress());
+    }
+
+    void stop() {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try {
+            if(!"GET".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Method not allowed");
+                return;
+            }
+            String body = String.format(Locale.ROOT,
+                    "{\"status\":\"UP\",\"active\":%d,\"queued\":%d,\"completed\":%d,\"failed\":%d,\"rejected\":%d}",
+                    active.get(), Math.max(0, workers.getQueueLength()), completed.get(), failed.get(),
+                    rejected.get());
+            send(exchange, 200, "application/json", body.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void handleMerge(HttpExchange exchange) throws IOException {
+        try {
+            if(!"POST".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "Method not allowed");
+                return;
+            }
+            if(!admitted.tryAcquire()) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendText(exchange, 503, "Too many requests in progress");
+                return;
+            }
+            try {
+                workers.acquire();
+                try {
+                    active.incrementAndGet();
+                    processMerge(exchange);
+                } finally {
+                    active.decrementAndGet();
+                    workers.release();
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendText(exchange, 503, "Server is shutting down");
+            } finally {
+                admitted.release();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void processMerge(HttpExchange exchange) throws IOException {
+        byte[] pdf;
+        byte[] xfdf;
+        String transform;
+        try {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            byte[] body = readBody(exchange.getRequestBody());
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if(contentType != null && contentType.toLowerCase(Locale.ROOT).startsWith(MULTIPART)) {
+                Map<String, byte[]> parts = parseMultipart(body, getBoundary(contentType));
+                pdf = parts.get("pdf");
+                xfdf = parts.get("xfdf");
+                byte[] transformPart = parts.get("transform");
+                transform = transformPart != null
+                        ? new String(transformPart, StandardCharsets.UTF_8).trim()
+                        : query.get("transform");
+            } else {
+                String pdfLength = query.get("pdfLength");
+                if(pdfLength == null) {
+                    throw new IllegalArgumentException("Missing pdfLength query parameter");
+                }
+                int split = Integer.parseInt(pdfLength);
+                if(split < 0 || split > body.length) {
+                    throw new IllegalArgumentException("pdfLength out of range");
+                }
+                pdf = Arrays.copyOfRange(body, 0, split);
+                xfdf = Arrays.copyOfRange(body, split, body.length);
+                transform = query.get("transform");
+            }
+            if(pdf == null || xfdf == null) {
+                throw new IllegalArgumentException("Both a pdf and an xfdf part are required");
+            }
+        } catch(RequestTooLargeException e) {
+            sendText(exchange, 413, e.getMessage());
+            return;
+        } catch(IllegalArgumentException e) {
+            sendText(exchange, 400, e.getMessage());
+            return;
+        }
+
+        // the merged PDF is collected before anything is sent rather than streamed back, so that a merge that
+        // fails halfway can still be answered with an error status instead of a truncated 200 response
+        ByteArrayOutputStream result = new ByteArrayOutputStream(pdf.length + xfdf.length);
+        MergeJob job;
+        try {
+            job = MergeJob.create(pdf, xfdf, result, transform);
+        } catch(IllegalArgumentException e) {
+            sendText(exchange, 400, e.getMessage());
+            return;
+        }
+        Exception error = null;
+        try {
+            job.run(options);
+        } catch(Exception e) {
+            error = e;
+        }
+        statistics.add(job.getStats(), error == null);
+        if(options.isJsonStats()) {
+            System.err.println(job.getStats().toJson(job.getDescription(), error));
+        }
+        if(error instanceof IllegalArgumentException) {
+            sendText(exchange, 400, error.getMessage());
+            return;
+        } else if(error != null) {
+            failed.incrementAndGet();
+            LOGGER.warn("Merge failed", error);
+            sendText(exchange, 500, "Merge failed: " + error);
+            return;
+        }
+        completed.incrementAndGet();
+        exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+        exchange.sendResponseHeaders(200, result.size());
+        try(OutputStream os = exchange.getResponseBody()) {
+            result.writeTo(os);
+        }
+    }
+
+    private byte[] readBody(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[64 * 1024];
+        int read;
+        while((read = is.read(buf)) != -1) {
+            if(baos.size() + read > maxRequestBytes) {
+                throw new RequestTooLargeException("Request exceeds " + maxRequestBytes + " bytes");
+            }
+            baos.write(buf, 0, read);
+        }
+        return baos.toByteArray();
+    }
+
+    private static String getBoundary(String contentType) {
+        for(String param : contentType.split(";")) {
+            String p = param.trim();
+            if(p.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                String boundary = p.substring("boundary=".length());
+                if(boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary;
+            }
+        }
+        throw new IllegalArgumentException("Missing multipart boundary");
+    }
+
+    /**
+     * Extracts the named parts of a {@code multipart/form-data} body.
+     */
+    static Map<String, byte[]> parseMultipart(byte[] body, String boundary) {
+        byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        Map<String, byte[]> parts = new HashMap<>();
+        int pos = indexOf(body, delimiter, 0);
+        if(pos < 0) {
+            throw new IllegalArgumentException("Multipart boundary not found");
+        }
+        while(true) {
+            pos += delimiter.length;
+            if(pos + 1 < body.length && body[pos] == '-' && body[pos + 1] == '-') {
+                // closing delimiter
+                return parts;
+            }
+            int headersStart = skipLineBreak(body, pos);
+            int headersEnd = indexOf(body, new byte[] {'\r', '\n', '\r', '\n'}, headersStart);
+            if(headersEnd < 0) {
+                throw new IllegalArgumentException("Malformed multipart body");
+            }
+            String headers = new String(body, headersStart, headersEnd - headersStart, StandardCharsets.UTF_8);
+            int dataStart = headersEnd + 4;
+            int next = indexOf(body, delimiter, dataStart);
+            if(next < 0) {
+                throw new IllegalArgumentException("Unterminated multipart body");
+            }
+            // the CRLF preceding the delimiter belongs to the delimiter
+            int dataEnd = next >= 2 && body[next - 2] == '\r' && body[next - 1] == '\n' ? next - 2 : next;
+            String name = getPartName(headers);
+            if(name != null) {
+                parts.put(name, Arrays.copyOfRange(body, dataStart, Math.max(dataStart, dataEnd)));
+            }
+            pos = next;
+        }
+    }
+
+    private static String getPartName(String headers) {
+        for(String header : headers.split("\r\n")) {
+            if(!header.toLowerCase(Locale.ROOT).startsWith("content-disposition:")) {
+                continue;
+            }
+            for(String param : header.split(";")) {
+                String p = param.trim();
+                if(p.startsWith("name=")) {
+                    String name = p.substring("name=".length());
+                    return name.startsWith("\"") && name.endsWith("\"") && name.length() >= 2
+                            ? name.substring(1, name.length() - 1)
+                            : name;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int skipLineBreak(byte[] body, int pos) {
+        if(pos + 1 < body.length && body[pos] == '\r' && body[pos + 1] == '\n') {
+            return pos + 2;
+        }
+        return pos;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle, int from) {
+        outer:
+        for(int i = from; i <= haystack.length - needle.length; i++) {
+            for(int j = 0; j < needle.length; j++) {
+                if(haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> result = new HashMap<>();
+        if(rawQuery == null || rawQuery.isEmpty()) {
+            return result;
+        }
+        for(String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            result.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "text/plain; charset=utf-8", (message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try(OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static final class RequestTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RequestTooLargeException(String message) {
+            super(message);
+        }
+    }
+}
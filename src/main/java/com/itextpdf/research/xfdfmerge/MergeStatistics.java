@@ -0,0 +1,190 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Totals of the {@link JobStats} of all jobs run in a long-running mode (batch or server),
+ * exposed as a JMX MBean once {@link #register()} has been called.
+ */
+final class MergeStatistics implements MergeStatisticsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MergeStatistics.class);
+    static final String OBJECT_NAME = "com.itextpdf.research.xfdfmerge:type=MergeStatistics";
+
+    private final AtomicLong jobsCompleted = new AtomicLong();
+    private final AtomicLong jobsFailed = new AtomicLong();
+    private final AtomicLong annotationsMerged = new AtomicLong();
+    private final AtomicLong annotationsSkipped = new AtomicLong();
+    private final AtomicLong annotationsUnsupported = new AtomicLong();
+    private final AtomicLong pendingReplies = new AtomicLong();
+    private final AtomicLong fieldsFilled = new AtomicLong();
+    private final AtomicLong fieldsUnmatched = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(MergeMetrics.Phase.values().length);
+
+    /**
+     * Registers this object with the platform MBean server. Failure to do so is logged, but not fatal.
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch(JMException e) {
+            LOGGER.warn("Could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    void add(JobStats stats, boolean success) {
+        (success ? jobsCompleted : jobsFailed).incrementAndGet();
+        annotationsMerged.addAndGet(sum(stats.getMerged().values()));
+        annotationsSkipped.addAndGet(sum(stats.getSkipped().values()));
+        annotationsUnsupported.addAndGet(sum(stats.getUnsupported().values()));
+        pendingReplies.addAndGet(stats.getPendingReplies());
+        fieldsFilled.addAndGet(stats.getFieldsFilled());
+        fieldsUnmatched.addAndGet(stats.getFieldsUnmatched());
+        bytesRead.addAndGet(stats.getBytesRead());
+        bytesWritten.addAndGet(stats.getBytesWritten());
+        for(MergeMetrics.Phase phase : MergeMetrics.Phase.values()) {
+            phaseNanos.addAndGet(phase.ordinal(), stats.getNanos(phase));
+        }
+    }
+
+    private static long sum(Iterable<Integer> values) {
+        long sum = 0;
+        for(int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    private long millis(MergeMetrics.Phase phase) {
+        return phaseNanos.get(phase.ordinal()) / 1000000;
+    }
+
+    @Override
+    public long getJobsCompleted() {
+        return jobsCompleted.get();
+    }
+
+    @Override
+    public long getJobsFailed() {
+        return jobsFailed.get();
+    }
+
+    @Override
+    public long getAnnotationsMerged() {
+        return annotationsMerged.get();
+    }
+
+    @Override
+    public long getAnnotationsSkipped() {
+        return annotationsSkipped.get();
+    }
+
+    @Override
+    public long getAnnotationsUnsupported() {
+        return annotationsUnsupported.get();
+    }
+
+    @Override
+    public long getPendingReplies() {
+        return pendingReplies.get();
+    }
+
+    @Override
+    public long getFieldsFilled() {
+        return fieldsFilled.get();
+    }
+
+    @Override
+    public long getFieldsUnmatched() {
+        return fieldsUnmatched.get();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public long getOpenTimeMillis() {
+        return millis(MergeMetrics.Phase.OPEN);
+    }
+
+    @Override
+    public long getIndexTimeMillis() {
+        return millis(MergeMetrics.Phase.INDEX);
+    }
+
+    @Override
+    public long getParseTimeMillis() {
+        return millis(MergeMetrics.Phase.PARSE);
+    }
+
+    @Override
+    public long getPrepareTimeMillis() {
+        return millis(MergeMetrics.Phase.PREPARE);
+    }
+
+    @Override
+    public long getPageLookupTimeMillis() {
+        return millis(MergeMetrics.Phase.PAGE_LOOKUP);
+    }
+
+    @Override
+    public long getAnnotateTimeMillis() {
+        return millis(MergeMetrics.Phase.ANNOTATE);
+    }
+
+    @Override
+    public long getFillTimeMillis() {
+        return millis(MergeMetrics.Phase.FILL);
+    }
+
+    @Override
+    public long getWriteTimeMillis() {
+        return millis(MergeMetrics.Phase.WRITE);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+/**
+ * JMX view of {@link MergeStatistics}. All values are totals since the process was started.
+ */
+public interface MergeStatisticsMBean {
+
+    long getJobsCompleted();
+
+    long getJobsFailed();
+
+    long getAnnotationsMerged();
+
+    long getAnnotationsSkipped();
+
+    long getAnnotationsUnsupported();
+
+    long getPendingReplies();
+
+    long getFieldsFilled();
+
+    long getFieldsUnmatched();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getOpenTimeMillis();
+
+    long getIndexTimeMillis();
+
+    long getParseTimeMillis();
+
+    long getPrepareTimeMillis();
+
+    long getPageLookupTimeMillis();
+
+    long getAnnotateTimeMillis();
+
+    long getFillTimeMillis();
+
+    long getWriteTimeMillis();
+}
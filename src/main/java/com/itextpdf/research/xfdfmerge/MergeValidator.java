@@ -0,0 +1,169 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.forms.xfdf.AnnotObject;
+import com.itextpdf.forms.xfdf.CompactAnnotObject;
+import com.itextpdf.kernel.geom.AffineTransform;
+import com.itextpdf.kernel.geom.Rectangle;
+import com.itextpdf.kernel.pdf.PdfArray;
+import com.itextpdf.kernel.pdf.PdfDictionary;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfName;
+import com.itextpdf.kernel.pdf.PdfString;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks whether annotations can be merged into a PDF document, without changing the document. This only needs
+ * the page tree of the document, and, unless existing annotations are ignored, the annotations on its pages.
+ */
+final class MergeValidator {
+
+    private final AffineTransform transform;
+    private final int pageShift;
+    private final XfdfMerge.ExistingAnnotationPolicy existingAnnotationPolicy;
+
+    MergeValidator(AffineTransform transform, int pageShift,
+            XfdfMerge.ExistingAnnotationPolicy existingAnnotationPolicy) {
+        this.transform = transform;
+        this.pageShift = pageShift;
+        this.existingAnnotationPolicy = existingAnnotationPolicy;
+    }
+
+    /**
+     * Validates the given annotations against a document.
+     *
+     * @param pdfDocument  the document, which may be opened for reading only
+     * @param annotList    the annotations, in XFDF order
+     * @param skipped      the number of annotations the XFDF reader skipped, by type
+     * @return the issues found, in XFDF order, followed by the annotations that were skipped
+     */
+    List<ValidationIssue> validate(PdfDocument pdfDocument, List<AnnotObject> annotList,
+            Map<String, Integer> skipped) {
+        List<ValidationIssue> issues = new ArrayList<>();
+        int pageCount = pdfDocument.getNumberOfPages();
+        Map<Integer, Rectangle> mediaBoxes = new HashMap<>();
+        List<PreparedAnnotation> preparedList = new ArrayList<>(annotList.size());
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < annotList.size(); i++) {
+            AnnotObject annot = annotList.get(i);
+            String name = CompactAnnotObject.of(annot).getValue(CompactAnnotObject.NAME);
+            String missing = PreparedAnnotation.findMissingAttribute(annot);
+            String missingInPopup = missing == null ? PreparedAnnotation.findMissingPopupAttribute(annot) : null;
+            if (missing != null || missingInPopup != null) {
+                issues.add(new ValidationIssue(ValidationIssue.Kind.MISSING_ATTRIBUTE, i, annot.getName(), name, 0,
+                        missing != null
+                                ? "missing " + missing + " attribute"
+                                : "missing " + missingInPopup + " attribute on the popup",
+                        missing != null ? missing : missingInPopup));
+                preparedList.add(null);
+                continue;
+            }
+            PreparedAnnotation prepared;
+            try {
+                prepared = PreparedAnnotation.prepare(annot, transform, pageShift);
+            } catch (RuntimeException e) {
+                // anything else that can't be read, such as a malformed number
+                issues.add(new ValidationIssue(ValidationIssue.Kind.MALFORMED, i, annot.getName(), name, 0,
+                        e.getMessage() != null ? e.getMessage() : e.toString()));
+                preparedList.add(null);
+                continue;
+            }
+            preparedList.add(prepared);
+            if (prepared == null) {
+                issues.add(new ValidationIssue(ValidationIssue.Kind.UNSUPPORTED_TYPE, i, annot.getName(), name, 0,
+                        "Annotation type is not supported"));
+                continue;
+            }
+            if (prepared.name != null) {
+                names.add(prepared.name);
+            }
+            if (prepared.page < 1 || prepared.page > pageCount) {
+                issues.add(new ValidationIssue(ValidationIssue.Kind.PAGE_OUT_OF_RANGE, i, prepared.type, name,
+                        prepared.page, "The document has " + pageCount + " pages"));
+                continue;
+            }
+            Rectangle mediaBox = mediaBoxes.computeIfAbsent(prepared.page,
+                    page -> pdfDocument.getPage(page).getMediaBox());
+            if (!mediaBox.overlaps(prepared.rect)) {
+                issues.add(new ValidationIssue(ValidationIssue.Kind.OUTSIDE_MEDIA_BOX, i, prepared.type, name,
+                        prepared.page, "Rectangle " + format(prepared.rect) + " is outside the media box "
+                        + format(mediaBox)));
+            }
+        }
+
+        if (existingAnnotationPolicy != XfdfMerge.ExistingAnnotationPolicy.APPEND) {
+            addExistingNames(pdfDocument, names);
+        }
+        for (int i = 0; i < preparedList.size(); i++) {
+            PreparedAnnotation prepared = preparedList.get(i);
+            if (prepared != null && prepared.inReplyTo != null && !names.contains(prepared.inReplyTo)) {
+                issues.add(new ValidationIssue(ValidationIssue.Kind.UNRESOLVED_REPLY, i, prepared.type,
+                        prepared.name, prepared.page, "No annotation is named " + prepared.inReplyTo));
+            }
+        }
+        // the XFDF reader doesn't keep the annotations it skips, so they can only be counted
+        for (Map.Entry<String, Integer> entry : skipped.entrySet()) {
+            issues.add(new ValidationIssue(ValidationIssue.Kind.UNSUPPORTED_TYPE, -1, entry.getKey(), null, 0,
+                    entry.getValue() + " annotation(s) of this type were not read"));
+        }
+        issues.sort(Comparator.comparingInt(issue -> issue.getIndex() < 0 ? Integer.MAX_VALUE : issue.getIndex()));
+        return issues;
+    }
+
+    private static void addExistingNames(PdfDocument pdfDocument, Set<String> names) {
+        for (int page = 1; page <= pdfDocument.getNumberOfPages(); page++) {
+            PdfArray annots = pdfDocument.getPage(page).getPdfObject().getAsArray(PdfName.Annots);
+            if (annots == null) {
+                continue;
+            }
+            for (int i = 0; i < annots.size(); i++) {
+                PdfDictionary annot = annots.getAsDictionary(i);
+                PdfString name = annot == null ? null : annot.getAsString(PdfName.NM);
+                if (name != null) {
+                    names.add(name.toUnicodeString());
+                }
+            }
+        }
+    }
+
+    private static String format(Rectangle rect) {
+        return "[" + rect.getLeft() + " " + rect.getBottom() + " " + rect.getRight() + " " + rect.getTop() + "]";
+    }
+}
@@ -0,0 +1,235 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.forms.xfdf.AnnotObject;
+import com.itextpdf.forms.xfdf.AnnotObjectCodec;
+import com.itextpdf.forms.xfdf.FieldObject;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on-disk cache of parsed XFDF files, so that merging the same XFDF file again doesn't parse the XML again.
+ * Entries are stored with {@link AnnotObjectCodec}, in files named after the SHA-256 hash of the XFDF file and the
+ * codec version, and are read back through a memory-mapped buffer.
+ * <p>
+ * The total size of the entries is bounded; when it is exceeded, the least recently used entries are deleted.
+ * Since the last-modified time of an entry is updated when it is used, the order survives restarts. The cache
+ * is safe to use from multiple threads, and from multiple processes sharing the same directory. A damaged entry,
+ * or one written by a different version, counts as a miss.
+ */
+final class ParseCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParseCache.class);
+    private static final String SUFFIX = ".xfdfc";
+
+    private final Path directory;
+    private final long maxBytes;
+    // file name -> size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * Opens a cache directory, which is created if necessary.
+     *
+     * @param maxBytes  the maximum total size of the entries
+     */
+    ParseCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        List<Path> files;
+        try(Stream<Path> list = Files.list(directory)) {
+            files = list.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        }
+        files.sort(Comparator.comparing(ParseCache::getLastModifiedTime));
+        for(Path file : files) {
+            long size = Files.size(file);
+            entries.put(file.getFileName().toString(), size);
+            totalBytes += size;
+        }
+        evict();
+    }
+
+    /**
+     * Returns the key of an XFDF file, which depends on its contents and on {@link AnnotObjectCodec#VERSION}.
+     */
+    static String getKey(byte[] xfdf) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(xfdf);
+            StringBuilder sb = new StringBuilder(2 * hash.length + 8);
+            for(byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.append("-v").append(AnnotObjectCodec.VERSION).toString();
+        } catch(NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Looks up the annotations and form fields of an XFDF file.
+     *
+     * @param key                    the key of the XFDF file
+     * @param fields                 the list to which the form fields with a value are added
+     * @param skippedAnnotations     the map to which the skipped annotation counts of the XFDF reader are added
+     * @param unsupportedAttributes  the map to which the unsupported attribute counts of the XFDF reader are added
+     * @return the annotations, or null if the file is not in the cache
+     */
+    List<AnnotObject> get(String key, List<FieldObject> fields, Map<String, Integer> skippedAnnotations,
+            Map<String, Integer> unsupportedAttributes) {
+        String fileName = key + SUFFIX;
+        Path file = directory.resolve(fileName);
+        List<AnnotObject> annots;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            annots = AnnotObjectCodec.read(buffer, fields, skippedAnnotations, unsupportedAttributes);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            synchronized(this) {
+                if(entries.get(fileName) == null) {
+                    // written by another process
+                    entries.put(fileName, channel.size());
+                    totalBytes += channel.size();
+                }
+            }
+        } catch(NoSuchFileException e) {
+            return null;
+        } catch(IOException | IllegalArgumentException e) {
+            LOGGER.warn("Discarding cache entry {}: {}", file, e.toString());
+            fields.clear();
+            skippedAnnotations.clear();
+            unsupportedAttributes.clear();
+            remove(fileName);
+            return null;
+        }
+        return annots;
+    }
+
+    /**
+     * Stores the annotations and form fields of an XFDF file. Errors are logged, but not thrown, since the
+     * annotations can always be parsed again.
+     *
+     * @param key                    the key of the XFDF file
+     * @param annots                 the annotations read from the XFDF file
+     * @param fields                 the form fields read from the XFDF file
+     * @param skippedAnnotations     the skipped annotation counts of the XFDF reader
+     * @param unsupportedAttributes  the unsupported attribute counts of the XFDF reader
+     */
+    void put(String key, List<AnnotObject> annots, List<FieldObject> fields,
+            Map<String, Integer> skippedAnnotations, Map<String, Integer> unsupportedAttributes) {
+        String fileName = key + SUFFIX;
+        Path tempFile = null;
+        try {
+            tempFile = Files.createTempFile(directory, key, ".tmp");
+            try(OutputStream os = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+                AnnotObjectCodec.write(annots, fields, skippedAnnotations, unsupportedAttributes, os);
+            }
+            long size = Files.size(tempFile);
+            // readers never see a partially written entry
+            Files.move(tempFile, directory.resolve(fileName), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            tempFile = null;
+            synchronized(this) {
+                Long previous = entries.put(fileName, size);
+                totalBytes += size - (previous == null ? 0 : previous);
+                evict();
+            }
+        } catch(IOException e) {
+            LOGGER.warn("Could not store cache entry {}: {}", fileName, e.toString());
+        } finally {
+            if(tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch(IOException e) {
+                    LOGGER.debug("Could not delete {}", tempFile, e);
+                }
+            }
+        }
+    }
+
+    private synchronized void remove(String fileName) {
+        Long size = entries.remove(fileName);
+        if(size != null) {
+            totalBytes -= size;
+        }
+        delete(fileName);
+    }
+
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while(totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            totalBytes -= eldest.getValue();
+            it.remove();
+            delete(eldest.getKey());
+        }
+    }
+
+    private void delete(String fileName) {
+        try {
+            Files.deleteIfExists(directory.resolve(fileName));
+        } catch(IOException e) {
+            // e.g. still mapped on Windows; it will be evicted again later on
+            LOGGER.debug("Could not delete cache entry {}", fileName, e);
+        }
+    }
+
+    private static FileTime getLastModifiedTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch(IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
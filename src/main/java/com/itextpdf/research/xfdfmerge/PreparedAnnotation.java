@@ -0,0 +1,495 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.forms.xfdf.AnnotObject;
+import com.itextpdf.forms.xfdf.CompactAnnotObject;
+import com.itextpdf.forms.xfdf.InkAnnotObject;
+import com.itextpdf.forms.xfdf.XfdfConstants;
+import com.itextpdf.forms.xfdf.XfdfObjectReadingUtils;
+import com.itextpdf.kernel.colors.Color;
+import com.itextpdf.kernel.colors.DeviceRgb;
+import com.itextpdf.kernel.geom.AffineTransform;
+import com.itextpdf.kernel.geom.Rectangle;
+import com.itextpdf.kernel.pdf.PdfName;
+import com.itextpdf.kernel.pdf.PdfString;
+import com.itextpdf.kernel.pdf.annot.PdfAnnotation;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An annotation read from an XFDF file, with all of its attributes parsed, transformed and validated,
+ * but not yet tied to a {@link com.itextpdf.kernel.pdf.PdfDocument}. Preparing annotations doesn't touch
+ * any shared state, so it can be done on any number of threads; turning them into actual PDF annotations
+ * is left to {@link XfdfMerge}.
+ */
+final class PreparedAnnotation implements Cloneable {
+
+    private static final Color DEFAULT_HIGHLIGHT_COLOR = new DeviceRgb(1f, 0.81f, 0f);
+
+    // common to all annotation types
+    final String type;
+    Rectangle rect;
+    int page;
+    Color color;
+    int flags;
+    String date;
+    String name;
+    String title;
+
+    // markup annotations
+    String creationDate;
+    String subject;
+    String intent;
+    String inReplyTo;
+    boolean groupReply;
+    String richText;
+    String contents;
+    PreparedAnnotation popup;
+
+    // type-specific
+    float[] quadPoints;
+    float opacity = 1;
+    String icon;
+    String state;
+    String stateModel;
+    PdfString freeTextContents;
+    boolean open;
+
+    // geometry annotations: line, square, circle, polygon, polyline and ink
+    float[] line;
+    float[] vertices;
+    float[][] inkList;
+    float[] interiorColor;
+    float borderWidth = -1;
+    PdfName borderStyle;
+    float[] dashPattern;
+    float cloudIntensity = -1;
+    float[] rectDifferences;
+    PdfName head;
+    PdfName tail;
+    float leaderLength;
+    float leaderExtension;
+    float leaderOffset;
+    boolean caption;
+    PdfName captionPosition;
+
+    private PreparedAnnotation(String type) {
+        this.type = type;
+    }
+
+    /**
+     * @return a shallow copy of this annotation, whose attributes can be changed without affecting this one
+     */
+    PreparedAnnotation copy() {
+        try {
+            return (PreparedAnnotation) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Prepares an annotation for merging.
+     *
+     * @param annotObject  the annotation as read from the XFDF file
+     * @param transform    the transformation to apply to the annotation's coordinates
+     * @param pageShift    the offset to add to the annotation's page number
+     * @return the prepared annotation, or null if the annotation isn't supported, which is up to the caller
+     *         to report
+     */
+    static PreparedAnnotation prepare(AnnotObject xfdfAnnotObject, AffineTransform transform, int pageShift) {
+        CompactAnnotObject annotObject = CompactAnnotObject.of(xfdfAnnotObject);
+        String annotName = annotObject.getName();
+        if (annotName == null) {
+            return null;
+        }
+        PreparedAnnotation prepared = new PreparedAnnotation(annotName);
+        prepared.color = readColor(annotObject, getDefaultColor(annotName));
+        switch (annotName) {
+            case XfdfConstants.TEXT:
+                prepared.rect = readRect(annotObject, transform);
+                prepared.readCommonAttributes(annotObject);
+                prepared.readMarkupAttributes(annotObject, transform);
+                prepared.icon = annotObject.getValue(CompactAnnotObject.ICON);
+                prepared.state = annotObject.getValue(CompactAnnotObject.STATE);
+                prepared.stateModel = annotObject.getValue(CompactAnnotObject.STATE_MODEL);
+                prepared.page = readPage(annotObject, pageShift);
+                break;
+            case XfdfConstants.HIGHLIGHT:
+            case XfdfConstants.UNDERLINE:
+            case XfdfConstants.STRIKEOUT:
+            case XfdfConstants.SQUIGGLY:
+                prepared.rect = readRect(annotObject, transform);
+                prepared.quadPoints = XfdfObjectReadingUtils.convertQuadPointsFromCoordsString(
+                        annotObject.getValue(CompactAnnotObject.COORDS), transform);
+                String opacity = annotObject.getValue(CompactAnnotObject.OPACITY);
+                if (opacity != null) {
+                    prepared.opacity = Math.max(0, Math.min(1, Float.parseFloat(opacity)));
+                }
+                prepared.readCommonAttributes(annotObject);
+                prepared.readMarkupAttributes(annotObject, transform);
+                prepared.page = readPage(annotObject, pageShift);
+                break;
+            case XfdfConstants.CARET:
+                prepared.rect = readRect(annotObject, transform);
+                prepared.readCommonAttributes(annotObject);
+                prepared.readMarkupAttributes(annotObject, transform);
+                prepared.page = readPage(annotObject, pageShift);
+                break;
+            case XfdfConstants.LINE:
+                prepared.rect = readRect(annotObject, transform);
+                prepared.line = readLine(annotObject, transform);
+                prepared.readGeometryAttributes(annotObject, transform);
+                prepared.readLineEndings(annotObject);
+                prepared.readLeaderLine(annotObject, transform);
+                prepared.readCommonAttributes(annotObject);
+                prepared.readMarkupAttributes(annotObject, transform);
+                prepared.page = readPage(annotObject, pageShift);
+                break;
+            case XfdfConstants.SQUARE:
+            case XfdfConstants.CIRCLE:
+                prepared.rect = readRect(annotObject, transform);
+                prepared.readGeometryAttributes(annotObject, transform);
+                String fringe = annotObject.getValue(CompactAnnotObject.FRINGE);
+                if (fringe != null) {
+                    prepared.rectDifferences = scale(
+                            XfdfObjectReadingUtils.convertFloatsFromString(fringe), getScale(transform));
+                }
+                prepared.readCommonAttributes(annotObject);
+                prepared.readMarkupAttributes(annotObject, transform);
+                prepared.page = readPage(annotObject, pageShift);
+                break;
+            case XfdfConstants.POLYGON:
+            case XfdfConstants.POLYLINE:
+                prepared.rect = readRect(annotObject, transform);
+                String verticesString = annotObject.getVertices();
+                prepared.vertices = verticesString == null
+                        ? new float[0]
+                        : XfdfObjectReadingUtils.convertPointsFromString(verticesString, transform);
+                prepared.readGeometryAttributes(annotObject, transform);
+                if (XfdfConstants.POLYLINE.equals(annotName)) {
+                    prepared.readLineEndings(annotObject);
+                }
+                prepared.readCommonAttributes(annotObject);
+                prepared.readMarkupAttributes(annotObject, transform);
+                prepared.page = readPage(annotObject, pageShift);
+                break;
+            case XfdfConstants.INK:
+                prepared.rect = readRect(annotObject, transform);
+                List<String> gestures = annotObject instanceof InkAnnotObject
+                        ? ((InkAnnotObject) annotObject).getGestures()
+                        : Collections.emptyList();
+                prepared.inkList = new float[gestures.size()][];
+                for (int i = 0; i < prepared.inkList.length; i++) {
+                    prepared.inkList[i] = XfdfObjectReadingUtils.convertPointsFromString(gestures.get(i), transform);
+                }
+                prepared.readGeometryAttributes(annotObject, transform);
+                prepared.readCommonAttributes(annotObject);
+                prepared.readMarkupAttributes(annotObject, transform);
+                prepared.page = readPage(annotObject, pageShift);
+                break;
+            case XfdfConstants.STAMP:
+                prepared.page = readPage(annotObject, pageShift);
+                prepared.rect = readRect(annotObject, transform);
+                break;
+            case XfdfConstants.FREETEXT:
+                prepared.rect = readRect(annotObject, transform);
+                prepared.freeTextContents = annotObject.getContents();
+                prepared.page = readPage(annotObject, pageShift);
+                break;
+            default:
+                return null;
+        }
+        return prepared;
+    }
+
+    /**
+     * Finds a required attribute that an annotation lacks, without which {@link #prepare} would fail: {@code page}
+     * and {@code rect}, and for all types but stamps and free text, {@code flags}.
+     *
+     * @param xfdfAnnotObject  the annotation as read from the XFDF file
+     * @return the name of the first missing attribute, or null if none is missing or the annotation type isn't
+     *         supported
+     */
+    static String findMissingAttribute(AnnotObject xfdfAnnotObject) {
+        CompactAnnotObject annotObject = CompactAnnotObject.of(xfdfAnnotObject);
+        String annotName = annotObject.getName();
+        if (annotName == null) {
+            return null;
+        }
+        switch (annotName) {
+            case XfdfConstants.STAMP:
+            case XfdfConstants.FREETEXT:
+                break;
+            case XfdfConstants.TEXT:
+            case XfdfConstants.HIGHLIGHT:
+            case XfdfConstants.UNDERLINE:
+            case XfdfConstants.STRIKEOUT:
+            case XfdfConstants.SQUIGGLY:
+            case XfdfConstants.CARET:
+            case XfdfConstants.LINE:
+            case XfdfConstants.SQUARE:
+            case XfdfConstants.CIRCLE:
+            case XfdfConstants.POLYGON:
+            case XfdfConstants.POLYLINE:
+            case XfdfConstants.INK:
+                if (annotObject.getValue(CompactAnnotObject.FLAGS) == null) {
+                    return XfdfConstants.FLAGS;
+                }
+                break;
+            default:
+                return null;
+        }
+        if (!annotObject.hasPage()) {
+            return XfdfConstants.PAGE;
+        }
+        if (annotObject.getAttributeValue(XfdfConstants.RECT) == null) {
+            return XfdfConstants.RECT;
+        }
+        return null;
+    }
+
+    /**
+     * Finds a required attribute that the popup of an annotation lacks: {@code rect} or {@code flags}. Only the
+     * popups of the types that {@link #findMissingAttribute} requires {@code flags} of are read.
+     *
+     * @return the name of the first missing attribute, or null if none is missing or there is no popup
+     */
+    static String findMissingPopupAttribute(AnnotObject xfdfAnnotObject) {
+        String annotName = xfdfAnnotObject.getName();
+        AnnotObject xfdfPopupObject = xfdfAnnotObject.getPopup();
+        if (xfdfPopupObject == null || XfdfConstants.STAMP.equals(annotName)
+                || XfdfConstants.FREETEXT.equals(annotName)) {
+            return null;
+        }
+        CompactAnnotObject popupObject = CompactAnnotObject.of(xfdfPopupObject);
+        if (popupObject.getAttributeValue(XfdfConstants.RECT) == null) {
+            return XfdfConstants.RECT;
+        }
+        if (popupObject.getValue(CompactAnnotObject.FLAGS) == null) {
+            return XfdfConstants.FLAGS;
+        }
+        return null;
+    }
+
+    private void readCommonAttributes(CompactAnnotObject annotObject) {
+        flags = XfdfObjectReadingUtils.convertFlagsFromString(annotObject.getValue(CompactAnnotObject.FLAGS));
+        date = annotObject.getValue(CompactAnnotObject.DATE);
+        name = annotObject.getValue(CompactAnnotObject.NAME);
+        title = annotObject.getValue(CompactAnnotObject.TITLE);
+    }
+
+    private void readMarkupAttributes(CompactAnnotObject annotObject, AffineTransform transform) {
+        creationDate = annotObject.getValue(CompactAnnotObject.CREATION_DATE);
+        subject = annotObject.getValue(CompactAnnotObject.SUBJECT);
+        String intentString = annotObject.getValue(CompactAnnotObject.INTENT);
+        if (intentString != null && !intentString.isBlank()) {
+            intent = intentString;
+        }
+        String irpt = annotObject.getValue(CompactAnnotObject.IN_REPLY_TO);
+        if (irpt != null && !irpt.isBlank()) {
+            inReplyTo = irpt;
+            groupReply = "group".equalsIgnoreCase(annotObject.getValue(CompactAnnotObject.REPLY_TYPE));
+        }
+        PdfString rc = annotObject.getContentsRichText();
+        if (rc != null && !rc.toString().isBlank()) {
+            richText = rc.toString().trim();
+        }
+        PdfString plainContents = annotObject.getContents();
+        if (plainContents != null && !plainContents.toString().isBlank()) {
+            contents = plainContents.toString().trim();
+        }
+        AnnotObject xfdfPopupObject = annotObject.getPopup();
+        if (xfdfPopupObject != null) {
+            CompactAnnotObject popupObject = CompactAnnotObject.of(xfdfPopupObject);
+            popup = new PreparedAnnotation(XfdfConstants.POPUP);
+            popup.rect = readRect(popupObject, transform);
+            popup.open = "yes".equals(popupObject.getValue(CompactAnnotObject.OPEN));
+            popup.flags = XfdfObjectReadingUtils.convertFlagsFromString(
+                    popupObject.getValue(CompactAnnotObject.FLAGS));
+        }
+    }
+
+    /**
+     * Reads the border, dash pattern, cloud effect and interior colour. Widths and lengths are scaled along with
+     * the coordinates.
+     */
+    private void readGeometryAttributes(CompactAnnotObject annotObject, AffineTransform transform) {
+        float scale = getScale(transform);
+        String width = annotObject.getValue(CompactAnnotObject.WIDTH);
+        if (width != null) {
+            borderWidth = Float.parseFloat(width) * scale;
+        }
+        String style = annotObject.getValue(CompactAnnotObject.STYLE);
+        if (style != null) {
+            switch (style) {
+                case "dash":
+                    borderStyle = PdfAnnotation.STYLE_DASHED;
+                    break;
+                case "bevelled":
+                    borderStyle = PdfAnnotation.STYLE_BEVELED;
+                    break;
+                case "inset":
+                    borderStyle = PdfAnnotation.STYLE_INSET;
+                    break;
+                case "underline":
+                    borderStyle = PdfAnnotation.STYLE_UNDERLINE;
+                    break;
+                case "cloudy":
+                    // a solid border with a cloud effect
+                    borderStyle = PdfAnnotation.STYLE_SOLID;
+                    String intensity = annotObject.getValue(CompactAnnotObject.INTENSITY);
+                    cloudIntensity = intensity == null ? 1 : Float.parseFloat(intensity);
+                    break;
+                default:
+                    borderStyle = PdfAnnotation.STYLE_SOLID;
+                    break;
+            }
+        }
+        String dashes = annotObject.getValue(CompactAnnotObject.DASHES);
+        if (dashes != null) {
+            dashPattern = scale(XfdfObjectReadingUtils.convertFloatsFromString(dashes), scale);
+        }
+        String interiorColorString = annotObject.getValue(CompactAnnotObject.INTERIOR_COLOR);
+        if (interiorColorString != null) {
+            int[] rgb = new int[3];
+            XfdfObjectReadingUtils.convertColorFloatsFromString(interiorColorString, rgb);
+            interiorColor = new float[] {rgb[0] / 255f, rgb[1] / 255f, rgb[2] / 255f};
+        }
+    }
+
+    private void readLineEndings(CompactAnnotObject annotObject) {
+        String headString = annotObject.getValue(CompactAnnotObject.HEAD);
+        String tailString = annotObject.getValue(CompactAnnotObject.TAIL);
+        if (headString != null || tailString != null) {
+            head = headString == null ? PdfName.None : new PdfName(headString);
+            tail = tailString == null ? PdfName.None : new PdfName(tailString);
+        }
+    }
+
+    private void readLeaderLine(CompactAnnotObject annotObject, AffineTransform transform) {
+        float scale = getScale(transform);
+        String length = annotObject.getValue(CompactAnnotObject.LEADER_LENGTH);
+        if (length != null) {
+            leaderLength = Float.parseFloat(length) * scale;
+        }
+        String extension = annotObject.getValue(CompactAnnotObject.LEADER_EXTENDED);
+        if (extension != null) {
+            leaderExtension = Float.parseFloat(extension) * scale;
+        }
+        String offset = annotObject.getValue(CompactAnnotObject.LEADER_OFFSET);
+        if (offset != null) {
+            leaderOffset = Float.parseFloat(offset) * scale;
+        }
+        caption = "yes".equals(annotObject.getValue(CompactAnnotObject.CAPTION));
+        String captionStyle = annotObject.getValue(CompactAnnotObject.CAPTION_STYLE);
+        if (captionStyle != null) {
+            captionPosition = new PdfName(captionStyle);
+        }
+    }
+
+    private static float[] readLine(CompactAnnotObject annotObject, AffineTransform transform) {
+        String startString = annotObject.getValue(CompactAnnotObject.START);
+        String endString = annotObject.getValue(CompactAnnotObject.END);
+        float[] start = startString == null
+                ? new float[0]
+                : XfdfObjectReadingUtils.convertPointsFromString(startString, transform);
+        float[] end = endString == null
+                ? new float[0]
+                : XfdfObjectReadingUtils.convertPointsFromString(endString, transform);
+        if (start.length != 2 || end.length != 2) {
+            throw new IllegalArgumentException("A line must have a start and an end point");
+        }
+        return new float[] {start[0], start[1], end[0], end[1]};
+    }
+
+    /**
+     * Returns the factor by which the transformation scales lengths, which is exact for the uniform scaling
+     * of a transformation string.
+     */
+    private static float getScale(AffineTransform transform) {
+        return (float) Math.sqrt(Math.abs(transform.getDeterminant()));
+    }
+
+    private static float[] scale(float[] values, float scale) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] *= scale;
+        }
+        return values;
+    }
+
+    private static Color readColor(CompactAnnotObject annotObject, Color defaultColor) {
+        String colorString = annotObject.getValue(CompactAnnotObject.COLOR);
+        if (colorString != null) {
+            int[] rgb = new int[3];
+            XfdfObjectReadingUtils.convertColorFloatsFromString(colorString, rgb);
+            return new DeviceRgb(rgb[0], rgb[1], rgb[2]);
+        } else {
+            return defaultColor;
+        }
+    }
+
+    private static Rectangle readRect(CompactAnnotObject annotObject, AffineTransform transform) {
+        float[] rect = annotObject.getRectValues();
+        if (rect == null) {
+            throw new IllegalArgumentException("Annotation has no rect attribute");
+        }
+        return XfdfObjectReadingUtils.convertRectFromValues(rect, transform);
+    }
+
+    private static int readPage(CompactAnnotObject annotObject, int pageShift) {
+        if (!annotObject.hasPage()) {
+            throw new IllegalArgumentException("Annotation has no page attribute");
+        }
+        // iText pages are 1-indexed
+        int page = 1 + annotObject.getPage();
+        return pageShift + page;
+    }
+
+    private static Color getDefaultColor(String annotName) {
+        switch (annotName) {
+            case XfdfConstants.TEXT:
+            case XfdfConstants.HIGHLIGHT:
+                return DEFAULT_HIGHLIGHT_COLOR;
+            case XfdfConstants.UNDERLINE:
+            case XfdfConstants.STRIKEOUT:
+            case XfdfConstants.SQUIGGLY:
+                return DeviceRgb.RED;
+            case XfdfConstants.CARET:
+                return DeviceRgb.BLUE;
+            default:
+                return DeviceRgb.BLACK;
+        }
+    }
+}
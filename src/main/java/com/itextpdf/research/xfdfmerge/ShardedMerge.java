@@ -0,0 +1,318 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+import com.itextpdf.forms.xfdf.AnnotObject;
+import com.itextpdf.kernel.geom.AffineTransform;
+import com.itextpdf.kernel.pdf.PdfArray;
+import com.itextpdf.kernel.pdf.PdfDictionary;
+import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfName;
+import com.itextpdf.kernel.pdf.PdfPage;
+import com.itextpdf.kernel.pdf.PdfWriter;
+import com.itextpdf.kernel.pdf.annot.PdfAnnotation;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Merges annotations into a PDF document by splitting the annotated pages into contiguous page ranges
+ * (shards), with roughly the same number of annotations each, and building the annotations of every shard
+ * on a thread of its own.
+ * <p>
+ * A {@link PdfDocument} can only be used by one thread, so each shard builds its annotations in a scratch
+ * document that stands in for its page range. Once all shards are done, the annotations are moved onto the
+ * actual pages in page order, on the calling thread. Replies are linked to their parent annotation only after
+ * that, so a reply may be in a different shard than its parent. Parents are looked up the same way
+ * {@link XfdfMerge#mergeAnnotations} does: a reply refers to the last annotation with the given name that comes
+ * before it in the XFDF file, or failing that, to the first one that comes after it. The result has the same
+ * annotations, in the same order on every page, as a merge in XFDF order.
+ */
+final class ShardedMerge {
+
+    private final PdfDocument pdfDocument;
+    private final AffineTransform transform;
+    private final int pageShift;
+    private final int shardCount;
+    private MergeMetrics metrics = MergeMetrics.NONE;
+    private boolean markupAppearances;
+    private int pendingReplies;
+
+    /**
+     * @param shardCount  the maximum number of shards, and of threads used to build them
+     */
+    ShardedMerge(PdfDocument pdfDocument, AffineTransform transform, int pageShift, int shardCount) {
+        this.pdfDocument = pdfDocument;
+        this.transform = transform;
+        this.pageShift = pageShift;
+        this.shardCount = shardCount;
+    }
+
+    void setMetrics(MergeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets whether to generate appearance streams for text markup annotations, see
+     * {@link XfdfMerge#setMarkupAppearances(boolean)}.
+     */
+    void setMarkupAppearances(boolean markupAppearances) {
+        this.markupAppearances = markupAppearances;
+    }
+
+    /**
+     * @return the number of replies whose parent annotation wasn't found
+     */
+    int getPendingReplyCount() {
+        return pendingReplies;
+    }
+
+    /**
+     * Merges the given annotations into the document.
+     *
+     * @param annotList  the annotations, in XFDF order
+     * @param parallel   whether to prepare the annotations in parallel
+     * @throws IndexOutOfBoundsException if an annotation refers to a page that isn't in the document
+     */
+    void merge(List<AnnotObject> annotList, boolean parallel) {
+        List<PreparedAnnotation> preparedList =
+                XfdfMerge.prepareAnnotations(annotList, transform, pageShift, parallel, metrics);
+        int pageCount = pdfDocument.getNumberOfPages();
+        TreeMap<Integer, Integer> annotsPerPage = new TreeMap<>();
+        for (PreparedAnnotation prepared : preparedList) {
+            if (prepared.page < 1 || prepared.page > pageCount) {
+                throw new IndexOutOfBoundsException("Annotation refers to page " + prepared.page
+                        + ", but the document has " + pageCount + " pages");
+            }
+            annotsPerPage.merge(prepared.page, 1, Integer::sum);
+        }
+        int[] parents = findParents(preparedList);
+
+        List<Shard> shards = partition(annotsPerPage, preparedList.size());
+        Map<Integer, Shard> shardsByPage = new HashMap<>();
+        for (Shard shard : shards) {
+            for (int page : shard.pages) {
+                shardsByPage.put(page, shard);
+            }
+        }
+        for (int i = 0; i < preparedList.size(); i++) {
+            shardsByPage.get(preparedList.get(i).page).indices.add(i);
+        }
+
+        long start = System.nanoTime();
+        buildShards(shards, preparedList);
+        // the shards are built concurrently, so this is the wall-clock time
+        metrics.recordTime(MergeMetrics.Phase.ANNOTATE, System.nanoTime() - start);
+
+        PdfDictionary[] dictionaries = new PdfDictionary[preparedList.size()];
+        for (Shard shard : shards) {
+            moveShard(shard, dictionaries);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < preparedList.size(); i++) {
+            PreparedAnnotation prepared = preparedList.get(i);
+            if (prepared.inReplyTo == null) {
+                continue;
+            }
+            if (prepared.groupReply) {
+                dictionaries[i].put(PdfName.RT, PdfName.Group);
+            }
+            if (parents[i] >= 0) {
+                dictionaries[i].put(PdfName.IRT, dictionaries[parents[i]]);
+            } else {
+                pendingReplies++;
+            }
+        }
+        for (PreparedAnnotation prepared : preparedList) {
+            metrics.annotationMerged(prepared.type);
+        }
+        metrics.recordTime(MergeMetrics.Phase.ANNOTATE, System.nanoTime() - start);
+    }
+
+    /**
+     * Finds the parent of every reply, as the index of the parent in the list, or -1 if it isn't there.
+     */
+    private static int[] findParents(List<PreparedAnnotation> preparedList) {
+        int[] parents = new int[preparedList.size()];
+        Map<String, Integer> named = new HashMap<>();
+        Map<String, List<Integer>> waiting = new HashMap<>();
+        for (int i = 0; i < preparedList.size(); i++) {
+            PreparedAnnotation prepared = preparedList.get(i);
+            parents[i] = -1;
+            // like XfdfMerge, register the name before looking up the parent
+            if (prepared.name != null) {
+                named.put(prepared.name, i);
+                List<Integer> replies = waiting.remove(prepared.name);
+                if (replies != null) {
+                    for (int reply : replies) {
+                        parents[reply] = i;
+                    }
+                }
+            }
+            if (prepared.inReplyTo != null) {
+                Integer parent = named.get(prepared.inReplyTo);
+                if (parent != null) {
+                    parents[i] = parent;
+                } else {
+                    waiting.computeIfAbsent(prepared.inReplyTo, n -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+        return parents;
+    }
+
+    /**
+     * Splits the annotated pages into at most {@link #shardCount} contiguous ranges with about the same number
+     * of annotations each.
+     */
+    private List<Shard> partition(TreeMap<Integer, Integer> annotsPerPage, int total) {
+        List<Shard> shards = new ArrayList<>();
+        Shard shard = null;
+        int assigned = 0;
+        for (Map.Entry<Integer, Integer> entry : annotsPerPage.entrySet()) {
+            // start a new shard once the current one has its share of the annotations
+            if (shard == null || (long) assigned * shardCount >= (long) total * shards.size()) {
+                shard = new Shard();
+                shards.add(shard);
+            }
+            shard.pages.add(entry.getKey());
+            assigned += entry.getValue();
+        }
+        return shards;
+    }
+
+    private void buildShards(List<Shard> shards, List<PreparedAnnotation> preparedList) {
+        if (shards.size() <= 1) {
+            for (Shard shard : shards) {
+                shard.build(preparedList, transform, markupAppearances);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(shards.size());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Shard shard : shards) {
+                futures.add(executor.submit(() -> shard.build(preparedList, transform, markupAppearances)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Moves the annotations of a shard onto the pages of the document, and records the dictionary of every
+     * annotation by its index in the prepared list.
+     */
+    private void moveShard(Shard shard, PdfDictionary[] dictionaries) {
+        for (int i = 0; i < shard.pages.size(); i++) {
+            PdfArray annots = shard.scratch.getPage(i + 1).getPdfObject().getAsArray(PdfName.Annots);
+            long start = System.nanoTime();
+            PdfPage page = pdfDocument.getPage(shard.pages.get(i));
+            metrics.recordTime(MergeMetrics.Phase.PAGE_LOOKUP, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (int j = 0; j < annots.size(); j++) {
+                // this replaces the reference to the scratch page as well
+                page.addAnnotation(PdfAnnotation.makeAnnotation(annots.getAsDictionary(j)));
+            }
+            metrics.recordTime(MergeMetrics.Phase.ANNOTATE, System.nanoTime() - start);
+        }
+        for (int k = 0; k < shard.indices.size(); k++) {
+            dictionaries[shard.indices.get(k)] = shard.annotations.get(k).getPdfObject();
+        }
+        if (shard.markupAppearances != null) {
+            shard.markupAppearances.makeIndirect(pdfDocument);
+        }
+        shard.scratch = null;
+        shard.annotations = null;
+        shard.markupAppearances = null;
+    }
+
+    private static final class Shard {
+        // the pages of the document in this shard, in ascending order
+        final List<Integer> pages = new ArrayList<>();
+        // the indices of the annotations in this shard, in XFDF order
+        final List<Integer> indices = new ArrayList<>();
+        PdfDocument scratch;
+        List<PdfAnnotation> annotations;
+        MarkupAppearances markupAppearances;
+
+        /**
+         * Builds the annotations of this shard in a scratch document with a page for every page in the shard.
+         * Replies aren't linked to their parent yet.
+         * <p>
+         * Annotations, their popups and their appearance streams are direct objects until the document they're
+         * in is written, so they aren't tied to the scratch document, which is never written or flushed. For the
+         * same reason, the resources shared by text markup appearances are only made indirect once they have
+         * been moved.
+         */
+        void build(List<PreparedAnnotation> preparedList, AffineTransform transform, boolean generateAppearances) {
+            scratch = new PdfDocument(new PdfWriter(OutputStream.nullOutputStream()));
+            Map<Integer, Integer> localPages = new HashMap<>();
+            for (int page : pages) {
+                scratch.addNewPage();
+                localPages.put(page, localPages.size() + 1);
+            }
+            List<PreparedAnnotation> local = new ArrayList<>(indices.size());
+            for (int index : indices) {
+                PreparedAnnotation prepared = preparedList.get(index).copy();
+                prepared.page = localPages.get(prepared.page);
+                prepared.inReplyTo = null;
+                local.add(prepared);
+            }
+            XfdfMerge merge = new XfdfMerge(scratch, transform, 0);
+            if (generateAppearances) {
+                markupAppearances = new MarkupAppearances(null);
+                merge.setMarkupAppearances(markupAppearances);
+            }
+            annotations = merge.mergePrepared(local);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+
+    Copyright (c) 2022 iText Group NV
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License version 3
+    as published by the Free Software Foundation with the addition of the
+    following permission added to Section 15 as permitted in Section 7(a):
+    FOR ANY PART OF THE COVERED WORK IN WHICH THE COPYRIGHT IS OWNED BY
+    ITEXT GROUP. ITEXT GROUP DISCLAIMS THE WARRANTY OF NON INFRINGEMENT
+    OF THIRD PARTY RIGHTS
+
+    This program is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+    or FITNESS FOR A PARTICULAR PURPOSE.
+    See the GNU Affero General Public License for more details.
+    You should have received a copy of the GNU Affero General Public License
+    along with this program; if not, see http://www.gnu.org/licenses or write to
+    the Free Software Foundation, Inc., 51 Franklin Street, Fifth Floor,
+    Boston, MA, 02110-1301 USA, or download the license from the following URL:
+    http://itextpdf.com/terms-of-use/
+
+    The interactive user interfaces in modified source and object code versions
+    of this program must display Appropriate Legal Notices, as required under
+    Section 5 of the GNU Affero General Public License.
+
+    In accordance with Section 7(b) of the GNU Affero General Public License,
+    a covered work must retain the producer line in every PDF that is created
+    or manipulated using iText.
+
+ */
+package com.itextpdf.research.xfdfmerge;
+
+/**
+ * A problem with an annotation that would make a merge fail or lose the annotation, as found by
+ * {@link XfdfMerge#validate}.
+ */
+public final class ValidationIssue {
+
+    /**
+     * The kinds of problems found by validation.
+     */
+    public enum Kind {
+        /** A required attribute of the annotation or its popup is missing; see {@link #getAttribute()}. */
+        MISSING_ATTRIBUTE,
+        /** An attribute of the annotation can't be read, e.g. a malformed {@code rect}. */
+        MALFORMED,
+        /** The annotation type isn't supported, so the annotation would be dropped. */
+        UNSUPPORTED_TYPE,
+        /** The annotation refers to a page that isn't in the PDF document. */
+        PAGE_OUT_OF_RANGE,
+        /** The annotation's rectangle lies entirely outside the media box of its page. */
+        OUTSIDE_MEDIA_BOX,
+        /** The annotation replies to an annotation that doesn't exist. */
+        UNRESOLVED_REPLY
+    }
+
+    private final Kind kind;
+    private final int index;
+    private final String type;
+    private final String name;
+    private final int page;
+    private final String message;
+    private final String attribute;
+
+    ValidationIssue(Kind kind, int index, String type, String name, int page, String message) {
+        this(kind, index, type, name, page, message, null);
+    }
+
+    ValidationIssue(Kind kind, int index, String type, String name, int page, String message, String attribute) {
+        this.kind = kind;
+        this.index = index;
+        this.type = type;
+        this.name = name;
+        this.page = page;
+        this.message = message;
+        this.attribute = attribute;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the position of the annotation among the annotations read from the XFDF file, starting at 0,
+     *         or -1 if the issue applies to annotations that weren't read at all
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the XFDF element name of the annotation
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return the name of the annotation, or null if it has none
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the page number in the PDF document, after the page number shift, or 0 if it isn't known
+     */
+    public int getPage() {
+        return page;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the name of the missing attribute of a {@link Kind#MISSING_ATTRIBUTE} issue, such as {@code flags},
+     *         or null for other kinds
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * @return the issue as a line of tab-separated values: kind, index, type, name, page and message
+     */
+    @Override
+    public String toString() {
+        return kind + "\t" + index + "\t" + type + "\t" + (name == null ? "" : name) + "\t" + page + "\t" + message;
+    }
+}
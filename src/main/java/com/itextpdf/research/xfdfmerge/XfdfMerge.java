@@ -31,151 +31,591 @@
  */
 package com.itextpdf.research.xfdfmerge;
 
-import com.itextpdf.commons.utils.MessageFormatUtil;
 import com.itextpdf.forms.xfdf.AnnotObject;
 import com.itextpdf.forms.xfdf.AnnotsObject;
-import com.itextpdf.forms.xfdf.XfdfAnnotFactory;
+import com.itextpdf.forms.xfdf.FieldObject;
+import com.itextpdf.forms.xfdf.FieldsObject;
 import com.itextpdf.forms.xfdf.XfdfConstants;
 import com.itextpdf.forms.xfdf.XfdfObject;
-import com.itextpdf.forms.xfdf.XfdfObjectReadingUtils;
-import com.itextpdf.io.logs.IoLogMessageConstant;
-import com.itextpdf.kernel.colors.Color;
-import com.itextpdf.kernel.colors.DeviceRgb;
+import com.itextpdf.kernel.events.PdfDocumentEvent;
 import com.itextpdf.kernel.geom.AffineTransform;
-import com.itextpdf.kernel.geom.Rectangle;
+import com.itextpdf.kernel.pdf.PdfArray;
+import com.itextpdf.kernel.pdf.PdfBoolean;
+import com.itextpdf.kernel.pdf.PdfDictionary;
 import com.itextpdf.kernel.pdf.PdfDocument;
+import com.itextpdf.kernel.pdf.PdfIndirectReference;
 import com.itextpdf.kernel.pdf.PdfName;
-import com.itextpdf.kernel.pdf.PdfReader;
+import com.itextpdf.kernel.pdf.PdfNumber;
+import com.itextpdf.kernel.pdf.PdfObject;
+import com.itextpdf.kernel.pdf.PdfPage;
 import com.itextpdf.kernel.pdf.PdfString;
-import com.itextpdf.kernel.pdf.PdfWriter;
-import com.itextpdf.kernel.pdf.StampingProperties;
 import com.itextpdf.kernel.pdf.annot.PdfAnnotation;
 import com.itextpdf.kernel.pdf.annot.PdfCaretAnnotation;
+import com.itextpdf.kernel.pdf.annot.PdfCircleAnnotation;
 import com.itextpdf.kernel.pdf.annot.PdfFreeTextAnnotation;
+import com.itextpdf.kernel.pdf.annot.PdfInkAnnotation;
+import com.itextpdf.kernel.pdf.annot.PdfLineAnnotation;
 import com.itextpdf.kernel.pdf.annot.PdfMarkupAnnotation;
+import com.itextpdf.kernel.pdf.annot.PdfPolyGeomAnnotation;
 import com.itextpdf.kernel.pdf.annot.PdfPopupAnnotation;
+import com.itextpdf.kernel.pdf.annot.PdfSquareAnnotation;
 import com.itextpdf.kernel.pdf.annot.PdfStampAnnotation;
 import com.itextpdf.kernel.pdf.annot.PdfTextAnnotation;
 import com.itextpdf.kernel.pdf.annot.PdfTextMarkupAnnotation;
-import com.itextpdf.kernel.pdf.canvas.PdfCanvas;
-import com.itextpdf.kernel.pdf.xobject.PdfFormXObject;
 
-import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class XfdfMerge {
 
+    /**
+     * What to do with an annotation whose name is the same as the name (/NM) of an annotation
+     * that was already in the document before the merge.
+     */
+    public enum ExistingAnnotationPolicy {
+        /** Add the annotation anyway, next to the existing one. */
+        APPEND,
+        /** Keep the existing annotation as it is, and drop the new one. */
+        SKIP,
+        /** Replace the existing annotation (and its popup) with the new one, keeping its object number. */
+        UPDATE
+    }
+
     private static final Logger LOGGER = LoggerFactory.getLogger(XfdfMerge.class);
-    private final Color DEFAULT_HIGHLIGHT_COLOR = new DeviceRgb(1f, 0.81f, 0f);
     private final PdfDocument pdfDocument;
     private final Map<String, PdfAnnotation> annotMap = new HashMap<>();
     private final Map<String, List<PdfMarkupAnnotation>> replyMap = new HashMap<>();
-    private PdfFormXObject caretXObj = null;
-    private PdfFormXObject commentXObj = null;
+    private final AppearanceCache appearanceCache;
+    private MarkupAppearances markupAppearances;
     private final AffineTransform transform;
     private final int pageShift;
+    private PdfPage currentPage;
+    private int currentPageNumber;
+    // without metrics of its own, a merge still warns about annotations it can't merge, once per type
+    private MergeMetrics metrics = new Diagnostics().asMetrics();
+    private long pageLookupNanos;
+    private ExistingAnnotationPolicy existingAnnotationPolicy = ExistingAnnotationPolicy.APPEND;
+    private final Map<String, ExistingAnnotation> existingAnnots = new HashMap<>();
+    private final Map<PdfAnnotation, Integer> updatedAnnotPages = new IdentityHashMap<>();
 
     public XfdfMerge(PdfDocument pdfDocument, AffineTransform transform, int pageShift) {
         this.pdfDocument = pdfDocument;
         this.transform = transform;
         this.pageShift = pageShift;
+        this.appearanceCache = new AppearanceCache(pdfDocument);
+    }
+
+    /**
+     * Merges an XFDF file into a PDF document, both held in memory, and writes the result to a stream.
+     * The PDF document is read in place and no temporary files are written. The output stream is closed
+     * when the merge completes.
+     *
+     * @param transform  the transformation applied to the annotation coordinates
+     * @param pageShift  the number added to the page numbers of the annotations
+     */
+    public static void merge(byte[] pdf, byte[] xfdf, OutputStream out, AffineTransform transform, int pageShift)
+            throws IOException {
+        MergeJob.create(pdf, xfdf, out, transform, pageShift).run(new MergeOptions());
     }
 
-    void mergeXfdfIntoPdf(XfdfObject xfdfObject) {
-        mergeAnnotations(xfdfObject.getAnnots());
+    /**
+     * Merges the remaining bytes of an XFDF buffer into the PDF document in the remaining bytes of another
+     * buffer, and writes the result to a stream. The buffers can be direct or heap buffers, and their positions
+     * are not changed. The output stream is closed when the merge completes.
+     *
+     * @param transform  the transformation applied to the annotation coordinates
+     * @param pageShift  the number added to the page numbers of the annotations
+     */
+    public static void merge(ByteBuffer pdf, ByteBuffer xfdf, OutputStream out, AffineTransform transform,
+            int pageShift) throws IOException {
+        MergeJob.create(pdf, xfdf, out, transform, pageShift).run(new MergeOptions());
     }
 
     /**
-     * Merges existing XfdfObject into pdf document associated with it.
+     * Merges an XFDF stream into a PDF stream and writes the result to a stream. The PDF document is read into
+     * memory first, since it needs random access; the XFDF is parsed as it is read. All three streams are closed
+     * when the merge completes.
      *
-     * @param annotsObject    The AnnotsObject with children AnnotObject entities to be mapped into PdfAnnotations.
+     * @param transform  the transformation applied to the annotation coordinates
+     * @param pageShift  the number added to the page numbers of the annotations
      */
-    private void mergeAnnotations(AnnotsObject annotsObject) {
-        List<AnnotObject> annotList = null;
-        if (annotsObject != null) {
-            annotList = annotsObject.getAnnotsList();
+    public static void merge(InputStream pdf, InputStream xfdf, OutputStream out, AffineTransform transform,
+            int pageShift) throws IOException {
+        MergeJob.create(pdf, xfdf, out, transform, pageShift).run(new MergeOptions());
+    }
+
+    /**
+     * Checks whether an XFDF file can be merged into a PDF document, both held in memory, without merging it.
+     * Every annotation is parsed and transformed, and checked against the page count and the media boxes of the
+     * document. Replies to annotations that aren't in the XFDF file are reported as well. Only the page tree of
+     * the PDF document is read, and nothing is written.
+     *
+     * @param transform  the transformation applied to the annotation coordinates
+     * @param pageShift  the number added to the page numbers of the annotations
+     * @return the issues found, or an empty list if the XFDF file can be merged as it is
+     */
+    public static List<ValidationIssue> validate(byte[] pdf, byte[] xfdf, AffineTransform transform, int pageShift)
+            throws IOException {
+        return MergeJob.create(pdf, xfdf, null, transform, pageShift).validate(new MergeOptions());
+    }
+
+    /**
+     * Checks whether an XFDF stream can be merged into a PDF stream, like {@link #validate(byte[], byte[],
+     * AffineTransform, int)}. The PDF document is read into memory first. Both streams are closed when the
+     * validation completes.
+     *
+     * @param transform  the transformation applied to the annotation coordinates
+     * @param pageShift  the number added to the page numbers of the annotations
+     * @return the issues found, or an empty list if the XFDF file can be merged as it is
+     */
+    public static List<ValidationIssue> validate(InputStream pdf, InputStream xfdf, AffineTransform transform,
+            int pageShift) throws IOException {
+        return MergeJob.create(pdf, xfdf, null, transform, pageShift).validate(new MergeOptions());
+    }
+
+    void mergeXfdfIntoPdf(XfdfObject xfdfObject, boolean parallel) {
+        FieldsObject fieldsObject = xfdfObject.getFields();
+        if (fieldsObject != null && fieldsObject.getFieldList() != null) {
+            mergeFields(fieldsObject.getFieldList());
         }
+        AnnotsObject annotsObject = xfdfObject.getAnnots();
+        if (annotsObject != null && annotsObject.getAnnotsList() != null) {
+            mergeAnnotations(annotsObject.getAnnotsList(), parallel);
+        }
+    }
+
+    /**
+     * Sets the values of the form fields of the document, see {@link FieldFiller}.
+     *
+     * @param fields    The fields read from an XFDF file, with their fully qualified names.
+     * @return the number of fields whose value was set.
+     */
+    public int mergeFields(List<FieldObject> fields) {
+        FieldFiller filler = new FieldFiller(pdfDocument);
+        filler.setMetrics(metrics);
+        return filler.fill(fields);
+    }
+
+    AppearanceCache getAppearanceCache() {
+        return appearanceCache;
+    }
+
+    /**
+     * @return the generator of text markup appearances, or null if they aren't generated
+     */
+    MarkupAppearances getMarkupAppearances() {
+        return markupAppearances;
+    }
 
-        if (annotList != null && !annotList.isEmpty()) {
-            for (AnnotObject annot : annotList) {
-                addAnnotationToPdf(annot);
+    /**
+     * Sets whether to generate appearance streams for highlight, underline, strikeout and squiggly annotations.
+     * Without them, viewers have to work out the appearance from the quad points themselves.
+     *
+     * @param generate    Whether to generate text markup appearances.
+     */
+    public void setMarkupAppearances(boolean generate) {
+        markupAppearances = generate ? new MarkupAppearances(pdfDocument) : null;
+    }
+
+    void setMarkupAppearances(MarkupAppearances markupAppearances) {
+        this.markupAppearances = markupAppearances;
+    }
+
+    /**
+     * Sets the metrics that receive timings and counters of this merge. They replace the default metrics,
+     * which log a warning the first time an annotation type can't be merged.
+     *
+     * @param metrics    The metrics to report to.
+     */
+    public void setMetrics(MergeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets how to deal with annotations that are already in the document. Unless the policy is
+     * {@link ExistingAnnotationPolicy#APPEND}, this indexes the names of all annotations in the document,
+     * and replies to annotations in that index are linked to them. Only the names are kept in memory,
+     * so indexing is cheap even for documents with many annotations.
+     *
+     * @param policy    The policy for annotations with the same name as an existing annotation.
+     */
+    public void setExistingAnnotationPolicy(ExistingAnnotationPolicy policy) {
+        this.existingAnnotationPolicy = policy;
+        existingAnnots.clear();
+        if (policy != ExistingAnnotationPolicy.APPEND) {
+            indexExistingAnnotations();
+        }
+    }
+
+    /**
+     * Returns the number of replies whose parent annotation hasn't been merged (yet).
+     *
+     * @return the number of pending replies.
+     */
+    public int getPendingReplyCount() {
+        int count = 0;
+        for (List<PdfMarkupAnnotation> replies : replyMap.values()) {
+            count += replies.size();
+        }
+        return count;
+    }
+
+    /**
+     * Merges a single annotation into the pdf document. This allows annotations to be merged one by one
+     * as they are parsed, e.g. using {@link com.itextpdf.forms.xfdf.XfdfStreamingAnnotFactory#readAnnotations}.
+     * Replies whose parent annotation hasn't been merged yet are attached as soon as the parent comes along.
+     *
+     * @param annotObject    The AnnotObject to be mapped into a PdfAnnotation.
+     */
+    public void mergeAnnotation(AnnotObject annotObject) {
+        long start = System.nanoTime();
+        PreparedAnnotation prepared = PreparedAnnotation.prepare(annotObject, transform, pageShift);
+        metrics.recordTime(MergeMetrics.Phase.PREPARE, System.nanoTime() - start);
+        if (prepared != null) {
+            commitAnnotation(prepared);
+        } else if (annotObject.getName() != null) {
+            metrics.annotationUnsupported(annotObject.getName());
+        }
+    }
+
+    /**
+     * Merges the given annotations into the pdf document, in order. If {@code parallel} is set, the annotations
+     * are first parsed and transformed on all available cores, after which they are added to the document
+     * on the calling thread.
+     *
+     * @param annotList    The AnnotObjects to be mapped into PdfAnnotations.
+     * @param parallel     Whether to prepare the annotations in parallel.
+     */
+    public void mergeAnnotations(List<AnnotObject> annotList, boolean parallel) {
+        for (PreparedAnnotation prepared : prepareAnnotations(annotList, parallel)) {
+            commitAnnotation(prepared);
+        }
+    }
+
+    /**
+     * Merges the given annotations page by page, in ascending page order, instead of in the order in which
+     * they appear in the XFDF file. All annotations and popups of a page are added in one go, and the page
+     * is flushed as soon as no annotation on a later page replies to one of its annotations or vice versa.
+     * This keeps the number of pages held in memory low when merging into very large documents.
+     * Replies to annotations that are not in the list keep their page in memory until the document is closed.
+     *
+     * @param annotList    The AnnotObjects to be mapped into PdfAnnotations.
+     * @param parallel     Whether to prepare the annotations in parallel.
+     */
+    public void mergeAnnotationsByPage(List<AnnotObject> annotList, boolean parallel) {
+        TreeMap<Integer, List<PreparedAnnotation>> annotsByPage = new TreeMap<>();
+        Map<String, List<Integer>> namedAnnotPages = new HashMap<>();
+        for (PreparedAnnotation prepared : prepareAnnotations(annotList, parallel)) {
+            annotsByPage.computeIfAbsent(prepared.page, p -> new ArrayList<>()).add(prepared);
+            if (prepared.name != null) {
+                namedAnnotPages.computeIfAbsent(prepared.name, n -> new ArrayList<>()).add(prepared.page);
+            }
+        }
+
+        // for every page, the last page that still needs to reference or modify its annotations
+        Map<Integer, Integer> lastUse = new HashMap<>();
+        for (Map.Entry<Integer, List<PreparedAnnotation>> entry : annotsByPage.entrySet()) {
+            int page = entry.getKey();
+            lastUse.merge(page, page, Math::max);
+            for (PreparedAnnotation prepared : entry.getValue()) {
+                if (prepared.inReplyTo == null) {
+                    continue;
+                }
+                List<Integer> parentPages = namedAnnotPages.get(prepared.inReplyTo);
+                if (parentPages == null) {
+                    if (!annotMap.containsKey(prepared.inReplyTo) && !existingAnnots.containsKey(prepared.inReplyTo)) {
+                        // the reply stays pending, so it may still be modified later on
+                        lastUse.put(page, Integer.MAX_VALUE);
+                    }
+                    continue;
+                }
+                int last = Math.max(page, Collections.max(parentPages));
+                lastUse.merge(page, last, Math::max);
+                for (int parentPage : parentPages) {
+                    lastUse.merge(parentPage, last, Math::max);
+                }
+            }
+        }
+        if (existingAnnotationPolicy == ExistingAnnotationPolicy.UPDATE) {
+            // updated annotations that move to a later page have to be removed from their current page
+            for (Map.Entry<String, List<Integer>> entry : namedAnnotPages.entrySet()) {
+                ExistingAnnotation existing = existingAnnots.get(entry.getKey());
+                if (existing != null && lastUse.containsKey(existing.page)) {
+                    lastUse.merge(existing.page, Collections.max(entry.getValue()), Math::max);
+                }
+            }
+        }
+        Map<Integer, List<Integer>> flushAfter = new HashMap<>();
+        for (Map.Entry<Integer, Integer> entry : lastUse.entrySet()) {
+            if (entry.getValue() != Integer.MAX_VALUE) {
+                flushAfter.computeIfAbsent(entry.getValue(), p -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+
+        Map<Integer, PdfPage> residentPages = new HashMap<>();
+        for (Map.Entry<Integer, List<PreparedAnnotation>> entry : annotsByPage.entrySet()) {
+            int page = entry.getKey();
+            residentPages.put(page, getPage(page));
+            for (PreparedAnnotation prepared : entry.getValue()) {
+                commitAnnotation(prepared);
+            }
+            for (int flushPage : flushAfter.getOrDefault(page, Collections.emptyList())) {
+                long start = System.nanoTime();
+                flushPage(residentPages.remove(flushPage));
+                metrics.recordTime(MergeMetrics.Phase.WRITE, System.nanoTime() - start);
+                if (flushPage == currentPageNumber) {
+                    currentPage = null;
+                    currentPageNumber = 0;
+                }
             }
         }
     }
 
-    private Color getAnnotColor(AnnotObject annotObject, Color defaultColor) {
-        String colorString = annotObject.getAttributeValue(XfdfConstants.COLOR);
-        if(colorString != null) {
-            int[] rgbValues = XfdfObjectReadingUtils.convertColorFloatsFromString(colorString);
-            return new DeviceRgb(rgbValues[0], rgbValues[1], rgbValues[2]);
-        } else {
-            return defaultColor;
+    /**
+     * Writes a page that no annotation will be added to any more. In append mode, {@link PdfPage#flush()} also
+     * flushes the content streams and the annotations that were already on the page, which iText refuses with
+     * an informational message for every one of them, since unchanged objects aren't part of the incremental
+     * update. So in append mode, only the changed objects of the page are flushed, and the others are left
+     * as they are, just as {@link PdfPage#flush()} would.
+     */
+    private void flushPage(PdfPage page) {
+        if (!pdfDocument.isAppendMode() || pdfDocument.isTagged()) {
+            // tagged pages have their structure tags flushed along with them
+            page.flush();
+            return;
         }
+        pdfDocument.dispatchEvent(new PdfDocumentEvent(PdfDocumentEvent.END_PAGE, page));
+        PdfDictionary pageDict = page.getPdfObject();
+        PdfArray annots = pageDict.getAsArray(PdfName.Annots);
+        if (annots != null) {
+            for (int i = 0; i < annots.size(); i++) {
+                flushIfModified(annots.get(i));
+            }
+            flushIfModified(annots);
+        }
+        flushIfModified(pageDict);
     }
 
-    private void addCommonAnnotationAttributes(PdfAnnotation annotation, AnnotObject annotObject, Color color) {
-        annotation.setFlags(XfdfObjectReadingUtils.convertFlagsFromString(annotObject.getAttributeValue(XfdfConstants.FLAGS)));
-        annotation.setColor(color);
-        String dateString = annotObject.getAttributeValue(XfdfConstants.DATE);
-        if(dateString != null) {
-            annotation.setDate(new PdfString(dateString));
+    private static void flushIfModified(PdfObject object) {
+        // direct objects are written as part of the object that contains them
+        if (object != null && object.getIndirectReference() != null && object.isModified()) {
+            object.flush();
         }
-        String name = annotObject.getAttributeValue(XfdfConstants.NAME);
+    }
+
+    private List<PreparedAnnotation> prepareAnnotations(List<AnnotObject> annotList, boolean parallel) {
+        return prepareAnnotations(annotList, transform, pageShift, parallel, metrics);
+    }
+
+    /**
+     * Prepares the given annotations, dropping (and reporting) the ones that aren't supported.
+     */
+    static List<PreparedAnnotation> prepareAnnotations(List<AnnotObject> annotList, AffineTransform transform,
+            int pageShift, boolean parallel, MergeMetrics metrics) {
+        long start = System.nanoTime();
+        // preparing an annotation only reads the AnnotObject and the (immutable) transformation,
+        // so this is safe to run on the common pool; the order of the list is preserved
+        Stream<AnnotObject> annots = parallel ? annotList.parallelStream() : annotList.stream();
+        List<PreparedAnnotation> preparedList = annots
+                .map(annot -> PreparedAnnotation.prepare(annot, transform, pageShift))
+                .collect(Collectors.toList());
+        metrics.recordTime(MergeMetrics.Phase.PREPARE, System.nanoTime() - start);
+
+        List<PreparedAnnotation> result = new ArrayList<>(preparedList.size());
+        for (int i = 0; i < preparedList.size(); i++) {
+            PreparedAnnotation prepared = preparedList.get(i);
+            if (prepared != null) {
+                result.add(prepared);
+            } else if (annotList.get(i).getName() != null) {
+                metrics.annotationUnsupported(annotList.get(i).getName());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds annotations that have already been prepared to the document, in order.
+     *
+     * @return the annotations that were added, in the same order
+     */
+    List<PdfAnnotation> mergePrepared(List<PreparedAnnotation> preparedList) {
+        List<PdfAnnotation> result = new ArrayList<>(preparedList.size());
+        for (PreparedAnnotation prepared : preparedList) {
+            result.add(commitAnnotation(prepared));
+        }
+        return result;
+    }
+
+    /**
+     * @return the annotation that was added, or null if an existing annotation was kept instead
+     */
+    private PdfAnnotation commitAnnotation(PreparedAnnotation prepared) {
+        if (existingAnnotationPolicy == ExistingAnnotationPolicy.SKIP && prepared.name != null) {
+            if (existingAnnots.containsKey(prepared.name)) {
+                registerAnnotation(prepared.name, findAnnotation(prepared.name));
+                return null;
+            }
+        }
+        long start = System.nanoTime();
+        long lookupStart = pageLookupNanos;
+        PdfAnnotation annotation = addAnnotationToPdf(prepared);
+        metrics.recordTime(MergeMetrics.Phase.ANNOTATE, System.nanoTime() - start - (pageLookupNanos - lookupStart));
+        metrics.annotationMerged(prepared.type);
+        return annotation;
+    }
+
+    private void addCommonAnnotationAttributes(PdfAnnotation annotation, PreparedAnnotation prepared) {
+        annotation.setFlags(prepared.flags);
+        annotation.setColor(prepared.color);
+        if(prepared.date != null) {
+            annotation.setDate(new PdfString(prepared.date));
+        }
+        String name = prepared.name;
         if(name != null) {
             annotation.setName(new PdfString(name));
-            annotMap.put(name, annotation);
-            // add pending replies
-            for(PdfMarkupAnnotation reply : replyMap.getOrDefault(name, Collections.emptyList())) {
-                reply.setInReplyTo(annotation);
+            registerAnnotation(name, annotation);
+        }
+        if(prepared.title != null) {
+            annotation.setTitle(new PdfString(prepared.title));
+        }
+    }
+
+    private void registerAnnotation(String name, PdfAnnotation annotation) {
+        annotMap.put(name, annotation);
+        // add pending replies
+        for(PdfMarkupAnnotation reply : replyMap.getOrDefault(name, Collections.emptyList())) {
+            reply.setInReplyTo(annotation);
+        }
+        replyMap.remove(name);
+    }
+
+    /**
+     * Looks up an annotation by name, among the ones merged so far and the ones already in the document.
+     */
+    private PdfAnnotation findAnnotation(String name) {
+        PdfAnnotation annotation = annotMap.get(name);
+        if (annotation == null) {
+            ExistingAnnotation existing = existingAnnots.get(name);
+            if (existing != null) {
+                annotation = PdfAnnotation.makeAnnotation(existing.getPdfObject());
+                annotMap.put(name, annotation);
             }
-            replyMap.remove(name);
         }
-        String titleString = annotObject.getAttributeValue(XfdfConstants.TITLE);
-        if(titleString != null) {
-            annotation.setTitle(new PdfString(titleString));
+        return annotation;
+    }
+
+    private void indexExistingAnnotations() {
+        long start = System.nanoTime();
+        int pageCount = pdfDocument.getNumberOfPages();
+        for (int page = 1; page <= pageCount; page++) {
+            PdfArray annots = pdfDocument.getPage(page).getPdfObject().getAsArray(PdfName.Annots);
+            if (annots == null) {
+                continue;
+            }
+            for (int i = 0; i < annots.size(); i++) {
+                PdfObject annot = annots.get(i, false);
+                PdfObject annotObject = annot.isIndirectReference()
+                        ? ((PdfIndirectReference) annot).getRefersTo() : annot;
+                if (annotObject == null || !annotObject.isDictionary()) {
+                    continue;
+                }
+                PdfDictionary annotDict = (PdfDictionary) annotObject;
+                PdfString name = annotDict.getAsString(PdfName.NM);
+                if (name != null) {
+                    existingAnnots.putIfAbsent(name.toUnicodeString(), new ExistingAnnotation(page, annot));
+                }
+                if (annot.isIndirectReference() && !annotDict.isModified()) {
+                    // only the name is needed for now; the dictionary is read again if it's ever used
+                    annotDict.release();
+                }
+            }
+        }
+        metrics.recordTime(MergeMetrics.Phase.INDEX, System.nanoTime() - start);
+    }
+
+    /**
+     * Under {@link ExistingAnnotationPolicy#UPDATE}, replaces the contents of the existing annotation with
+     * the same name by those of a newly created one, and returns the existing annotation to continue with.
+     * Otherwise, the new annotation is returned as is.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends PdfAnnotation> T replaceExisting(T annotation, PreparedAnnotation prepared) {
+        if (existingAnnotationPolicy != ExistingAnnotationPolicy.UPDATE || prepared.name == null) {
+            return annotation;
+        }
+        ExistingAnnotation existing = existingAnnots.remove(prepared.name);
+        if (existing == null) {
+            return annotation;
+        }
+        PdfDictionary existingDict = existing.getPdfObject();
+        PdfDictionary oldPopup = existingDict.getAsDictionary(PdfName.Popup);
+        if (oldPopup != null) {
+            getPage(existing.page).removeAnnotation(PdfAnnotation.makeAnnotation(oldPopup));
+        }
+        existingDict.clear();
+        existingDict.putAll(annotation.getPdfObject());
+        existingDict.setModified();
+        T updated = (T) PdfAnnotation.makeAnnotation(existingDict);
+        updatedAnnotPages.put(updated, existing.page);
+        return updated;
+    }
+
+    private void addToPage(int page, PdfAnnotation annotation) {
+        Integer existingPage = updatedAnnotPages.remove(annotation);
+        if (existingPage == null) {
+            getPage(page).addAnnotation(annotation);
+        } else if (existingPage == page) {
+            annotation.setPage(getPage(page));
+        } else {
+            getPage(existingPage).removeAnnotation(annotation);
+            getPage(page).addAnnotation(annotation);
         }
     }
 
-    private void addPopupAnnotation(int page, PdfMarkupAnnotation parent, AnnotObject popup) {
+    private void addPopupAnnotation(int page, PdfMarkupAnnotation parent, PreparedAnnotation popup) {
         if(popup != null) {
-            PdfPopupAnnotation pdfPopupAnnot = new PdfPopupAnnotation(readAnnotRect(popup));
-            String openProp = popup.getAttributeValue("open");
-            boolean open = "yes".equals(openProp);
-            pdfPopupAnnot.setOpen(open)
-                    .setFlags(XfdfObjectReadingUtils.convertFlagsFromString(popup.getAttributeValue(XfdfConstants.FLAGS)));
+            PdfPopupAnnotation pdfPopupAnnot = new PdfPopupAnnotation(popup.rect);
+            pdfPopupAnnot.setOpen(popup.open)
+                    .setFlags(popup.flags);
             parent.setPopup(pdfPopupAnnot);
-            pdfDocument.getPage(page).addAnnotation(pdfPopupAnnot);
+            getPage(page).addAnnotation(pdfPopupAnnot);
         }
     }
 
-    private void addMarkupAnnotationAttributes(PdfMarkupAnnotation annotation, AnnotObject annotObject) {
-        String creationDateString = annotObject.getAttributeValue(XfdfConstants.CREATION_DATE);
-        if(creationDateString != null) {
-            annotation.setCreationDate(new PdfString(creationDateString));
+    private void addMarkupAnnotationAttributes(PdfMarkupAnnotation annotation, PreparedAnnotation prepared) {
+        if(prepared.creationDate != null) {
+            annotation.setCreationDate(new PdfString(prepared.creationDate));
         }
-        String subjectString = annotObject.getAttributeValue(XfdfConstants.SUBJECT);
-        if(subjectString != null) {
-            annotation.setSubject(new PdfString(subjectString));
+        if(prepared.subject != null) {
+            annotation.setSubject(new PdfString(prepared.subject));
         }
-        String intent = annotObject.getAttributeValue("IT");
-        if(intent != null && !intent.isBlank()) {
-            annotation.setIntent(new PdfName(intent));
+        if(prepared.intent != null) {
+            annotation.setIntent(new PdfName(prepared.intent));
         }
 
-        String irpt = annotObject.getAttributeValue(XfdfConstants.IN_REPLY_TO);
-        if(irpt != null && !irpt.isBlank()) {
-            if("group".equalsIgnoreCase(annotObject.getAttributeValue(XfdfConstants.REPLY_TYPE))) {
+        String irpt = prepared.inReplyTo;
+        if(irpt != null) {
+            if(prepared.groupReply) {
                 annotation.setReplyType(PdfName.Group);
             }
-            PdfAnnotation inReplyToAnnot = annotMap.get(irpt);
+            PdfAnnotation inReplyToAnnot = findAnnotation(irpt);
             if(inReplyToAnnot != null) {
                 annotation.setInReplyTo(inReplyToAnnot);
             } else {
@@ -191,220 +631,427 @@ public class XfdfMerge {
             }
         }
 
-        PdfString rc = annotObject.getContentsRichText();
-        if(rc != null && !rc.toString().isBlank()) {
-            String rcString = rc.toString().trim();
-            annotation.setRichText(new PdfString(rcString));
+        if(prepared.richText != null) {
+            annotation.setRichText(new PdfString(prepared.richText));
         }
-
-        PdfString plainContents = annotObject.getContents();
-        if(plainContents != null && !plainContents.toString().isBlank()) {
-            String pcString = plainContents.toString().trim();
-            annotation.setContents(new PdfString(pcString));
+        if(prepared.contents != null) {
+            annotation.setContents(new PdfString(prepared.contents));
         }
     }
 
-    private Rectangle readAnnotRect(AnnotObject annotObject) {
-        String rect = annotObject.getAttributeValue(XfdfConstants.RECT);
-        return XfdfObjectReadingUtils.convertRectFromString(rect, this.transform);
+    private PdfPage getPage(int page) {
+        // annotations tend to come in runs on the same page, and popups always follow their parent
+        if (page != currentPageNumber) {
+            long start = System.nanoTime();
+            currentPage = pdfDocument.getPage(page);
+            currentPageNumber = page;
+            long elapsed = System.nanoTime() - start;
+            pageLookupNanos += elapsed;
+            metrics.recordTime(MergeMetrics.Phase.PAGE_LOOKUP, elapsed);
+        }
+        return currentPage;
     }
 
-    private float[] readAnnotQuadPoints(AnnotObject annotObject) {
-        String coords = annotObject.getAttributeValue(XfdfConstants.COORDS);
-        return XfdfObjectReadingUtils.convertQuadPointsFromCoordsString(coords, this.transform);
-    }
+    private PdfAnnotation addTextMarkupAnnotationToPdf(PdfName subtype, PreparedAnnotation prepared) {
+        PdfTextMarkupAnnotation pdfAnnot = replaceExisting(
+                new PdfTextMarkupAnnotation(prepared.rect, subtype, prepared.quadPoints), prepared);
+        if(markupAppearances != null) {
+            pdfAnnot.setNormalAppearance(markupAppearances.create(subtype, prepared).getPdfObject());
+        }
 
-    private int readAnnotPage(AnnotObject annotObject) {
-        // iText pages are 1-indexed
-        int page = 1 + Integer.parseInt(annotObject.getAttribute(XfdfConstants.PAGE).getValue());
-        return this.pageShift + page;
+        addCommonAnnotationAttributes(pdfAnnot, prepared);
+        addMarkupAnnotationAttributes(pdfAnnot, prepared);
+        addToPage(prepared.page, pdfAnnot);
+        addPopupAnnotation(prepared.page, pdfAnnot, prepared.popup);
+        return pdfAnnot;
     }
 
-    private PdfFormXObject getCaretAppearance(Color color) {
-        if(this.caretXObj != null) {
-            return this.caretXObj;
-        }
-        // draw a caret on a 30x30 canvas
-        this.caretXObj = new PdfFormXObject(new Rectangle(30, 30));
-        PdfCanvas canvas = new PdfCanvas(this.caretXObj, this.pdfDocument);
-        canvas.setFillColor(color)
-                .moveTo(15, 30)
-                .curveTo(15, 30, 15, 0, 0, 0)
-                .lineTo(30, 0)
-                .curveTo(15, 0, 15,30, 15, 30)
-                .closePath()
-                .fill();
-        return this.caretXObj;
-    }
+    /**
+     * Adds a line, square, circle, polygon, polyline or ink annotation. The entries that only apply to some of
+     * these types are only set by {@link PreparedAnnotation#prepare} for those types.
+     */
+    private PdfAnnotation addGeometryAnnotationToPdf(PdfMarkupAnnotation annotation, PreparedAnnotation prepared) {
+        PdfMarkupAnnotation pdfAnnot = replaceExisting(annotation, prepared);
+        addCommonAnnotationAttributes(pdfAnnot, prepared);
+        addMarkupAnnotationAttributes(pdfAnnot, prepared);
 
-    private PdfFormXObject getCommentAppearance(Color color) {
-        if(this.commentXObj != null) {
-            return this.commentXObj;
+        if(prepared.borderWidth >= 0 || prepared.borderStyle != null || prepared.dashPattern != null) {
+            PdfDictionary borderStyle = new PdfDictionary();
+            if(prepared.borderWidth >= 0) {
+                borderStyle.put(PdfName.W, new PdfNumber(prepared.borderWidth));
+            }
+            if(prepared.borderStyle != null) {
+                borderStyle.put(PdfName.S, prepared.borderStyle);
+            }
+            if(prepared.dashPattern != null) {
+                borderStyle.put(PdfName.D, new PdfArray(prepared.dashPattern));
+            }
+            pdfAnnot.put(PdfName.BS, borderStyle);
+        }
+        if(prepared.cloudIntensity >= 0) {
+            PdfDictionary borderEffect = new PdfDictionary();
+            borderEffect.put(PdfName.S, PdfName.C);
+            borderEffect.put(PdfName.I, new PdfNumber(prepared.cloudIntensity));
+            pdfAnnot.put(PdfName.BE, borderEffect);
+        }
+        if(prepared.interiorColor != null) {
+            pdfAnnot.put(PdfName.IC, new PdfArray(prepared.interiorColor));
+        }
+        if(prepared.rectDifferences != null) {
+            pdfAnnot.put(PdfName.RD, new PdfArray(prepared.rectDifferences));
+        }
+        if(prepared.head != null) {
+            pdfAnnot.put(PdfName.LE, new PdfArray(Arrays.asList(prepared.head, prepared.tail)));
+        }
+        if(prepared.leaderLength != 0) {
+            pdfAnnot.put(PdfName.LL, new PdfNumber(prepared.leaderLength));
+        }
+        if(prepared.leaderExtension != 0) {
+            pdfAnnot.put(PdfName.LLE, new PdfNumber(prepared.leaderExtension));
+        }
+        if(prepared.leaderOffset != 0) {
+            pdfAnnot.put(PdfName.LLO, new PdfNumber(prepared.leaderOffset));
+        }
+        if(prepared.caption) {
+            pdfAnnot.put(PdfName.Cap, PdfBoolean.TRUE);
+        }
+        if(prepared.captionPosition != null) {
+            pdfAnnot.put(PdfName.CP, prepared.captionPosition);
         }
-        // draw a speech bubble on a 30x30 canvas
-        this.commentXObj = new PdfFormXObject(new Rectangle(30, 30));
-        PdfCanvas canvas = new PdfCanvas(this.commentXObj, this.pdfDocument);
 
-        canvas.setFillColor(color).setLineWidth(0.85f)
-                .moveTo(6, 27.5)
-                .curveTo(4.3, 27.5, 3, 26.5, 3, 25)
-                .lineTo(3, 12)
-                .curveTo(3, 10.25, 4.3, 10.25, 6, 10.25)
-                .lineTo(7.6, 10.25)
-                .lineTo(11.25, 3)
-                .lineTo(13, 10.25)
-                .lineTo(25.5, 10.25)
-                .curveTo(25.1, 10.25, 26.25, 10.25, 26.25, 12)
-                .lineTo(26.25, 25)
-                .curveTo(26.25, 26.5, 25, 27.5, 23.5, 27.5)
-                .closePath().fill();
-        return this.commentXObj;
+        addToPage(prepared.page, pdfAnnot);
+        addPopupAnnotation(prepared.page, pdfAnnot, prepared.popup);
+        return pdfAnnot;
     }
 
-    private void addTextMarkupAnnotationToPdf(PdfName subtype, AnnotObject annotObject, Color color) {
-        Rectangle rect = readAnnotRect(annotObject);
-        float[] quads = readAnnotQuadPoints(annotObject);
-        PdfTextMarkupAnnotation pdfAnnot = new PdfTextMarkupAnnotation(rect, subtype, quads);
+    private PdfAnnotation addAnnotationToPdf(PreparedAnnotation prepared) {
+        switch (prepared.type) {
+            case XfdfConstants.TEXT:
+                PdfTextAnnotation pdfTextAnnotation = replaceExisting(new PdfTextAnnotation(prepared.rect), prepared);
+                addCommonAnnotationAttributes(pdfTextAnnotation, prepared);
+                addMarkupAnnotationAttributes(pdfTextAnnotation, prepared);
 
-        addCommonAnnotationAttributes(pdfAnnot, annotObject, color);
-        addMarkupAnnotationAttributes(pdfAnnot, annotObject);
-        int page = readAnnotPage(annotObject);
-        pdfDocument.getPage(page).addAnnotation(pdfAnnot);
-        addPopupAnnotation(page, pdfAnnot, annotObject.getPopup());
-    }
+                if("Comment".equals(prepared.icon)) {
+                    pdfTextAnnotation.setNormalAppearance(
+                            appearanceCache.get(AppearanceCache.Icon.COMMENT, prepared.color).getPdfObject());
+                }
+                pdfTextAnnotation.setIconName(new PdfName(prepared.icon));
+                if(prepared.state != null) {
+                    pdfTextAnnotation.setState(new PdfString(prepared.state));
+                }
+                if(prepared.stateModel != null) {
+                    pdfTextAnnotation.setStateModel(new PdfString(prepared.stateModel));
+                }
 
-    private Color getDefaultColor(String annotName) {
-        switch (annotName) {
-            case XfdfConstants.TEXT:
+                addToPage(prepared.page, pdfTextAnnotation);
+                addPopupAnnotation(prepared.page, pdfTextAnnotation, prepared.popup);
+                return pdfTextAnnotation;
             case XfdfConstants.HIGHLIGHT:
-                return DEFAULT_HIGHLIGHT_COLOR;
+                return addTextMarkupAnnotationToPdf(PdfName.Highlight, prepared);
             case XfdfConstants.UNDERLINE:
+                return addTextMarkupAnnotationToPdf(PdfName.Underline, prepared);
             case XfdfConstants.STRIKEOUT:
+                return addTextMarkupAnnotationToPdf(PdfName.StrikeOut, prepared);
             case XfdfConstants.SQUIGGLY:
-                return DeviceRgb.RED;
+                return addTextMarkupAnnotationToPdf(PdfName.Squiggly, prepared);
             case XfdfConstants.CARET:
-                return DeviceRgb.BLUE;
+                PdfCaretAnnotation caretAnnotation = replaceExisting(new PdfCaretAnnotation(prepared.rect), prepared);
+                caretAnnotation.setNormalAppearance(
+                        appearanceCache.get(AppearanceCache.Icon.CARET, prepared.color).getPdfObject());
+                addCommonAnnotationAttributes(caretAnnotation, prepared);
+                addMarkupAnnotationAttributes(caretAnnotation, prepared);
+                addToPage(prepared.page, caretAnnotation);
+                addPopupAnnotation(prepared.page, caretAnnotation, prepared.popup);
+                return caretAnnotation;
+            case XfdfConstants.LINE:
+                return addGeometryAnnotationToPdf(new PdfLineAnnotation(prepared.rect, prepared.line), prepared);
+            case XfdfConstants.SQUARE:
+                return addGeometryAnnotationToPdf(new PdfSquareAnnotation(prepared.rect), prepared);
+            case XfdfConstants.CIRCLE:
+                return addGeometryAnnotationToPdf(new PdfCircleAnnotation(prepared.rect), prepared);
+            case XfdfConstants.POLYGON:
+                return addGeometryAnnotationToPdf(
+                        PdfPolyGeomAnnotation.createPolygon(prepared.rect, prepared.vertices), prepared);
+            case XfdfConstants.POLYLINE:
+                return addGeometryAnnotationToPdf(
+                        PdfPolyGeomAnnotation.createPolyLine(prepared.rect, prepared.vertices), prepared);
+            case XfdfConstants.INK:
+                PdfArray inkList = new PdfArray();
+                for (float[] gesture : prepared.inkList) {
+                    inkList.add(new PdfArray(gesture));
+                }
+                return addGeometryAnnotationToPdf(new PdfInkAnnotation(prepared.rect, inkList), prepared);
+            case XfdfConstants.STAMP:
+                PdfStampAnnotation stamp = new PdfStampAnnotation(prepared.rect);
+                getPage(prepared.page).addAnnotation(stamp);
+                return stamp;
+            case XfdfConstants.FREETEXT:
+                PdfFreeTextAnnotation freeText = new PdfFreeTextAnnotation(prepared.rect, prepared.freeTextContents);
+                getPage(prepared.page).addAnnotation(freeText);
+                return freeText;
             default:
-                return DeviceRgb.BLACK;
+                // PreparedAnnotation.prepare() only accepts the types above
+                throw new IllegalStateException(prepared.type);
         }
     }
 
-    private void addAnnotationToPdf(AnnotObject annotObject) {
-        String annotName = annotObject.getName();
-        int page;
-        if (annotName != null) {
-            Color color = getAnnotColor(annotObject, getDefaultColor(annotName));
-            switch (annotName) {
-                case XfdfConstants.TEXT:
-                    PdfTextAnnotation pdfTextAnnotation = new PdfTextAnnotation(readAnnotRect(annotObject));
-                    addCommonAnnotationAttributes(pdfTextAnnotation, annotObject, color);
-                    addMarkupAnnotationAttributes(pdfTextAnnotation, annotObject);
-
-                    String icon = annotObject.getAttributeValue(XfdfConstants.ICON);
-                    if("Comment".equals(icon)) {
-                        pdfTextAnnotation.setNormalAppearance(this.getCommentAppearance(color).getPdfObject());
-                    }
-                    pdfTextAnnotation.setIconName(new PdfName(icon));
-                    String stateString = annotObject.getAttributeValue(XfdfConstants.STATE);
-                    if(stateString != null) {
-                        pdfTextAnnotation.setState(new PdfString(stateString));
-                    }
-                    String stateModelString = annotObject.getAttributeValue(XfdfConstants.STATE_MODEL);
-                    if(stateModelString != null) {
-                        pdfTextAnnotation.setStateModel(new PdfString(stateModelString));
-                    }
+    private static final class ExistingAnnotation {
+        final int page;
+        // an indirect reference, so that the dictionary itself can be released after indexing
+        final PdfObject object;
 
-                    page = readAnnotPage(annotObject);
-                    pdfDocument.getPage(page).addAnnotation(pdfTextAnnotation);
-                    addPopupAnnotation(page, pdfTextAnnotation, annotObject.getPopup());
-                    break;
-                case XfdfConstants.HIGHLIGHT:
-                    addTextMarkupAnnotationToPdf(PdfName.Highlight, annotObject, color);
-                    break;
-                case XfdfConstants.UNDERLINE:
-                    addTextMarkupAnnotationToPdf(PdfName.Underline, annotObject, color);
-                    break;
-                case XfdfConstants.STRIKEOUT:
-                    addTextMarkupAnnotationToPdf(PdfName.StrikeOut, annotObject, color);
-                    break;
-                case XfdfConstants.SQUIGGLY:
-                    addTextMarkupAnnotationToPdf(PdfName.Squiggly, annotObject, color);
-                    break;
-                case XfdfConstants.CARET:
-                    PdfCaretAnnotation caretAnnotation = new PdfCaretAnnotation(readAnnotRect(annotObject));
-                    caretAnnotation.setNormalAppearance(this.getCaretAppearance(color).getPdfObject());
-                    addCommonAnnotationAttributes(caretAnnotation, annotObject, color);
-                    addMarkupAnnotationAttributes(caretAnnotation, annotObject);
-                    page = readAnnotPage(annotObject);
-                    pdfDocument.getPage(page).addAnnotation(caretAnnotation);
-                    addPopupAnnotation(page, caretAnnotation, annotObject.getPopup());
-                    break;
-                case XfdfConstants.STAMP:
-                    pdfDocument.getPage(readAnnotPage(annotObject))
-                            .addAnnotation(new PdfStampAnnotation(readAnnotRect(annotObject)));
-                    break;
-                case XfdfConstants.FREETEXT:
-                    PdfFreeTextAnnotation freeText =
-                            new PdfFreeTextAnnotation(readAnnotRect(annotObject), annotObject.getContents());
-                    pdfDocument.getPage(readAnnotPage(annotObject)).addAnnotation(freeText);
-                    break;
-                default:
-                    LOGGER.warn(MessageFormatUtil.format(IoLogMessageConstant.XFDF_ANNOTATION_IS_NOT_SUPPORTED, annotName));
-                    break;
-            }
+        ExistingAnnotation(int page, PdfObject object) {
+            this.page = page;
+            this.object = object;
+        }
 
+        PdfDictionary getPdfObject() {
+            return (PdfDictionary) (object.isIndirectReference() ? ((PdfIndirectReference) object).getRefersTo() : object);
         }
     }
 
-    private static final String USAGE = "Usage: XfdfMerge input.pdf input.xfdf output.pdf [PGNUMSHIFT/XSHIFT/YSHIFT/SCALE]";
+    private static final String USAGE =
+            "Usage: XfdfMerge [options] input.pdf|- input.xfdf|- output.pdf|- [PGNUMSHIFT/XSHIFT/YSHIFT/SCALE]\n"
+            + "       XfdfMerge [options] --validate input.pdf|- input.xfdf|- [PGNUMSHIFT/XSHIFT/YSHIFT/SCALE]\n"
+            + "       XfdfMerge [options] [--threads N] --batch manifest\n"
+            + "       XfdfMerge [options] [--threads N] [--queue N] [--bind ADDRESS] [--max-request-size MB] --serve PORT\n"
+            + "Options: [--parser dom|stax] [--order xfdf|page] [--prepare serial|parallel] [--stats json]\n"
+            + "         [--existing append|skip|update] [--output append|compact] [--compression-level 0-9]\n"
+            + "         [--cache DIR] [--cache-size MB] [--shards N] [--validate]\n"
+            + "         [--markup-appearances none|generate] [--fields merge|ignore]\n"
+            + "         [--warn-every N]";
+
     public static void main(String[] args) throws Exception {
-        if(args.length != 3 && args.length != 4) {
-            System.err.println(USAGE);
+        MergeOptions options = new MergeOptions();
+        String manifest = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int port = -1;
+        int queueSize = 16;
+        String bindAddress = "127.0.0.1";
+        long maxRequestSize = 1024;
+        String cacheDirectory = null;
+        long cacheSize = 1024;
+        int argIx = 0;
+        try {
+            while(argIx < args.length && args[argIx].startsWith("--")) {
+                String opt = args[argIx++];
+                if("--validate".equals(opt) || "--dry-run".equals(opt)) {
+                    options.setValidateOnly(true);
+                    continue;
+                }
+                if(argIx == args.length) {
+                    throw new IllegalArgumentException("Missing value for " + opt);
+                }
+                String value = args[argIx++];
+                switch(opt) {
+                    case "--parser":
+                        if(!"stax".equals(value) && !"dom".equals(value)) {
+                            throw new IllegalArgumentException("Unknown parser " + value);
+                        }
+                        options.setStreaming("stax".equals(value));
+                        break;
+                    case "--order":
+                        if(!"page".equals(value) && !"xfdf".equals(value)) {
+                            throw new IllegalArgumentException("Unknown order " + value);
+                        }
+                        options.setGroupByPage("page".equals(value));
+                        break;
+                    case "--prepare":
+                        if(!"parallel".equals(value) && !"serial".equals(value)) {
+                            throw new IllegalArgumentException("Unknown preparation mode " + value);
+                        }
+                        options.setParallel("parallel".equals(value));
+                        break;
+                    case "--stats":
+                        if(!"json".equals(value)) {
+                            throw new IllegalArgumentException("Unknown statistics format " + value);
+                        }
+                        options.setJsonStats(true);
+                        break;
+                    case "--existing":
+                        options.setExistingAnnotationPolicy(
+                                ExistingAnnotationPolicy.valueOf(value.toUpperCase(Locale.ROOT)));
+                        break;
+                    case "--output":
+                        if(!"compact".equals(value) && !"append".equals(value)) {
+                            throw new IllegalArgumentException("Unknown output mode " + value);
+                        }
+                        options.setCompact("compact".equals(value));
+                        break;
+                    case "--compression-level":
+                        int level = Integer.parseInt(value);
+                        if(level < 0 || level > 9) {
+                            throw new IllegalArgumentException("Compression level must be between 0 and 9");
+                        }
+                        options.setCompressionLevel(level);
+                        break;
+                    case "--cache":
+                        cacheDirectory = value;
+                        break;
+                    case "--cache-size":
+                        cacheSize = Long.parseLong(value);
+                        if(cacheSize < 0) {
+                            throw new IllegalArgumentException("Cache size must not be negative");
+                        }
+                        break;
+                    case "--markup-appearances":
+                        if(!"generate".equals(value) && !"none".equals(value)) {
+                            throw new IllegalArgumentException("Unknown markup appearance mode " + value);
+                        }
+                        options.setMarkupAppearances("generate".equals(value));
+                        break;
+                    case "--fields":
+                        if(!"merge".equals(value) && !"ignore".equals(value)) {
+                            throw new IllegalArgumentException("Unknown field mode " + value);
+                        }
+                        options.setMergeFields("merge".equals(value));
+                        break;
+                    case "--warn-every":
+                        int interval = Integer.parseInt(value);
+                        if(interval < 0) {
+                            throw new IllegalArgumentException("Warning interval must not be negative");
+                        }
+                        options.setWarningInterval(interval);
+                        break;
+                    case "--shards":
+                        int shards = Integer.parseInt(value);
+                        if(shards < 1) {
+                            throw new IllegalArgumentException("Shard count must be positive");
+                        }
+                        options.setShards(shards);
+                        break;
+                    case "--batch":
+                        manifest = value;
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        if(threads < 1) {
+                            throw new IllegalArgumentException("Thread count must be positive");
+                        }
+                        break;
+                    case "--serve":
+                        port = Integer.parseInt(value);
+                        break;
+                    case "--queue":
+                        queueSize = Integer.parseInt(value);
+                        if(queueSize < 0) {
+                            throw new IllegalArgumentException("Queue size must not be negative");
+                        }
+                        break;
+                    case "--bind":
+                        bindAddress = value;
+                        break;
+                    case "--max-request-size":
+                        maxRequestSize = Long.parseLong(value);
+                        if(maxRequestSize < 1) {
+                            throw new IllegalArgumentException("Maximum request size must be positive");
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + opt);
+                }
+            }
+            if(options.getShards() > 1 && (options.isGroupByPage()
+                    || options.getExistingAnnotationPolicy() != ExistingAnnotationPolicy.APPEND)) {
+                throw new IllegalArgumentException("--shards can't be combined with --order page or --existing");
+            }
+        } catch(IllegalArgumentException e) {
+            exitWithUsage(e.getMessage());
             return;
         }
-        String pdfIn = args[0];
-        String xfdfIn = args[1];
-        String pdfOut = args[2];
-
-        AffineTransform transform;
-        int pageShift;
-        if(args.length == 4) {
-            // process transformation argument
-            String[] split = args[3].split("/");
-            if(split.length != 4) {
-                System.err.println(USAGE);
+        if(cacheDirectory != null) {
+            options.setParseCache(new ParseCache(Paths.get(cacheDirectory), cacheSize * 1024 * 1024));
+        }
+
+        if(port >= 0) {
+            if(argIx != args.length || manifest != null || options.isValidateOnly()) {
+                exitWithUsage("--serve can't be combined with --batch, --validate or input files");
                 return;
             }
-            try {
-                pageShift = Integer.parseInt(split[0]);
-                double xShift = Double.parseDouble(split[1]);
-                double yShift = Double.parseDouble(split[2]);
-                double scale = Double.parseDouble(split[3]);
-                double[] matrix = new double[] {scale, 0, 0, scale, xShift, yShift};
-                transform = new AffineTransform(matrix);
-                LOGGER.info(
-                        "Applying transformation {}" + "; page number shift={}",
-                        Arrays.toString(matrix),
-                        pageShift);
-            } catch(NumberFormatException nfe) {
-                System.err.println(USAGE);
+            MergeServer server = new MergeServer(new InetSocketAddress(bindAddress, port), threads, queueSize,
+                    maxRequestSize * 1024 * 1024, options);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            server.start();
+            return;
+        }
+
+        if(manifest != null) {
+            if(argIx != args.length) {
+                exitWithUsage("--batch can't be combined with input files");
                 return;
             }
-        } else {
-            transform = new AffineTransform();
-            pageShift = 0;
+            int failed = new BatchMerge(threads, options).run(manifest);
+            if(failed > 0) {
+                System.exit(1);
+            }
+            return;
         }
 
-        XfdfObject xfdfRoot;
-        try(InputStream is = new FileInputStream(xfdfIn)) {
-            xfdfRoot = new XfdfAnnotFactory().createXfdfObject(is);
+        args = Arrays.copyOfRange(args, argIx, args.length);
+        // validation doesn't write anything, so it takes no output
+        int inOut = options.isValidateOnly() ? 2 : 3;
+        if(args.length != inOut && args.length != inOut + 1) {
+            exitWithUsage(null);
+            return;
+        }
+        String transformString = args.length > inOut ? args[inOut] : null;
+        MergeJob job;
+        try {
+            job = MergeJob.createWithStandardStreams(args[0], args[1], options.isValidateOnly() ? null : args[2],
+                    transformString);
+        } catch(IllegalArgumentException e) {
+            exitWithUsage(e.getMessage());
+            return;
         }
-        StampingProperties sp = new StampingProperties().useAppendMode();
-        try(PdfReader r = new PdfReader(pdfIn);
-            PdfWriter w = new PdfWriter(pdfOut);
-            PdfDocument pdfDoc = new PdfDocument(r, w, sp)) {
-            XfdfMerge mrg = new XfdfMerge(pdfDoc, transform, pageShift);
-            mrg.mergeXfdfIntoPdf(xfdfRoot);
+        if(transformString != null) {
+            double[] matrix = new double[6];
+            job.getTransform().getMatrix(matrix);
+            LOGGER.info(
+                    "Applying transformation {}" + "; page number shift={}",
+                    Arrays.toString(matrix),
+                    job.getPageShift());
+        }
+        if(options.isValidateOnly()) {
+            List<ValidationIssue> issues = job.validate(options);
+            for(ValidationIssue issue : issues) {
+                System.out.println(issue);
+            }
+            if(options.isJsonStats()) {
+                System.err.println(job.getStats().toJson(job.getDescription(), null));
+            }
+            if(!issues.isEmpty()) {
+                System.exit(1);
+            }
+            return;
+        }
+        // a single job has the machine to itself, so read the XFDF file while the PDF document is opened,
+        // unless they'd only compete for the same processor
+        options.setOverlapOpen(Runtime.getRuntime().availableProcessors() > 1);
+        Exception error = null;
+        try {
+            job.run(options);
+            if(job.getStats().isOverlapped()) {
+                LOGGER.info("Reading the XFDF file while opening the PDF document saved {} ms",
+                        job.getStats().getOverlapSavedNanos() / 1000000);
+            }
+        } catch(Exception e) {
+            error = e;
+            throw e;
+        } finally {
+            if(options.isJsonStats()) {
+                System.err.println(job.getStats().toJson(job.getDescription(), error));
+            }
+        }
+    }
+
+    /**
+     * Prints what was wrong with the command line, if known, followed by the usage, and exits with status 1.
+     */
+    private static void exitWithUsage(String message) {
+        if(message != null) {
+            System.err.println(message);
         }
+        System.err.println(USAGE);
+        System.exit(1);
     }
 }
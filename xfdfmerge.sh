@@ -1,3 +1,11 @@
 #!/bin/sh
 
-java -jar target/xfdf-merge-1.0-SNAPSHOT-jar-with-dependencies.jar "$@"
\ No newline at end of file
+# use the fastest build that is up to date: the native executable ("mvn package -Pnative"), the jar with its
+# class data sharing archive ("mvn package -Pappcds"), or the plain jar
+JAR=target/xfdf-merge-1.0-SNAPSHOT-jar-with-dependencies.jar
+if [ target/xfdf-merge -nt "$JAR" ]; then
+    exec target/xfdf-merge "$@"
+elif [ target/xfdf-merge.jsa -nt "$JAR" ]; then
+    exec java -XX:SharedArchiveFile=target/xfdf-merge.jsa -jar "$JAR" "$@"
+fi
+exec java -jar "$JAR" "$@"